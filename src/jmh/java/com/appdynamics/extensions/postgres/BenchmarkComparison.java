@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH result files written with {@code -rf json}, usually {@code src/jmh/results/baseline.json}, or a
+ * baseline recorded as described in {@code src/jmh/results/README.md}, and the result of the current build. The score and the allocation per operation of every
+ * benchmark found in both files are printed with their change, and the benchmarks that got worse by more than the
+ * threshold are flagged. The exit status is 1 if any did, so the comparison can gate a build.
+ * <p>
+ * Usage: {@code BenchmarkComparison <baseline.json> <current.json> [thresholdPercent]}, the threshold defaults to 10.
+ */
+public final class BenchmarkComparison {
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+    private static final double DEFAULT_THRESHOLD_PERCENT = 10;
+
+    private BenchmarkComparison() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkComparison <baseline.json> <current.json> [thresholdPercent]");
+            System.err.println("A baseline is kept in src/jmh/results/baseline.json, src/jmh/results/README.md tells " +
+                    "how to record one on this machine");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD_PERCENT;
+        Map<String, JsonNode> baseline = read(new File(args[0]));
+        Map<String, JsonNode> current = read(new File(args[1]));
+        int regressions = 0;
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-100s new%n", entry.getKey());
+                continue;
+            }
+            JsonNode after = entry.getValue();
+            // throughput is better when higher, every other mode measures time
+            boolean higherIsBetter = "thrpt".equals(after.path("mode").asText());
+            regressions += compare(entry.getKey(), after.path("primaryMetric").path("scoreUnit").asText(),
+                    before.path("primaryMetric"), after.path("primaryMetric"), higherIsBetter, threshold);
+            JsonNode allocBefore = before.path("secondaryMetrics").path(ALLOCATION);
+            JsonNode allocAfter = after.path("secondaryMetrics").path(ALLOCATION);
+            if (!allocBefore.isMissingNode() && !allocAfter.isMissingNode()) {
+                regressions += compare(entry.getKey() + ":" + ALLOCATION, "B/op", allocBefore, allocAfter, false,
+                        threshold);
+            }
+        }
+        System.out.printf("%d regressions above %.1f%%%n", regressions, threshold);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    private static int compare(String name, String unit, JsonNode before, JsonNode after, boolean higherIsBetter,
+                               double threshold) {
+        double was = before.path("score").asDouble();
+        double is = after.path("score").asDouble();
+        double change = was == 0 ? 0 : (is - was) / Math.abs(was) * 100;
+        boolean regression = (higherIsBetter ? -change : change) > threshold;
+        System.out.printf("%-100s %14.3f -> %14.3f %-8s %+7.1f%%%s%n", name, was, is, unit, change,
+                regression ? "  REGRESSION" : "");
+        return regression ? 1 : 0;
+    }
+
+    // keyed by benchmark, mode and parameters
+    private static Map<String, JsonNode> read(File file) throws IOException {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(file)) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText()).append(' ')
+                    .append(result.path("mode").asText());
+            Map<String, String> params = new TreeMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = result.path("params").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> param = fields.next();
+                params.put(param.getKey(), param.getValue().asText());
+            }
+            if (!params.isEmpty()) {
+                key.append(' ').append(params);
+            }
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+}
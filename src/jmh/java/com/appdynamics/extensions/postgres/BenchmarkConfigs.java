@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres;
+
+import com.appdynamics.extensions.postgres.fake.SyntheticResultSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.appdynamics.extensions.postgres.util.Constants.*;
+
+/**
+ * Builds config.yml maps in memory for the benchmarks, shaped like the columns of a {@link SyntheticResultSet}.
+ */
+public final class BenchmarkConfigs {
+    public static final String SERVER_NAME = "Local cluster";
+    public static final String DATABASE = "test";
+    public static final String QUERY = "Table Stats";
+
+    private BenchmarkConfigs() {
+    }
+
+    /**
+     * Returns the columns of a query over a synthetic result set with the given number of columns. The first column
+     * is the metricPath, every third value column is reported as a rate and the others carry metric properties, the
+     * way the table stats of the sample config.yml do.
+     */
+    public static List<Map<String, ?>> columns(int columns) {
+        List<Map<String, ?>> cols = new ArrayList<>();
+        Map<String, Object> path = new LinkedHashMap<>();
+        path.put(NAME, SyntheticResultSet.PATH_COLUMN);
+        path.put("type", "metricPath");
+        cols.add(path);
+        for (int i = 2; i <= columns; i++) {
+            Map<String, Object> properties = new LinkedHashMap<>();
+            properties.put(ALIAS, "Column " + i);
+            properties.put(AGGREGATION_TYPE, "OBSERVATION");
+            properties.put(TIME_ROLLUP_TYPE, "AVERAGE");
+            properties.put(CLUSTER_ROLLUP_TYPE, "INDIVIDUAL");
+            if (i % 3 == 0) {
+                properties.put(RATE, "true");
+            }
+            Map<String, Object> value = new LinkedHashMap<>();
+            value.put(NAME, SyntheticResultSet.valueColumnName(i));
+            value.put("type", "metricValue");
+            value.put("properties", properties);
+            cols.add(value);
+        }
+        return cols;
+    }
+
+    public static Map<String, Object> server() {
+        Map<String, Object> server = new LinkedHashMap<>();
+        server.put(DISPLAY_NAME, SERVER_NAME);
+        server.put(HOST, "localhost");
+        server.put(PORT, "5432");
+        server.put(USER, "postgres");
+        server.put(PASSWORD, "postgres");
+        Map<String, String> connProps = new HashMap<>();
+        connProps.put("connectTimeout", "10");
+        connProps.put("tcpKeepAlive", "true");
+        server.put(OPTIONAL_CONNECTION_PROPERTIES, connProps);
+        return server;
+    }
+
+    /**
+     * @return a config with one server and one database, running one query with the given columns
+     */
+    public static Map<String, ?> config(int columns) {
+        Map<String, Object> query = new LinkedHashMap<>();
+        query.put(NAME, QUERY);
+        query.put(SERVER_LVL_QUERY, "false");
+        query.put(QUERY_STATEMENT, "SELECT * FROM pg_stat_user_tables");
+        query.put(COLUMNS, columns(columns));
+        List<Map<String, ?>> queries = new ArrayList<>();
+        queries.add(query);
+        Map<String, Object> database = new LinkedHashMap<>();
+        database.put(DB_NAME, DATABASE);
+        database.put(QUERIES, queries);
+        List<Map<String, ?>> databases = new ArrayList<>();
+        databases.add(database);
+        Map<String, Object> server = server();
+        server.put(DATABASES, databases);
+        List<Map<String, ?>> servers = new ArrayList<>();
+        servers.add(server);
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put(SERVERS, servers);
+        return config;
+    }
+}
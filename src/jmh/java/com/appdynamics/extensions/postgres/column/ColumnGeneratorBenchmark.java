@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.column;
+
+import com.appdynamics.extensions.postgres.BenchmarkConfigs;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binding the columns of a query from config.yml, which happens for every query whenever the config is loaded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColumnGeneratorBenchmark {
+
+    @Param({"5", "20", "50"})
+    private int columns;
+
+    private List<Map<String, ?>> config;
+
+    @Setup
+    public void setup() {
+        config = BenchmarkConfigs.columns(columns);
+    }
+
+    @Benchmark
+    public List<Column> getColumnsPOJO() {
+        return ColumnGenerator.getColumnsPOJO(config);
+    }
+}
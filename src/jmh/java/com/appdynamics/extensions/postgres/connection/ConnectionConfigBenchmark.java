@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.connection;
+
+import com.appdynamics.extensions.postgres.BenchmarkConfigs;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the connection settings of a database, done for every configured and discovered database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionConfigBenchmark {
+    private Map<String, ?> server;
+
+    @Setup
+    public void setup() {
+        server = BenchmarkConfigs.server();
+    }
+
+    @Benchmark
+    public PostgresConnectionConfig getConnectionConfig() {
+        return PostgresConnectionConfigHelper.getConnectionConfig(BenchmarkConfigs.DATABASE,
+                BenchmarkConfigs.SERVER_NAME, "postgres", server, 30000);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.fake;
+
+import java.math.BigDecimal;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+import static com.appdynamics.extensions.postgres.fake.SyntheticResultSet.valueAt;
+
+/**
+ * The rows of a {@link SyntheticResultSet} for the benchmarks, without the dynamic proxy. Like the PostgreSQL driver
+ * in text mode, {@code getString} creates a new String for every call while {@code getLong}/{@code getDouble} decode
+ * without allocating.
+ */
+public class BenchmarkResultSet extends UnsupportedResultSet {
+    private final int rows;
+    private final int columns;
+    private final String[] labels;
+    private final ResultSetMetaData metaData;
+    private int row;
+    private boolean closed;
+
+    /**
+     * @param rows    number of rows
+     * @param columns total number of columns, including the {@code relname} column
+     */
+    public BenchmarkResultSet(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+        this.labels = new String[columns + 1];
+        labels[1] = SyntheticResultSet.PATH_COLUMN;
+        for (int i = 2; i <= columns; i++) {
+            labels[i] = SyntheticResultSet.valueColumnName(i);
+        }
+        // only read once per query, the proxy does not matter
+        try {
+            this.metaData = SyntheticResultSet.create(0, columns).getMetaData();
+        } catch (SQLException se) {
+            throw new IllegalStateException(se);
+        }
+    }
+
+    @Override
+    public boolean next() {
+        return ++row <= rows;
+    }
+
+    @Override
+    public void beforeFirst() {
+        row = 0;
+    }
+
+    @Override
+    public int findColumn(String label) throws SQLException {
+        for (int i = 1; i <= columns; i++) {
+            if (labels[i].equalsIgnoreCase(label)) {
+                return i;
+            }
+        }
+        throw new SQLException("The column name " + label + " was not found in this ResultSet.");
+    }
+
+    @Override
+    public String getString(int column) {
+        return column == 1 ? "table_" + row : Long.toString(valueAt(row, column));
+    }
+
+    @Override
+    public String getString(String label) throws SQLException {
+        return getString(findColumn(label));
+    }
+
+    @Override
+    public long getLong(int column) {
+        return valueAt(row, column);
+    }
+
+    @Override
+    public long getLong(String label) throws SQLException {
+        return getLong(findColumn(label));
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) valueAt(row, column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return valueAt(row, column);
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(int column) {
+        return BigDecimal.valueOf(valueAt(row, column));
+    }
+
+    @Override
+    public boolean wasNull() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() {
+        return metaData;
+    }
+}
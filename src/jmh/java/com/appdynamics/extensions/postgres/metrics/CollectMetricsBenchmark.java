@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.MetricWriteHelper;
+import com.appdynamics.extensions.postgres.BenchmarkConfigs;
+import com.appdynamics.extensions.postgres.ServerContext;
+import com.appdynamics.extensions.postgres.fake.BenchmarkResultSet;
+import com.appdynamics.extensions.postgres.plan.CollectionPlanCompiler;
+import com.appdynamics.extensions.postgres.plan.DatabasePlan;
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import com.appdynamics.extensions.postgres.plan.ServerPlan;
+import com.appdynamics.extensions.postgres.schedule.QueryScheduler;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The whole row to metric path of {@link DatabaseTask}: decoding the rows, looking up their metric paths, computing
+ * the rates and handing the metrics to the metric writer in chunks. Scores are per result set. The metric path cache
+ * and the counter samples are kept across invocations like they are across runs, so the steady state is measured,
+ * except with a million rows which is more than the default size of the path cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CollectMetricsBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    private int rows;
+
+    @Param({"5", "20", "50"})
+    private int columns;
+
+    private ResultSet rs;
+    private ServerContext serverContext;
+    private DatabaseTask task;
+    private QueryPlan query;
+    private MetricWriteHelper metricWriteHelper;
+
+    @Setup
+    public void setup() {
+        rs = new BenchmarkResultSet(rows, columns);
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(BenchmarkConfigs.config(columns)).getServers().get(0);
+        DatabasePlan database = serverPlan.getDatabases().get(0);
+        query = database.getQueries().get(0);
+        serverContext = new ServerContext(serverPlan);
+        // stub only, so that the metrics written are not kept as invocations
+        metricWriteHelper = Mockito.mock(MetricWriteHelper.class, Mockito.withSettings().stubOnly());
+        task = new DatabaseTask(serverContext, database, serverContext.getScheduler().next(0),
+                "Custom Metrics|Postgres", metricWriteHelper, new AtomicBoolean());
+    }
+
+    @TearDown
+    public void tearDown() {
+        serverContext.close();
+    }
+
+    @Benchmark
+    public int collectMetricsFromResultSet() throws SQLException {
+        rs.beforeFirst();
+        MetricEmitter emitter = new MetricEmitter(metricWriteHelper,
+                serverContext.getServerPlan().getMetricChunkSize());
+        int read = task.collectMetricsFromResultSet(query, rs, emitter);
+        emitter.flush();
+        return read;
+    }
+}
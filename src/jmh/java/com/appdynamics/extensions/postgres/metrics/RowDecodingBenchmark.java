@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.postgres.column.Column;
+import com.appdynamics.extensions.postgres.column.ColumnType;
+import com.appdynamics.extensions.postgres.fake.BenchmarkResultSet;
+import com.appdynamics.extensions.postgres.fake.SyntheticResultSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading every configured column by name as a String, which is how rows used to be decoded, with
+ * {@link RowDecoder}. Scores are per row, run with {@code -prof gc} and compare {@code gc.alloc.rate.norm} to see the
+ * allocation per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowDecodingBenchmark {
+    private static final int ROWS = 10_000;
+
+    @Param({"5", "20"})
+    private int columns;
+
+    private ResultSet rs;
+    private List<Column> cols;
+
+    @Setup
+    public void setup() {
+        rs = new BenchmarkResultSet(ROWS, columns);
+        cols = new ArrayList<>();
+        cols.add(new Column(SyntheticResultSet.PATH_COLUMN, ColumnType.METRIC_PATH, null));
+        for (int i = 2; i <= columns; i++) {
+            cols.add(new Column(SyntheticResultSet.valueColumnName(i), ColumnType.METRIC_VALUE, null));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void byNameAsString(Blackhole bh) throws SQLException {
+        rs.beforeFirst();
+        while (rs.next()) {
+            for (Column col : cols) {
+                bh.consume(rs.getString(col.getName()));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void byIndexTyped(Blackhole bh) throws SQLException {
+        rs.beforeFirst();
+        RowDecoder decoder = RowDecoder.forResultSet(rs, cols);
+        while (rs.next()) {
+            decoder.decode(rs);
+            bh.consume(decoder.getPathValue(0));
+            for (int i = 0; i < decoder.getValueCount(); i++) {
+                bh.consume(decoder.getDoubleValue(i));
+            }
+        }
+    }
+}
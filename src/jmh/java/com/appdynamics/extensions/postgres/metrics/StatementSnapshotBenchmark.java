@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diffs a snapshot of pg_stat_statements against the previous one and keeps the top statements. Scores are per
+ * statement, run with {@code -prof gc} to check that {@code gc.alloc.rate.norm} stays at about 0 bytes per statement
+ * once the tables have grown.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatementSnapshotBenchmark {
+    private static final int STATEMENTS = 20_000;
+
+    @Param({"10", "100"})
+    private int topK;
+
+    private StatementSnapshot snapshot;
+    private long run;
+
+    @Setup
+    public void setup() {
+        snapshot = new StatementSnapshot();
+        read();
+    }
+
+    private void read() {
+        run++;
+        snapshot.begin(topK);
+        for (int i = 0; i < STATEMENTS; i++) {
+            // every statement was called since the previous read, a few of them many times
+            long calls = run * (1 + i % 97);
+            snapshot.add(10 + i % 5, 16384 + i % 50, i * 0x9E3779B97F4A7C15L, calls, calls * 1.5, calls, calls * 4,
+                    calls / 8);
+        }
+        snapshot.finish();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STATEMENTS)
+    public void diffAndSelectTop(Blackhole bh) {
+        read();
+        bh.consume(snapshot.getTotal().execTime);
+    }
+}
@@ -17,12 +17,23 @@ package com.appdynamics.extensions.postgres;
 
 import com.appdynamics.extensions.ABaseMonitor;
 import com.appdynamics.extensions.TasksExecutionServiceProvider;
-import com.appdynamics.extensions.util.AssertUtils;
+import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
+import com.appdynamics.extensions.postgres.metrics.QueryResultCache;
+import com.appdynamics.extensions.postgres.plan.CollectionPlan;
+import com.appdynamics.extensions.postgres.plan.CollectionPlanCompiler;
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import com.appdynamics.extensions.postgres.plan.QueryPlanIndex;
+import com.appdynamics.extensions.postgres.plan.ServerPlan;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import org.slf4j.Logger;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.appdynamics.extensions.postgres.util.Constants.*;
 
@@ -30,8 +41,19 @@ import static com.appdynamics.extensions.postgres.util.Constants.*;
  * @author pradeep.nair
  */
 public class PostgresMonitor extends ABaseMonitor {
+    private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(PostgresMonitor.class);
 
     private final static ObjectMapper objectMapper = new ObjectMapper(new YAMLFactory());
+    // long lived state per server such as connection pools, kept across runs and updated when the config is reloaded
+    private final Map<String, ServerContext> serverContexts = new ConcurrentHashMap<>();
+    private volatile Map<String, ?> loadedConfig;
+    private volatile CollectionPlan plan;
+    // results of the queries with an interval of all the servers, replaced when its size is reconfigured
+    private volatile QueryResultCache resultCache;
+
+    public PostgresMonitor() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::closeServerContexts, "Postgres monitor shutdown"));
+    }
 
     @Override
     protected String getDefaultMetricPrefix() {
@@ -45,12 +67,62 @@ public class PostgresMonitor extends ABaseMonitor {
 
     @Override
     protected void doRun(TasksExecutionServiceProvider tasksExecutionServiceProvider) {
-        for (Map<String, ?> server : getServers()) {
-            AssertUtils.assertNotNull(server.get(DISPLAY_NAME), "The displayName section for the database " +
-                    "server cannot be null");
+        Map<String, ?> config = getContextConfiguration().getConfigYml();
+        if (config != loadedConfig) {
+            // config.yml was (re)loaded, compile it once
+            reload(config);
+            loadedConfig = config;
+        }
+        for (ServerPlan serverPlan : plan.getServers()) {
+            ServerContext serverContext = serverContexts.computeIfAbsent(serverPlan.getServerName(),
+                    name -> new ServerContext(serverPlan, resultCache));
             PostgresMonitorTask postgresMonitorTask = new PostgresMonitorTask(getContextConfiguration(),
-                    tasksExecutionServiceProvider.getMetricWriteHelper(), server, server.get(DISPLAY_NAME).toString());
-            tasksExecutionServiceProvider.submit(server.get(DISPLAY_NAME).toString(), postgresMonitorTask);
+                    tasksExecutionServiceProvider.getMetricWriteHelper(), serverPlan, serverContext);
+            tasksExecutionServiceProvider.submit(serverPlan.getServerName(), postgresMonitorTask);
+        }
+    }
+
+    /**
+     * Compiles the config against the running plan so that the query plans whose config did not change are reused,
+     * then updates the context of every server still configured. Only the connections that may point to servers or
+     * credentials that are no longer valid are closed, the servers whose pool, bulkhead, executor, breaker or cache
+     * settings changed are started afresh.
+     */
+    private void reload(Map<String, ?> config) {
+        List<QueryPlan> running = new ArrayList<>();
+        for (ServerContext serverContext : serverContexts.values()) {
+            running.addAll(serverContext.getAllQueries());
+        }
+        QueryPlanIndex index = new QueryPlanIndex(running);
+        CollectionPlan newPlan = CollectionPlanCompiler.compile(config, index);
+        if (resultCache == null || plan.getResultCacheMaxMetrics() != newPlan.getResultCacheMaxMetrics()) {
+            if (resultCache != null) {
+                resultCache.clear();
+            }
+            resultCache = new QueryResultCache(newPlan.getResultCacheMaxMetrics());
+        }
+        Map<String, ServerPlan> servers = new HashMap<>();
+        for (ServerPlan serverPlan : newPlan.getServers()) {
+            servers.put(serverPlan.getServerName(), serverPlan);
+        }
+        Iterator<ServerContext> it = serverContexts.values().iterator();
+        while (it.hasNext()) {
+            ServerContext serverContext = it.next();
+            ServerPlan serverPlan = servers.get(serverContext.getServerName());
+            if (serverPlan != null && serverContext.canUpdateTo(serverPlan)) {
+                serverContext.update(serverPlan, resultCache);
+            } else {
+                LOGGER.info("Closing connections for server {}, it was {}", serverContext.getServerName(),
+                        serverPlan == null ? "removed" : "reconfigured");
+                serverContext.close();
+                it.remove();
+            }
+        }
+        // the query templates of the discoveries compile the databases found later without the running plans
+        index.clear();
+        plan = newPlan;
+        if (!running.isEmpty()) {
+            LOGGER.info("Reloaded config.yml, reused {} of {} query plans", index.getReusedCount(), running.size());
         }
     }
 
@@ -59,6 +131,16 @@ public class PostgresMonitor extends ABaseMonitor {
         return (List<Map<String, ?>>) getContextConfiguration().getConfigYml().get(SERVERS);
     }
 
+    private void closeServerContexts() {
+        if (!serverContexts.isEmpty()) {
+            LOGGER.info("Closing connections for {} servers", serverContexts.size());
+        }
+        for (ServerContext serverContext : serverContexts.values()) {
+            serverContext.close();
+        }
+        serverContexts.clear();
+    }
+
     public static ObjectMapper getObjectMapper() {
         return objectMapper;
     }
@@ -20,22 +20,29 @@ import com.appdynamics.extensions.MetricWriteHelper;
 import com.appdynamics.extensions.conf.MonitorContextConfiguration;
 import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
 import com.appdynamics.extensions.metrics.Metric;
-import com.appdynamics.extensions.postgres.connection.PostgresConnectionConfig;
-import com.appdynamics.extensions.postgres.connection.PostgresConnectionConfigHelper;
+import com.appdynamics.extensions.postgres.activity.WaitEventSampler;
 import com.appdynamics.extensions.postgres.metrics.DatabaseTask;
+import com.appdynamics.extensions.postgres.metrics.StatementsTask;
+import com.appdynamics.extensions.postgres.plan.DatabasePlan;
+import com.appdynamics.extensions.postgres.plan.ServerPlan;
+import com.appdynamics.extensions.postgres.plan.StatementsPlan;
+import com.appdynamics.extensions.postgres.schedule.QueryScheduler;
 import com.appdynamics.extensions.util.AssertUtils;
-import com.appdynamics.extensions.util.CryptoUtils;
-import com.google.common.base.Strings;
 import org.slf4j.Logger;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.Phaser;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import static com.appdynamics.extensions.postgres.util.Constants.*;
-
 /**
  * @author pradeep.nair
  */
@@ -43,16 +50,19 @@ public class PostgresMonitorTask implements AMonitorTaskRunnable {
     private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(PostgresMonitorTask.class);
     private final MonitorContextConfiguration contextConfiguration;
     private final MetricWriteHelper metricWriteHelper;
-    private final Map<String, ?> server;
+    private final ServerPlan serverPlan;
     private final String serverName;
+    private final ServerContext serverContext;
     private final AtomicBoolean heart_beat;
+    private volatile long collectionMillis;
 
     PostgresMonitorTask(MonitorContextConfiguration contextConfiguration, MetricWriteHelper metricWriteHelper,
-                        Map<String, ?> server, String serverName) {
+                        ServerPlan serverPlan, ServerContext serverContext) {
         this.contextConfiguration = contextConfiguration;
         this.metricWriteHelper = metricWriteHelper;
-        this.server = server;
-        this.serverName = serverName;
+        this.serverPlan = serverPlan;
+        this.serverName = serverPlan.getServerName();
+        this.serverContext = serverContext;
         this.heart_beat = new AtomicBoolean();
     }
 
@@ -63,38 +73,126 @@ public class PostgresMonitorTask implements AMonitorTaskRunnable {
         String metricValue = heart_beat.get() ? "1" : "0";
         Metric metric = new Metric(metricName, metricValue, contextConfiguration.getMetricPrefix(), serverName, metricName);
         metrics.add(metric);
+        if (serverPlan.isSelfMonitoring()) {
+            serverContext.getStats().publishAndReset(contextConfiguration.getMetricPrefix(), serverName,
+                    collectionMillis, metrics);
+        }
+        WaitEventSampler sampler = serverContext.getWaitEventSampler();
+        if (sampler != null) {
+            sampler.publish(contextConfiguration.getMetricPrefix(), metrics);
+        }
         metricWriteHelper.transformAndPrintMetrics(metrics);
+        LOGGER.debug("Metric path cache for server {}: {}", serverName, serverContext.getPathCache());
+        serverContext.expireCounters(System.currentTimeMillis() - serverPlan.getCounterExpiryMillis());
         LOGGER.debug("End metric collection task for database server {}", serverName);
     }
 
     @Override
     public void run() {
         LOGGER.info("Start metric collection task for server {}", serverName);
-        List<Map<String, ?>> databaseTasks = (List<Map<String, ?>>) server.get(DATABASES);
-        if (databaseTasks.isEmpty()) {
-            databaseTasks = null;
+        long start = System.currentTimeMillis();
+        List<DatabasePlan> databases = serverContext.getDatabases(System.currentTimeMillis());
+        if (serverPlan.getDiscovery() == null) {
+            AssertUtils.assertNotNull(databases.isEmpty() ? null : databases, "Atleast one database is required " +
+                    "for server " + serverName);
         }
-        AssertUtils.assertNotNull(databaseTasks, "Atleast one database is required for server " + serverName);
-        collectAndPublishMetric(databaseTasks);
+        collectAndPublishMetric(databases);
+        collectionMillis = System.currentTimeMillis() - start;
     }
 
-    private void collectAndPublishMetric(List<Map<String, ?>> databaseTasks) {
-        final Phaser phaser = new Phaser();
-        phaser.register();
-        LOGGER.info("Found {} databases under server {}", databaseTasks.size(), serverName);
-        for (Map<String, ?> databaseTask : databaseTasks) {
-            final String dbName = (String) databaseTask.get(DB_NAME);
-            if (Strings.isNullOrEmpty(dbName)) {
-                LOGGER.debug("Please provide database name for server {}. Skipping entry...", serverName);
-            } else {
-                final String encryptionKey = (String) contextConfiguration.getConfigYml().get(ENCRYPTION_KEY);
-                PostgresConnectionConfig connectionConfig = PostgresConnectionConfigHelper.getConnectionConfig(dbName
-                        , serverName, CryptoUtils.getPassword(server, encryptionKey), server);
-                DatabaseTask task = new DatabaseTask(serverName, dbName, databaseTask, phaser, connectionConfig,
-                        contextConfiguration.getMetricPrefix(), metricWriteHelper, heart_beat);
-                contextConfiguration.getContext().getExecutorService().execute("Postgres db task - " + dbName, task);
+    /**
+     * Collects the databases on the executor of the server with at most maxConcurrentDatabases tasks, each taking the
+     * next database from a shared queue once it is done with the previous one, the server level queries in another
+     * task and the top statements of pg_stat_statements, if configured, in a third. This thread only waits for the
+     * tasks until the deadline of the run, the tasks still running then are cancelled so that they do not overlap with
+     * the next run.
+     */
+    private void collectAndPublishMetric(List<DatabasePlan> databases) {
+        long start = System.currentTimeMillis();
+        long deadline = start + serverPlan.getCollectionDeadlineMillis();
+        LOGGER.info("Found {} databases under server {}", databases.size(), serverName);
+        // decided once per run so that every database runs the same tiers
+        QueryScheduler.Schedule schedule = serverContext.getScheduler().next(start);
+        Queue<DatabasePlan> pending = new ConcurrentLinkedQueue<>();
+        for (DatabasePlan database : databases) {
+            // databases with server level queries only
+            if (!database.getQueries().isEmpty()) {
+                pending.add(database);
             }
         }
-        phaser.arriveAndAwaitAdvance();
+        Set<DatabaseTask> running = ConcurrentHashMap.newKeySet();
+        AtomicBoolean expired = new AtomicBoolean();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        int workers = Math.min(serverPlan.getMaxConcurrentDatabases(), pending.size());
+        for (int i = 0; i < workers; i++) {
+            submit(tasks, () -> {
+                DatabasePlan database;
+                while (!expired.get() && (database = pending.poll()) != null) {
+                    collect(database, schedule, running, expired);
+                }
+            });
+        }
+        DatabasePlan serverLevelDatabase = serverPlan.getServerLevelDatabase();
+        if (serverLevelDatabase != null) {
+            submit(tasks, () -> collect(serverLevelDatabase, schedule, running, expired));
+        }
+        StatementsPlan statementsPlan = serverPlan.getStatements();
+        StatementsTask statements = statementsPlan == null ? null : new StatementsTask(serverContext,
+                statementsPlan, contextConfiguration.getMetricPrefix(), metricWriteHelper, heart_beat);
+        if (statements != null) {
+            submit(tasks, statements);
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0]));
+        try {
+            all.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            LOGGER.warn("Collection for server {} did not complete within {} ms, cancelling {} database tasks " +
+                    "and skipping {} databases not started", serverName, serverPlan.getCollectionDeadlineMillis(),
+                    running.size(), pending.size());
+            cancel(expired, running, statements);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            cancel(expired, running, statements);
+        } catch (ExecutionException ee) {
+            LOGGER.error("Error collecting metrics for server {}", serverName, ee.getCause());
+        }
+    }
+
+    private void submit(List<CompletableFuture<Void>> tasks, Runnable task) {
+        try {
+            tasks.add(CompletableFuture.runAsync(task, serverContext.getExecutor()));
+        } catch (RejectedExecutionException ree) {
+            // every thread is still busy with tasks of an earlier run that did not respond to the cancel yet
+            LOGGER.warn("No thread available to collect metrics for server {}", serverName);
+        }
+    }
+
+    private void collect(DatabasePlan database, QueryScheduler.Schedule schedule, Set<DatabaseTask> running,
+                         AtomicBoolean expired) {
+        DatabaseTask task = new DatabaseTask(serverContext, database, schedule,
+                contextConfiguration.getMetricPrefix(), metricWriteHelper, heart_beat);
+        running.add(task);
+        // the deadline may have passed after the task was taken but before it was registered
+        if (expired.get()) {
+            task.cancel();
+        }
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            LOGGER.error("Error collecting metrics for database {} server {}", database.getDbName(), serverName, e);
+        } finally {
+            running.remove(task);
+        }
+    }
+
+    private void cancel(AtomicBoolean expired, Set<DatabaseTask> running, StatementsTask statements) {
+        expired.set(true);
+        if (statements != null) {
+            statements.cancel();
+        }
+        for (DatabaseTask task : running) {
+            LOGGER.debug("Cancelling the collection of database {} server {}", task.getDbName(), serverName);
+            task.cancel();
+        }
     }
 }
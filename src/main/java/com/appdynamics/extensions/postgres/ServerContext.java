@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres;
+
+import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
+import com.appdynamics.extensions.postgres.activity.WaitEventSampler;
+import com.appdynamics.extensions.postgres.connection.Bulkhead;
+import com.appdynamics.extensions.postgres.connection.ConnectionPool;
+import com.appdynamics.extensions.postgres.connection.PostgresConnectionConfig;
+import com.appdynamics.extensions.postgres.connection.Route;
+import com.appdynamics.extensions.postgres.discovery.DatabaseDiscovery;
+import com.appdynamics.extensions.postgres.metrics.CounterStore;
+import com.appdynamics.extensions.postgres.metrics.MetricPathCache;
+import com.appdynamics.extensions.postgres.metrics.QueryResultCache;
+import com.appdynamics.extensions.postgres.metrics.ShardedResults;
+import com.appdynamics.extensions.postgres.metrics.StatementSnapshot;
+import com.appdynamics.extensions.postgres.plan.DatabasePlan;
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import com.appdynamics.extensions.postgres.plan.ServerPlan;
+import com.appdynamics.extensions.postgres.plan.StatementsPlan;
+import com.appdynamics.extensions.postgres.plan.WaitEventsPlan;
+import com.appdynamics.extensions.postgres.schedule.CircuitBreaker;
+import com.appdynamics.extensions.postgres.schedule.QueryScheduler;
+import com.appdynamics.extensions.postgres.schedule.TaskExecutors;
+import com.appdynamics.extensions.postgres.stats.CollectionStats;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.appdynamics.extensions.postgres.util.Constants.DEFAULT_RESULT_CACHE_MAX_METRICS;
+
+/**
+ * State for one configured server that outlives a single monitor run, such as the connection pools of its databases
+ * and the bulkhead they share, the cache of metric paths, the last samples of counters, when the queries with an
+ * interval are due next, the circuit breakers and shards of the queries, the databases discovered, the last snapshot
+ * of pg_stat_statements, the sampler of wait events, the executors the database tasks and the background refreshes of
+ * query results run on and the instrumentation of the collection.
+ * <p>
+ * When config.yml is reloaded the context is {@link #update updated} to the new plan of the server as long as the
+ * settings of its pools, bulkhead, executors, breakers and caches did not change, keeping the state of the databases
+ * and queries whose config did not change.
+ */
+public class ServerContext implements AutoCloseable {
+    private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(ServerContext.class);
+
+    private volatile ServerPlan serverPlan;
+    private final String serverName;
+    private final Map<String, ConnectionPool> pools = new ConcurrentHashMap<>();
+    // shared by the pools, null when the connections to the server are not bounded
+    private final Bulkhead bulkhead;
+    private final MetricPathCache pathCache;
+    private final Map<String, CounterStore> counterStores = new ConcurrentHashMap<>();
+    private final QueryScheduler scheduler = new QueryScheduler();
+    // shared by all the servers
+    private volatile QueryResultCache resultCache;
+    // queries with stale results being executed in the background
+    private final Set<QueryPlan> refreshing = ConcurrentHashMap.newKeySet();
+    // ids of the rows reported individually on the last run of each top N query
+    private final Map<QueryPlan, long[]> topRows = new ConcurrentHashMap<>();
+    private final Map<QueryPlan, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final Map<QueryPlan, ShardedResults> shardedResults = new ConcurrentHashMap<>();
+    // null when databases are not discovered
+    private volatile DatabaseDiscovery discovery;
+    private volatile StatementSnapshot statementSnapshot = new StatementSnapshot();
+    // null when wait events are not sampled
+    private volatile WaitEventSampler waitEventSampler;
+    private final ExecutorService executor;
+    private final ExecutorService refreshExecutor;
+    private final CollectionStats stats;
+
+    public ServerContext(ServerPlan serverPlan) {
+        this(serverPlan, new QueryResultCache(DEFAULT_RESULT_CACHE_MAX_METRICS));
+    }
+
+    public ServerContext(ServerPlan serverPlan, QueryResultCache resultCache) {
+        this.serverPlan = serverPlan;
+        this.resultCache = resultCache;
+        this.serverName = serverPlan.getServerName();
+        this.pathCache = new MetricPathCache(serverPlan.getMetricPathCacheSize());
+        this.discovery = serverPlan.getDiscovery() == null ? null : new DatabaseDiscovery(serverName,
+                serverPlan.getDiscovery(), serverPlan.getDatabases());
+        // one thread per concurrent database plus one for the server level queries and one for the statements
+        this.executor = TaskExecutors.newExecutor(serverName, serverPlan.getMaxConcurrentDatabases() + 1
+                + (serverPlan.getStatements() == null ? 0 : 1));
+        this.refreshExecutor = TaskExecutors.newExecutor(serverName + " refresh",
+                serverPlan.getMaxConcurrentDatabases());
+        this.stats = new CollectionStats(serverPlan.isSelfMonitoringPerQuery());
+        this.bulkhead = serverPlan.getBulkheadMaxConnections() == 0 ? null : new Bulkhead(serverName,
+                serverPlan.getBulkheadMaxConnections(), serverPlan.getBulkheadMaxInFlight(),
+                stats.getBulkheadWaitTimes());
+        this.waitEventSampler = startWaitEventSampler(serverPlan.getWaitEvents());
+    }
+
+    // the sampler has a pool of its own, its connection is in use several times per run
+    private WaitEventSampler startWaitEventSampler(WaitEventsPlan plan) {
+        if (plan == null) {
+            return null;
+        }
+        ConnectionPool pool = new ConnectionPool(serverName + "|" + plan.getDatabase().getDbName() + "|wait events",
+                plan.getDatabase().getConnConfig(), 1, plan.getSampleIntervalMillis(),
+                serverPlan.getValidationIntervalMillis(), serverPlan.getMaxIdleMillis(), stats.getConnectTimes(),
+                bulkhead);
+        WaitEventSampler sampler = new WaitEventSampler(serverName, plan, pool);
+        sampler.start();
+        return sampler;
+    }
+
+    /**
+     * @return true if the context can be {@link #update updated} to the given plan of the server, false if it has to
+     * be replaced because settings it was created with changed
+     */
+    public boolean canUpdateTo(ServerPlan newPlan) {
+        ServerPlan plan = serverPlan;
+        return plan.getServerName().equals(newPlan.getServerName())
+                && plan.getMaxPoolSize() == newPlan.getMaxPoolSize()
+                && plan.getAcquireTimeoutMillis() == newPlan.getAcquireTimeoutMillis()
+                && plan.getValidationIntervalMillis() == newPlan.getValidationIntervalMillis()
+                && plan.getMaxIdleMillis() == newPlan.getMaxIdleMillis()
+                && plan.getMetricPathCacheSize() == newPlan.getMetricPathCacheSize()
+                && plan.getMaxConcurrentDatabases() == newPlan.getMaxConcurrentDatabases()
+                && (plan.getStatements() == null) == (newPlan.getStatements() == null)
+                && plan.getBreakerFailureThreshold() == newPlan.getBreakerFailureThreshold()
+                && plan.getBreakerBackoffMillis() == newPlan.getBreakerBackoffMillis()
+                && plan.getBreakerMaxBackoffMillis() == newPlan.getBreakerMaxBackoffMillis()
+                && plan.isSelfMonitoringPerQuery() == newPlan.isSelfMonitoringPerQuery()
+                && plan.getBulkheadMaxConnections() == newPlan.getBulkheadMaxConnections()
+                && plan.getBulkheadMaxInFlight() == newPlan.getBulkheadMaxInFlight();
+    }
+
+    /**
+     * Moves the context over to the plan of the server compiled from a reloaded config.yml. The pools and counters of
+     * the databases whose connection settings did not change are kept, and so are the cached results, top rows,
+     * breakers and shards of the queries the compiler reused. The statements prepared for the other queries are closed
+     * on the connections kept. The state of the other databases and queries is released, and the databases discovered
+     * are taken over without listing them again. The wait events are sampled anew only if the settings of the sampler
+     * changed.
+     *
+     * @param newPlan     plan of the server, {@link #canUpdateTo} has to be true
+     * @param resultCache results cache shared by the servers, the current one unless its size changed
+     */
+    public synchronized void update(ServerPlan newPlan, QueryResultCache resultCache) {
+        Map<String, PostgresConnectionConfig> oldConfigs = getConnConfigs();
+        List<QueryPlan> oldQueries = getAllQueries();
+        if (!sameStatementsUrl(serverPlan.getStatements(), newPlan.getStatements())) {
+            statementSnapshot = new StatementSnapshot();
+        }
+        WaitEventSampler sampler = waitEventSampler;
+        boolean resample = sampler == null ? newPlan.getWaitEvents() != null
+                : !sampler.getPlan().samplesLike(newPlan.getWaitEvents());
+        serverPlan = newPlan;
+        if (resample) {
+            // the samples taken so far are dropped along with the sampler
+            if (sampler != null) {
+                sampler.close();
+            }
+            waitEventSampler = startWaitEventSampler(newPlan.getWaitEvents());
+        }
+        discovery = newPlan.getDiscovery() == null ? null : new DatabaseDiscovery(serverName,
+                newPlan.getDiscovery(), newPlan.getDatabases(), discovery);
+        if (resultCache != this.resultCache) {
+            // the results of all the servers were left in the cache that is replaced
+            this.resultCache = resultCache;
+        }
+        Set<QueryPlan> queries = Collections.newSetFromMap(new IdentityHashMap<>());
+        queries.addAll(getAllQueries());
+        // statements prepared for the queries forgotten, unless a query of the new plan runs the same statement
+        Set<String> staleStmts = new HashSet<>();
+        int forgotten = 0;
+        for (QueryPlan query : oldQueries) {
+            if (!queries.contains(query)) {
+                forgetQuery(query);
+                staleStmts.add(query.getQueryStmt());
+                forgotten++;
+            }
+        }
+        for (QueryPlan query : queries) {
+            staleStmts.remove(query.getQueryStmt());
+        }
+        Map<String, PostgresConnectionConfig> newConfigs = getConnConfigs();
+        int closed = 0;
+        for (Map.Entry<String, PostgresConnectionConfig> entry : oldConfigs.entrySet()) {
+            PostgresConnectionConfig newConfig = newConfigs.get(entry.getKey());
+            if (!entry.getValue().equals(newConfig)) {
+                closed += closePools(entry.getKey());
+            }
+            // the counters are kept across a change of settings such as the statement timeout, unless the
+            // connections go elsewhere
+            if (newConfig == null || !Objects.equals(entry.getValue().getUrl(), newConfig.getUrl())) {
+                counterStores.remove(entry.getKey());
+            }
+        }
+        if (!staleStmts.isEmpty()) {
+            // the pools kept would otherwise hold on to the statements until their connections are closed
+            for (ConnectionPool pool : pools.values()) {
+                pool.discard(staleStmts);
+            }
+        }
+        LOGGER.info("Updated server {} to the reloaded config, released the state of {} queries and closed {} " +
+                "connection pools", serverName, forgotten, closed);
+    }
+
+    private static boolean sameStatementsUrl(StatementsPlan previous, StatementsPlan statements) {
+        return previous != null && statements != null && previous.getDatabase().getConnConfig().getUrl()
+                .equals(statements.getDatabase().getConnConfig().getUrl());
+    }
+
+    // the connection settings of all the databases known to the context, by database name
+    private Map<String, PostgresConnectionConfig> getConnConfigs() {
+        Map<String, PostgresConnectionConfig> configs = new HashMap<>();
+        List<DatabasePlan> databases = new ArrayList<>();
+        if (discovery != null) {
+            databases.add(discovery.getPlan().getDatabase());
+            databases.addAll(discovery.getDatabases());
+        }
+        if (serverPlan.getStatements() != null) {
+            databases.add(serverPlan.getStatements().getDatabase());
+        }
+        if (serverPlan.getServerLevelDatabase() != null) {
+            databases.add(serverPlan.getServerLevelDatabase());
+        }
+        databases.addAll(serverPlan.getDatabases());
+        for (DatabasePlan database : databases) {
+            configs.put(database.getDbName(), database.getConnConfig());
+        }
+        return configs;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public ServerPlan getServerPlan() {
+        return serverPlan;
+    }
+
+    public MetricPathCache getPathCache() {
+        return pathCache;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public CollectionStats getStats() {
+        return stats;
+    }
+
+    public QueryScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return the bulkhead shared by the connection pools of the server, null if there is none
+     */
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    public QueryResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Runs the refresh of the stale results of a query in the background, unless a refresh of the query is already
+     * running or all the refresh threads are busy.
+     *
+     * @return true if the refresh was started
+     */
+    public boolean refreshInBackground(QueryPlan query, Runnable refresh) {
+        if (!refreshing.add(query)) {
+            return false;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    refresh.run();
+                } finally {
+                    refreshing.remove(query);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(query);
+            return false;
+        }
+    }
+
+    /**
+     * @return true while the results of the query are refreshed in the background
+     */
+    public boolean isRefreshing(QueryPlan query) {
+        return refreshing.contains(query);
+    }
+
+    /**
+     * @return the counters of the statements of pg_stat_statements as of the last run, to be locked while read
+     */
+    public StatementSnapshot getStatementSnapshot() {
+        return statementSnapshot;
+    }
+
+    /**
+     * @return the sampler of the wait events of the server, null if wait events are not sampled
+     */
+    public WaitEventSampler getWaitEventSampler() {
+        return waitEventSampler;
+    }
+
+    /**
+     * @return the sorted ids of the rows reported individually on the last run of the query, null if none
+     */
+    public long[] getTopRows(QueryPlan query) {
+        return topRows.get(query);
+    }
+
+    public void setTopRows(QueryPlan query, long[] rowIds) {
+        topRows.put(query, rowIds);
+    }
+
+    /**
+     * Returns the circuit breaker of the query, creating it on first use. Query plans are compiled per database, so
+     * there is one breaker per server, database and query.
+     */
+    public CircuitBreaker getCircuitBreaker(QueryPlan query) {
+        return breakers.computeIfAbsent(query, q -> new CircuitBreaker(serverPlan.getBreakerFailureThreshold(),
+                serverPlan.getBreakerBackoffMillis(), serverPlan.getBreakerMaxBackoffMillis()));
+    }
+
+    /**
+     * Returns the metrics of the shards of a sharded query, creating them on first use.
+     */
+    public ShardedResults getShardedResults(QueryPlan query) {
+        return shardedResults.computeIfAbsent(query, q -> new ShardedResults(q.getShards()));
+    }
+
+    /**
+     * Returns the counter samples of the database, creating the store on first use.
+     */
+    public CounterStore getCounterStore(DatabasePlan database) {
+        return counterStores.computeIfAbsent(database.getDbName(), db -> new CounterStore());
+    }
+
+    /**
+     * Forgets the counters that were not sampled since the given time, such as the rows of dropped tables.
+     */
+    public void expireCounters(long olderThanMillis) {
+        for (Map.Entry<String, CounterStore> entry : counterStores.entrySet()) {
+            int removed = entry.getValue().expire(olderThanMillis);
+            if (removed > 0) {
+                LOGGER.debug("Forgot {} counters no longer returned for database {} server {}", removed,
+                        entry.getKey(), serverName);
+            }
+        }
+    }
+
+    /**
+     * Returns the configured databases followed by the discovered ones, listing the databases of the server again
+     * first if the discovery is due. The state kept for databases that are no longer found is released.
+     */
+    public List<DatabasePlan> getDatabases(long now) {
+        if (discovery == null) {
+            return serverPlan.getDatabases();
+        }
+        for (DatabasePlan dropped : discovery.refreshIfDue(getPool(discovery.getPlan().getDatabase()), now)) {
+            forgetDatabase(dropped);
+        }
+        List<DatabasePlan> databases = new ArrayList<>(serverPlan.getDatabases());
+        databases.addAll(discovery.getDatabases());
+        return databases;
+    }
+
+    private void forgetDatabase(DatabasePlan database) {
+        // the discovery database may itself have been discovered, its pool is still needed
+        if (!database.getDbName().equals(discovery.getPlan().getDatabase().getDbName())) {
+            closePools(database.getDbName());
+        }
+        counterStores.remove(database.getDbName());
+        for (QueryPlan query : database.getQueries()) {
+            forgetQuery(query);
+        }
+    }
+
+    private void forgetQuery(QueryPlan query) {
+        resultCache.invalidate(query);
+        topRows.remove(query);
+        breakers.remove(query);
+        shardedResults.remove(query);
+        stats.forget(query);
+    }
+
+    // closes the pools of all the routes of the database, returns how many were open
+    private int closePools(String dbName) {
+        int closed = 0;
+        for (Route route : Route.values()) {
+            ConnectionPool pool = pools.remove(route == Route.PRIMARY ? dbName : dbName + "|" + route.getName());
+            if (pool != null) {
+                pool.close();
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * @return the queries of the configured databases, the server level queries and those of the discovered
+     * databases
+     */
+    public List<QueryPlan> getAllQueries() {
+        List<QueryPlan> queries = new ArrayList<>();
+        List<DatabasePlan> databases = new ArrayList<>(serverPlan.getDatabases());
+        if (serverPlan.getServerLevelDatabase() != null) {
+            databases.add(serverPlan.getServerLevelDatabase());
+        }
+        if (discovery != null) {
+            databases.addAll(discovery.getDatabases());
+        }
+        for (DatabasePlan database : databases) {
+            queries.addAll(database.getQueries());
+        }
+        return queries;
+    }
+
+    /**
+     * Returns the pool for the database, creating it on first use.
+     */
+    public ConnectionPool getPool(DatabasePlan database) {
+        return getPool(database, Route.PRIMARY);
+    }
+
+    /**
+     * Returns the pool for the queries of the database with the given route, creating it on first use. On a server
+     * with several hosts each route has its own pool, otherwise all the queries share the pool of the database.
+     */
+    public ConnectionPool getPool(DatabasePlan database, Route route) {
+        return pools.computeIfAbsent(poolKey(database, route), key -> new ConnectionPool(serverName + "|" + key,
+                database.getConnConfig().routedTo(route), serverPlan.getMaxPoolSize(),
+                serverPlan.getAcquireTimeoutMillis(), serverPlan.getValidationIntervalMillis(),
+                serverPlan.getMaxIdleMillis(), stats.getConnectTimes(), bulkhead));
+    }
+
+    private static String poolKey(DatabasePlan database, Route route) {
+        return route == Route.PRIMARY || !database.getConnConfig().isMultiHost() ? database.getDbName()
+                : database.getDbName() + "|" + route.getName();
+    }
+
+    @Override
+    public void close() {
+        // database tasks and refreshes still running fail once their pool is closed
+        executor.shutdownNow();
+        refreshExecutor.shutdownNow();
+        WaitEventSampler sampler = waitEventSampler;
+        if (sampler != null) {
+            sampler.close();
+        }
+        LOGGER.debug("Closing {} connection pools for server {}", pools.size(), serverName);
+        for (ConnectionPool pool : pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+        pathCache.invalidateAll();
+        counterStores.clear();
+        for (QueryPlan query : getAllQueries()) {
+            resultCache.invalidate(query);
+        }
+        topRows.clear();
+        breakers.clear();
+        shardedResults.clear();
+        stats.clear();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.activity;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The number of sessions per state and wait event of the last samples of pg_stat_activity, in a ring buffer with one
+ * row of counters per sample that is overwritten by the sample taken a window later. The counters, the key table and
+ * the names are allocated up front, so the memory used depends on the number of samples in the window and the number
+ * of distinct keys allowed, not on the number of sessions. A new key costs a copy of its names the first time it is
+ * seen, keys past the maximum are counted under a single "Other" key.
+ */
+public class WaitEventRing {
+    static final String OTHER = "Other";
+    // sessions that are not waiting are running on a CPU, or waiting for something not instrumented
+    static final String NOT_WAITING = "CPU";
+
+    private final int maxKeys;
+    // counters of each sample by key, the key at maxKeys is the other key
+    private final int[][] counts;
+    // when each sample was taken, 0 while the sample is being written or if there is none
+    private final long[] sampleTimes;
+    private int next;
+    private int writing = -1;
+    private long writingTime;
+    // open addressing table of key indexes plus one, 0 marks an empty slot
+    private final int[] table;
+    private final byte[][] states;
+    private final byte[][] types;
+    private final byte[][] events;
+    private final String[][] names;
+    private int keyCount;
+
+    public WaitEventRing(int samples, int maxKeys) {
+        this.maxKeys = maxKeys;
+        this.counts = new int[samples][maxKeys + 1];
+        this.sampleTimes = new long[samples];
+        int capacity = Integer.highestOneBit(Math.max(2, maxKeys) * 2 - 1) << 1;
+        this.table = new int[capacity];
+        this.states = new byte[maxKeys][];
+        this.types = new byte[maxKeys][];
+        this.events = new byte[maxKeys][];
+        this.names = new String[maxKeys + 1][];
+        this.names[maxKeys] = new String[]{OTHER, OTHER, OTHER};
+    }
+
+    /**
+     * Starts writing a sample over the oldest one.
+     */
+    public synchronized void begin(long timeMillis) {
+        writing = next;
+        next = (next + 1) % counts.length;
+        Arrays.fill(counts[writing], 0);
+        sampleTimes[writing] = 0;
+        writingTime = timeMillis;
+    }
+
+    /**
+     * Adds sessions to the sample being written. The names are the text of the columns as sent by the server, null
+     * for NULL, and are only copied if the key was not seen before.
+     */
+    public synchronized void add(byte[] state, byte[] waitEventType, byte[] waitEvent, int sessions) {
+        counts[writing][keyOf(state, waitEventType, waitEvent)] += sessions;
+    }
+
+    /**
+     * Completes the sample being written, it is included in the averages from now on. A sample that is not
+     * completed, because it failed, is overwritten by the next one.
+     */
+    public synchronized void commit() {
+        sampleTimes[writing] = writingTime;
+        writing = -1;
+    }
+
+    /**
+     * Sums the sessions of every key over the completed samples taken since the given time, and keeps the largest
+     * number of sessions of a key in one sample.
+     *
+     * @param sums  filled with the sum of the sessions of each key, at least {@link #getKeyCapacity} long
+     * @param peaks filled with the peak of the sessions of each key, at least {@link #getKeyCapacity} long
+     * @return number of samples summed
+     */
+    public synchronized int aggregate(long sinceMillis, long[] sums, int[] peaks) {
+        Arrays.fill(sums, 0, maxKeys + 1, 0L);
+        Arrays.fill(peaks, 0, maxKeys + 1, 0);
+        int samples = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (sampleTimes[i] == 0 || sampleTimes[i] < sinceMillis) {
+                continue;
+            }
+            samples++;
+            int[] sample = counts[i];
+            for (int key = 0; key <= maxKeys; key++) {
+                sums[key] += sample[key];
+                if (sample[key] > peaks[key]) {
+                    peaks[key] = sample[key];
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * @return number of keys, including the other key, to size the arrays passed to {@link #aggregate}
+     */
+    public int getKeyCapacity() {
+        return maxKeys + 1;
+    }
+
+    /**
+     * @return the state, wait event type and wait event of a key, or null if the key is not used
+     */
+    public synchronized String[] getNames(int key) {
+        return names[key];
+    }
+
+    private int keyOf(byte[] state, byte[] type, byte[] event) {
+        int mask = table.length - 1;
+        int slot = (31 * (31 * Arrays.hashCode(state) + Arrays.hashCode(type)) + Arrays.hashCode(event)) & mask;
+        while (table[slot] != 0) {
+            int key = table[slot] - 1;
+            if (Arrays.equals(states[key], state) && Arrays.equals(types[key], type)
+                    && Arrays.equals(events[key], event)) {
+                return key;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (keyCount == maxKeys) {
+            return maxKeys;
+        }
+        int key = keyCount++;
+        states[key] = copy(state);
+        types[key] = copy(type);
+        events[key] = copy(event);
+        names[key] = new String[]{name(state, OTHER), name(type, NOT_WAITING), name(event, NOT_WAITING)};
+        table[slot] = key + 1;
+        return key;
+    }
+
+    private static byte[] copy(byte[] bytes) {
+        return bytes == null ? null : bytes.clone();
+    }
+
+    private static String name(byte[] bytes, String ifNull) {
+        return bytes == null ? ifNull : new String(bytes, StandardCharsets.UTF_8);
+    }
+}
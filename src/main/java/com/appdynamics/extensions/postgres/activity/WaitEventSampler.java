@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.activity;
+
+import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
+import com.appdynamics.extensions.metrics.Metric;
+import com.appdynamics.extensions.postgres.connection.ConnectionPool;
+import com.appdynamics.extensions.postgres.connection.PooledConnection;
+import com.appdynamics.extensions.postgres.plan.WaitEventsPlan;
+import com.appdynamics.extensions.postgres.schedule.TaskExecutors;
+import org.slf4j.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.appdynamics.extensions.postgres.util.Constants.WAIT_EVENTS_PATH;
+
+/**
+ * Samples the state and wait event of the active sessions of a server from pg_stat_activity in the background, several
+ * times per run, and reports the average and peak number of sessions per wait event over the last window on every
+ * run. The sessions are counted by the server, so a sample reads one row per distinct state and wait event whatever
+ * the number of sessions. Samples are taken on one connection of a pool of their own, with a statement prepared once
+ * per connection, and their names are only decoded the first time they are seen.
+ */
+public class WaitEventSampler implements AutoCloseable {
+    private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(WaitEventSampler.class);
+    // wait_event_type and wait_event are there from PostgreSQL 9.6
+    static final String SAMPLE_QUERY = "SELECT state, wait_event_type, wait_event, count(*) " +
+            "FROM pg_catalog.pg_stat_activity WHERE state IS NOT NULL AND state <> 'idle' " +
+            "AND pid <> pg_backend_pid() GROUP BY 1, 2, 3";
+
+    private final String serverName;
+    private final WaitEventsPlan plan;
+    private final ConnectionPool pool;
+    private final WaitEventRing ring;
+    private final int timeoutSeconds;
+    // filled by publish, which runs once per run
+    private final long[] sums;
+    private final int[] peaks;
+    private ScheduledExecutorService scheduler;
+    // true from the first failed sample up to the next one that succeeds, so that a failure is logged once
+    private boolean failing;
+
+    public WaitEventSampler(String serverName, WaitEventsPlan plan, ConnectionPool pool) {
+        this.serverName = serverName;
+        this.plan = plan;
+        this.pool = pool;
+        // one more sample than fits in the window, the oldest one may be overwritten while the window is summed
+        int samples = (int) ((plan.getWindowMillis() + plan.getSampleIntervalMillis() - 1)
+                / plan.getSampleIntervalMillis()) + 1;
+        this.ring = new WaitEventRing(samples, plan.getMaxWaitEvents());
+        this.timeoutSeconds = (int) Math.max(1, (plan.getSampleIntervalMillis() + 999) / 1000);
+        this.sums = new long[ring.getKeyCapacity()];
+        this.peaks = new int[ring.getKeyCapacity()];
+    }
+
+    public WaitEventsPlan getPlan() {
+        return plan;
+    }
+
+    public synchronized void start() {
+        if (scheduler == null) {
+            scheduler = TaskExecutors.newScheduler(serverName + " wait events");
+            scheduler.scheduleAtFixedRate(this::sample, 0, plan.getSampleIntervalMillis(), TimeUnit.MILLISECONDS);
+            LOGGER.info("Sampling the wait events of server {} every {} ms", serverName,
+                    plan.getSampleIntervalMillis());
+        }
+    }
+
+    /**
+     * Takes one sample. A sample that is not done by the time the next one is due delays the next one, samples never
+     * overlap.
+     */
+    void sample() {
+        long now = System.currentTimeMillis();
+        try (PooledConnection pooled = pool.acquire()) {
+            try {
+                PreparedStatement stmt = pooled.prepare(SAMPLE_QUERY);
+                stmt.setQueryTimeout(timeoutSeconds);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    read(rs, now);
+                }
+            } catch (SQLException se) {
+                pooled.invalidateIfBroken(se);
+                throw se;
+            }
+            if (failing) {
+                LOGGER.info("Sampling the wait events of server {} again", serverName);
+                failing = false;
+            }
+        } catch (SQLException | ClassNotFoundException e) {
+            onFailure(e);
+        } catch (RuntimeException e) {
+            // the scheduler stops running a task that throws
+            onFailure(e);
+        }
+    }
+
+    // the names are read as the bytes the driver received, which are only copied if the wait event is new
+    private void read(ResultSet rs, long now) throws SQLException {
+        ring.begin(now);
+        while (rs.next()) {
+            ring.add(rs.getBytes(1), rs.getBytes(2), rs.getBytes(3), rs.getInt(4));
+        }
+        ring.commit();
+    }
+
+    private void onFailure(Exception e) {
+        if (failing) {
+            LOGGER.debug("Error sampling the wait events of server {}", serverName, e);
+        } else {
+            failing = true;
+            LOGGER.warn("Error sampling the wait events of server {}, the wait events are reported from the samples " +
+                    "taken until it succeeds again", serverName, e);
+        }
+    }
+
+    /**
+     * Adds the average and peak number of active sessions per state and wait event over the samples of the last
+     * window. The averages are reported in hundredths of a session, metric values are integers.
+     */
+    public synchronized void publish(String metricPrefix, List<Metric> out) {
+        int samples = ring.aggregate(System.currentTimeMillis() - plan.getWindowMillis(), sums, peaks);
+        out.add(metric(metricPrefix, "Samples", samples));
+        if (samples == 0) {
+            return;
+        }
+        long total = 0;
+        for (int key = 0; key < sums.length; key++) {
+            // wait events seen before but not in the window
+            if (peaks[key] == 0) {
+                continue;
+            }
+            total += sums[key];
+            String[] names = ring.getNames(key);
+            out.add(metric(metricPrefix, "Average Active Sessions (x100)", sums[key] * 100 / samples, names));
+            out.add(metric(metricPrefix, "Max Active Sessions", peaks[key], names));
+        }
+        out.add(metric(metricPrefix, "Average Active Sessions (x100)", total * 100 / samples));
+    }
+
+    private Metric metric(String metricPrefix, String metricName, long value, String... path) {
+        String[] tokens = new String[path.length + 3];
+        tokens[0] = serverName;
+        tokens[1] = WAIT_EVENTS_PATH;
+        System.arraycopy(path, 0, tokens, 2, path.length);
+        tokens[tokens.length - 1] = metricName;
+        return new Metric(metricName, String.valueOf(value), metricPrefix, tokens);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        pool.close();
+    }
+}
@@ -15,34 +15,85 @@
 
 package com.appdynamics.extensions.postgres.column;
 
+import com.appdynamics.extensions.postgres.util.ConfigUtils;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+import static com.appdynamics.extensions.postgres.util.Constants.DELTA;
+import static com.appdynamics.extensions.postgres.util.Constants.RATE;
+
 public class Column {
-    private String name;
-    private String type;
-    private Map<String, ?> properties;
+    private final String name;
+    private final ColumnType type;
+    private final Map<String, ?> properties;
+    private final CounterMode counterMode;
+    private final Map<String, ?> metricProperties;
+    private final String expression;
 
-    public String getName() {
-        return name;
+    public Column(String name, ColumnType type, Map<String, ?> properties) {
+        this(name, type, properties, null);
     }
 
-    public void setName(String name) {
+    @JsonCreator
+    public Column(@JsonProperty("name") String name, @JsonProperty("type") ColumnType type,
+                  @JsonProperty("properties") Map<String, ?> properties,
+                  @JsonProperty("expression") String expression) {
         this.name = name;
+        this.type = type;
+        this.properties = properties == null ? null : Collections.unmodifiableMap(new LinkedHashMap<>(properties));
+        this.expression = expression;
+        if (type == ColumnType.DERIVED) {
+            // the expression refers to the changes of counters with delta() instead
+            this.counterMode = CounterMode.NONE;
+        } else if (ConfigUtils.getBoolean(properties, RATE, false)) {
+            this.counterMode = CounterMode.RATE;
+        } else if (ConfigUtils.getBoolean(properties, DELTA, false)) {
+            this.counterMode = CounterMode.DELTA;
+        } else {
+            this.counterMode = CounterMode.NONE;
+        }
+        // counters are computed by the extension, the metric writer must not compute the delta again
+        if (properties == null) {
+            this.metricProperties = null;
+        } else {
+            Map<String, Object> metricProperties = new LinkedHashMap<>(properties);
+            metricProperties.remove(DELTA);
+            metricProperties.remove(RATE);
+            this.metricProperties = Collections.unmodifiableMap(metricProperties);
+        }
     }
 
-    public String getType() {
-        return type;
+    public String getName() {
+        return name;
     }
 
-    public void setType(String type) {
-        this.type = type;
+    public ColumnType getType() {
+        return type;
     }
 
     public Map<String, ?> getProperties() {
         return properties;
     }
 
-    public void setProperties(Map<String, ?> properties) {
-        this.properties = properties;
+    /**
+     * @return the expression computing the value of a derived column, null for the other columns
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    public CounterMode getCounterMode() {
+        return counterMode;
+    }
+
+    /**
+     * @return the properties to create the metric with, without the counter settings handled by the extension
+     */
+    public Map<String, ?> getMetricProperties() {
+        return metricProperties;
     }
 }
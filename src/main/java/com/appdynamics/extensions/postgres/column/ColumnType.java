@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.column;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+/**
+ * How the value of a configured column is used when building metrics.
+ */
+public enum ColumnType {
+    // value is added as a token to the metric path
+    METRIC_PATH("metricPath"),
+    // value is reported as the value of the metric named after the column
+    METRIC_VALUE("metricValue"),
+    // value is computed from the metricValue columns of the row with the expression of the column
+    DERIVED("derived");
+
+    private final String configName;
+
+    ColumnType(String configName) {
+        this.configName = configName;
+    }
+
+    public String getConfigName() {
+        return configName;
+    }
+
+    @JsonCreator
+    public static ColumnType fromConfigName(String configName) {
+        for (ColumnType type : values()) {
+            if (type.configName.equalsIgnoreCase(configName)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported column type " + configName + " in config.yml");
+    }
+}
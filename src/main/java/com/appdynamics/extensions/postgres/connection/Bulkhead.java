@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.connection;
+
+import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
+import com.appdynamics.extensions.postgres.stats.LatencyHistogram;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the load all the connection pools of one server put on it, whatever the number of databases: at most
+ * {@code maxConnections} physical connections are open to the server at once, idle or in use, and at most
+ * {@code maxInFlight} of them are on loan, i.e. running queries. Both limits are fair semaphores, so the database
+ * tasks and background refreshes of the server get connections in the order they asked for them.
+ * <p>
+ * Pools keep their idle connections open across runs, so when no connection permit is left the least recently used
+ * idle connection of any pool of the server is closed to make room, and connections given back while others are
+ * waiting are closed instead of being kept idle. As long as {@code maxInFlight} is not larger than
+ * {@code maxConnections}, a task holding an in-flight permit always finds a connection permit or an idle connection
+ * to close.
+ */
+public class Bulkhead {
+    private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(Bulkhead.class);
+
+    private final String name;
+    private final int maxConnections;
+    private final int maxInFlight;
+    private final Semaphore connections;
+    private final Semaphore inFlight;
+    // time spent waiting for a permit, including the waits that timed out, may be null
+    private final LatencyHistogram waitTimes;
+    private final List<ConnectionPool> pools = new CopyOnWriteArrayList<>();
+
+    public Bulkhead(String name, int maxConnections, int maxInFlight, LatencyHistogram waitTimes) {
+        if (maxConnections < 1 || maxInFlight < 1 || maxInFlight > maxConnections) {
+            throw new IllegalArgumentException("Bulkhead of " + name + " should allow at least 1 connection and at " +
+                    "most as many connections in flight as open, got " + maxConnections + " and " + maxInFlight);
+        }
+        this.name = name;
+        this.maxConnections = maxConnections;
+        this.maxInFlight = maxInFlight;
+        this.connections = new Semaphore(maxConnections, true);
+        this.inFlight = new Semaphore(maxInFlight, true);
+        this.waitTimes = waitTimes;
+    }
+
+    void register(ConnectionPool pool) {
+        pools.add(pool);
+    }
+
+    void unregister(ConnectionPool pool) {
+        pools.remove(pool);
+    }
+
+    /**
+     * Waits for one of the {@code maxInFlight} permits, to be given back with {@link #exitInFlight}.
+     *
+     * @return false if no permit was given back in time
+     */
+    boolean enterInFlight(long timeoutNanos) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return inFlight.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            recordWaitSince(start);
+        }
+    }
+
+    void exitInFlight() {
+        inFlight.release();
+    }
+
+    /**
+     * Waits for one of the {@code maxConnections} permits before a new physical connection is opened, closing the
+     * least recently used idle connection of the server if none is left. The permit is given back with
+     * {@link #connectionClosed} once the physical connection is closed.
+     *
+     * @return false if no permit was given back in time
+     */
+    boolean reserveConnection(long timeoutNanos) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            // a zero timeout still honours the fairness of the semaphore, unlike tryAcquire()
+            if (connections.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+            closeOldestIdle();
+            return connections.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            recordWaitSince(start);
+        }
+    }
+
+    void connectionClosed() {
+        connections.release();
+    }
+
+    /**
+     * @return true if a pool is waiting to open a connection, in which case connections given back are closed
+     */
+    boolean hasConnectionWaiters() {
+        return connections.hasQueuedThreads();
+    }
+
+    private void recordWaitSince(long startNanos) {
+        if (waitTimes != null) {
+            waitTimes.recordSince(startNanos);
+        }
+    }
+
+    private void closeOldestIdle() {
+        ConnectionPool oldest = null;
+        long oldestLastUsed = Long.MAX_VALUE;
+        for (ConnectionPool pool : pools) {
+            long lastUsed = pool.getOldestIdleLastUsed();
+            if (lastUsed < oldestLastUsed) {
+                oldest = pool;
+                oldestLastUsed = lastUsed;
+            }
+        }
+        if (oldest != null && oldest.closeOldestIdle()) {
+            LOGGER.debug("Closed an idle connection of pool {} to stay within the bulkhead of {}", oldest.getName(),
+                    name);
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return number of physical connections open to the server, or being opened
+     */
+    public int getOpenConnections() {
+        return maxConnections - connections.availablePermits();
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+}
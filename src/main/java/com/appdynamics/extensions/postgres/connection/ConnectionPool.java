@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.connection;
+
+import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
+import com.appdynamics.extensions.postgres.stats.LatencyHistogram;
+import org.slf4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.appdynamics.extensions.postgres.util.Constants.DRIVER;
+
+/**
+ * A small bounded pool of physical connections for one (server, database) pair. Connections are kept open across
+ * queries and across monitor runs. An idle connection is only validated with a round trip once it has been idle for
+ * longer than the validation interval, and it is closed once it has been idle for longer than the max idle time. The
+ * pools of a server may share a {@link Bulkhead} that bounds the connections open to the server and in use across
+ * all its databases.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(ConnectionPool.class);
+
+    private final String name;
+    private final PostgresConnectionConfig connConfig;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final long maxIdleMillis;
+    // time taken to open new connections, may be null
+    private final LatencyHistogram connectTimes;
+    // shared by the pools of the server, may be null
+    private final Bulkhead bulkhead;
+    // permits bound the number of physical connections, idle or in use
+    private final Semaphore permits;
+    // most recently used connection is at the head so that the warmest connection is handed out first
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    // the physical connections of the pool, idle or in use
+    private final Set<PooledConnection> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    public ConnectionPool(String name, PostgresConnectionConfig connConfig, int maxSize, long acquireTimeoutMillis,
+                          long validationIntervalMillis, long maxIdleMillis) {
+        this(name, connConfig, maxSize, acquireTimeoutMillis, validationIntervalMillis, maxIdleMillis, null, null);
+    }
+
+    public ConnectionPool(String name, PostgresConnectionConfig connConfig, int maxSize, long acquireTimeoutMillis,
+                          long validationIntervalMillis, long maxIdleMillis, LatencyHistogram connectTimes,
+                          Bulkhead bulkhead) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Connection pool size should be at least 1 for " + name);
+        }
+        this.name = name;
+        this.connConfig = connConfig;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.maxIdleMillis = maxIdleMillis;
+        this.connectTimes = connectTimes;
+        this.permits = new Semaphore(maxSize, true);
+        this.bulkhead = bulkhead;
+        if (bulkhead != null) {
+            bulkhead.register(this);
+        }
+    }
+
+    /**
+     * Hands out a connection from the pool, opening a new one if no idle connection is usable. The caller has to
+     * close the returned {@link PooledConnection} to give it back to the pool. With a bulkhead, the time to wait for
+     * it counts towards the acquire timeout as well.
+     */
+    public PooledConnection acquire() throws SQLException, ClassNotFoundException {
+        if (closed) {
+            throw new SQLException("Connection pool " + name + " is closed");
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        if (bulkhead != null) {
+            await(bulkhead::enterInFlight, deadline, "a connection in flight from the bulkhead of pool");
+        }
+        try {
+            await(timeout -> permits.tryAcquire(timeout, TimeUnit.NANOSECONDS), deadline,
+                    "a connection from pool");
+        } catch (SQLException se) {
+            exitInFlight();
+            throw se;
+        }
+        evictStale();
+        boolean reserved = false;
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isUsable(pooled)) {
+                    pooled.lend();
+                    return pooled;
+                }
+                closePhysical(pooled);
+            }
+            if (bulkhead != null) {
+                await(bulkhead::reserveConnection, deadline, "a new connection from the bulkhead of pool");
+                reserved = true;
+            }
+            LOGGER.debug("Opening a new connection for pool {}", name);
+            long start = System.nanoTime();
+            Connection conn = ConnectionUtils.getConnection(DRIVER, connConfig.getUrl(), connConfig.getProps());
+            try {
+                initSession(conn);
+            } catch (SQLException | RuntimeException e) {
+                closeQuietly(conn);
+                throw e;
+            }
+            if (connectTimes != null) {
+                connectTimes.recordSince(start);
+            }
+            PooledConnection opened = new PooledConnection(this, conn);
+            open.add(opened);
+            return opened;
+        } catch (SQLException | ClassNotFoundException | RuntimeException e) {
+            if (reserved) {
+                bulkhead.connectionClosed();
+            }
+            permits.release();
+            exitInFlight();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the statement_timeout of a new connection, the driver has no connection property for the settings of the
+     * session. The setting lasts as long as the connection.
+     */
+    private void initSession(Connection conn) throws SQLException {
+        long statementTimeoutMillis = connConfig.getStatementTimeoutMillis();
+        if (statementTimeoutMillis > 0) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("SET statement_timeout = " + statementTimeoutMillis);
+            }
+        }
+    }
+
+    private void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException se) {
+            LOGGER.debug("Error closing connection for pool {}", name, se);
+        }
+    }
+
+    private interface Permit {
+        boolean tryAcquire(long timeoutNanos) throws InterruptedException;
+    }
+
+    private void await(Permit permit, long deadline, String what) throws SQLException {
+        try {
+            if (!permit.tryAcquire(deadline - System.nanoTime())) {
+                throw new SQLException("Timed out after " + acquireTimeoutMillis + " ms waiting for " + what + " " +
+                        name);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for " + what + " " + name, ie);
+        }
+    }
+
+    void release(PooledConnection pooled) {
+        try {
+            pooled.giveBack();
+            // hand the connection over to another pool of the server that is waiting for the bulkhead
+            if (closed || pooled.isBroken() || pooled.getConnection().isClosed()
+                    || (bulkhead != null && bulkhead.hasConnectionWaiters())) {
+                closePhysical(pooled);
+            } else {
+                pooled.touch();
+                idle.offerFirst(pooled);
+            }
+        } catch (SQLException se) {
+            closePhysical(pooled);
+        } finally {
+            permits.release();
+            exitInFlight();
+        }
+        // the pool may have been closed while this connection was in use
+        if (closed) {
+            drainIdle();
+        }
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        long idleMillis = System.currentTimeMillis() - pooled.getLastUsed();
+        if (idleMillis > maxIdleMillis) {
+            LOGGER.debug("Evicting connection idle for {} ms from pool {}", idleMillis, name);
+            return false;
+        }
+        if (idleMillis > validationIntervalMillis) {
+            try {
+                return pooled.getConnection().isValid(1);
+            } catch (SQLException se) {
+                LOGGER.debug("Validation failed for a connection from pool {}", name, se);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the least recently used connections sit at the tail and are never polled while the head keeps being reused
+    private void evictStale() {
+        PooledConnection oldest;
+        while ((oldest = idle.peekLast()) != null
+                && System.currentTimeMillis() - oldest.getLastUsed() > maxIdleMillis) {
+            if (idle.removeLastOccurrence(oldest)) {
+                LOGGER.debug("Evicting stale connection from pool {}", name);
+                closePhysical(oldest);
+            }
+        }
+    }
+
+    private void drainIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            closePhysical(pooled);
+        }
+    }
+
+    private void closePhysical(PooledConnection pooled) {
+        open.remove(pooled);
+        pooled.closePhysical();
+        if (bulkhead != null) {
+            bulkhead.connectionClosed();
+        }
+    }
+
+    private void exitInFlight() {
+        if (bulkhead != null) {
+            bulkhead.exitInFlight();
+        }
+    }
+
+    /**
+     * Closes the statements prepared for the given queries on the connections of the pool, such as those of queries
+     * changed or removed by a reload of config.yml. The connections in use close them once they are given back.
+     */
+    public void discard(Collection<String> sqls) {
+        for (PooledConnection pooled : open) {
+            for (String sql : sqls) {
+                pooled.discardWhenIdle(sql);
+            }
+        }
+    }
+
+    /**
+     * @return when the least recently used idle connection was last used, Long.MAX_VALUE if there is none
+     */
+    long getOldestIdleLastUsed() {
+        PooledConnection oldest = idle.peekLast();
+        return oldest == null ? Long.MAX_VALUE : oldest.getLastUsed();
+    }
+
+    /**
+     * Closes the least recently used idle connection, to make room for a connection of another pool of the server.
+     *
+     * @return false if there was no idle connection
+     */
+    boolean closeOldestIdle() {
+        PooledConnection oldest = idle.pollLast();
+        if (oldest == null) {
+            return false;
+        }
+        closePhysical(oldest);
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (bulkhead != null) {
+            bulkhead.unregister(this);
+        }
+        drainIdle();
+        LOGGER.debug("Closed connection pool {}", name);
+    }
+}
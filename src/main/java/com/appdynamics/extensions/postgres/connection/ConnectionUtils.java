@@ -18,6 +18,8 @@ package com.appdynamics.extensions.postgres.connection;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -26,10 +28,31 @@ import java.util.Properties;
 public class ConnectionUtils {
 
     public static String buildURL(String protocol, String host, String port, String database, boolean useIpv6) {
-        if (useIpv6 && !host.matches("\\[.*]")) {
-            host = "[" + host + "]";
+        return buildURL(protocol, Collections.singletonList(host), port, database, useIpv6);
+    }
+
+    /**
+     * Builds a URL the driver connects to any of the hosts with. A host is either a name or address, which is given
+     * the default port, or {@code host:port}. IPv6 addresses are given as {@code [address]} or {@code [address]:port}
+     * or, when useIpv6 is set, as bare addresses.
+     */
+    public static String buildURL(String protocol, List<String> hosts, String port, String database,
+                                  boolean useIpv6) {
+        StringBuilder url = new StringBuilder(protocol).append("//");
+        for (int i = 0; i < hosts.size(); i++) {
+            String host = hosts.get(i).trim();
+            if (i > 0) {
+                url.append(',');
+            }
+            if (host.startsWith("[")) {
+                url.append(host.contains("]:") ? host : host + ":" + port);
+            } else if (useIpv6) {
+                url.append('[').append(host).append("]:").append(port);
+            } else {
+                url.append(host.contains(":") ? host : host + ":" + port);
+            }
         }
-        return protocol + "//" + host + ":" + port + "/" + database;
+        return url.append('/').append(database).toString();
     }
 
     public static Connection getConnection(String driver, String url, Properties props) throws SQLException,
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.connection;
+
+import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
+import org.postgresql.PGStatement;
+import org.slf4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A physical connection on loan from a {@link ConnectionPool}. Closing it returns the connection to the pool, unless
+ * it has been marked as broken in which case the physical connection is closed. The statements prepared on the
+ * connection are kept with it, so they live exactly as long as the physical connection.
+ */
+public class PooledConnection implements AutoCloseable {
+    private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(PooledConnection.class);
+    // SQLSTATE class 08 - connection exception
+    private static final String CONNECTION_EXCEPTION_CLASS = "08";
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private volatile long lastUsed;
+    private volatile boolean broken;
+    // keyed by query text, only ever used by the thread that has the connection on loan, or under the lock of the
+    // connection while it is idle
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    // guarded by this, the statements to close once the connection is given back
+    private final Set<String> discarded = new HashSet<>();
+    private boolean inUse = true;
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Marks the connection so that it is evicted instead of being returned to the pool.
+     */
+    public void invalidate() {
+        broken = true;
+    }
+
+    /**
+     * Evicts the connection if the exception indicates that the connection itself is no longer usable.
+     *
+     * @return true if the connection was evicted
+     */
+    public boolean invalidateIfBroken(SQLException se) {
+        String sqlState = se.getSQLState();
+        if (sqlState == null || sqlState.startsWith(CONNECTION_EXCEPTION_CLASS)) {
+            invalidate();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the statement prepared on this connection for the query, preparing it on first use. The statement is
+     * executed as a named server side statement, so the query is parsed and planned once per connection.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null || stmt.isClosed()) {
+            stmt = connection.prepareStatement(sql);
+            if (stmt.isWrapperFor(PGStatement.class)) {
+                // the driver only switches to a named statement after 5 executions by default
+                stmt.unwrap(PGStatement.class).setPrepareThreshold(1);
+            }
+            statements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * Closes and forgets the statement prepared for the query, so that it is prepared again on next use.
+     */
+    public void discard(String sql) {
+        closeQuietly(statements.remove(sql));
+    }
+
+    /**
+     * Closes the statement prepared for the query right away if the connection is idle, or once it is given back to
+     * the pool if it is in use, so that a query still running on it is not disturbed.
+     */
+    synchronized void discardWhenIdle(String sql) {
+        if (inUse) {
+            discarded.add(sql);
+        } else {
+            closeQuietly(statements.remove(sql));
+        }
+    }
+
+    synchronized void lend() {
+        inUse = true;
+    }
+
+    synchronized void giveBack() {
+        for (String sql : discarded) {
+            closeQuietly(statements.remove(sql));
+        }
+        discarded.clear();
+        inUse = false;
+    }
+
+    int getPreparedCount() {
+        return statements.size();
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    synchronized void closePhysical() {
+        for (PreparedStatement stmt : statements.values()) {
+            closeQuietly(stmt);
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException se) {
+            LOGGER.debug("Error closing connection from pool {}", pool.getName(), se);
+        }
+    }
+
+    private void closeQuietly(PreparedStatement stmt) {
+        if (stmt == null) {
+            return;
+        }
+        try {
+            stmt.close();
+        } catch (SQLException se) {
+            LOGGER.debug("Error closing prepared statement for pool {}", pool.getName(), se);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.release(this);
+    }
+}
@@ -17,7 +17,9 @@ package com.appdynamics.extensions.postgres.connection;
 
 import com.google.common.base.Strings;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 
 import static com.appdynamics.extensions.postgres.util.Constants.*;
@@ -29,10 +31,14 @@ public class PostgresConnectionConfig {
 
     private final String url;
     private final Properties props;
+    private final boolean multiHost;
+    private final long statementTimeoutMillis;
 
-    private PostgresConnectionConfig(String url, Properties props) {
+    private PostgresConnectionConfig(String url, Properties props, boolean multiHost, long statementTimeoutMillis) {
         this.url = url;
         this.props = props;
+        this.multiHost = multiHost;
+        this.statementTimeoutMillis = statementTimeoutMillis;
     }
 
     public String getUrl() {
@@ -43,9 +49,69 @@ public class PostgresConnectionConfig {
         return props;
     }
 
+    /**
+     * @return true if the server has several hosts, in which case connections go to the primary unless routed
+     * elsewhere
+     */
+    public boolean isMultiHost() {
+        return multiHost;
+    }
+
+    /**
+     * @return statement_timeout set on every new connection, 0 to keep the default of the server
+     */
+    public long getStatementTimeoutMillis() {
+        return statementTimeoutMillis;
+    }
+
+    /**
+     * @return the config of the connections running the queries with the given route, this config for the primary
+     * or when the server has a single host
+     */
+    public PostgresConnectionConfig routedTo(Route route) {
+        if (!multiHost || route == Route.PRIMARY) {
+            return this;
+        }
+        Properties routed = new Properties();
+        routed.putAll(props);
+        routed.setProperty(TARGET_SERVER_TYPE, route.getTargetServerType());
+        return new PostgresConnectionConfig(url, routed, true, statementTimeoutMillis);
+    }
+
+    /**
+     * Configs are equal when they open the same connections, so that a reloaded config.yml keeps the pools of the
+     * databases whose connection settings did not change.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PostgresConnectionConfig)) {
+            return false;
+        }
+        PostgresConnectionConfig other = (PostgresConnectionConfig) obj;
+        return multiHost == other.multiHost && statementTimeoutMillis == other.statementTimeoutMillis
+                && Objects.equals(url, other.url) && Objects.equals(props, other.props);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(url, props, multiHost, statementTimeoutMillis);
+    }
+
     private static PostgresConnectionConfig processBuilder(Builder builder) {
-        String url = ConnectionUtils.buildURL(PROTOCOL, builder.host, builder.port, builder.database, builder.useIpv6);
+        boolean multiHost = builder.hosts != null && builder.hosts.size() > 1;
+        String url = builder.hosts != null && !builder.hosts.isEmpty()
+                ? ConnectionUtils.buildURL(PROTOCOL, builder.hosts, builder.port, builder.database, builder.useIpv6)
+                : ConnectionUtils.buildURL(PROTOCOL, builder.host, builder.port, builder.database, builder.useIpv6);
         Properties props = new Properties();
+        if (multiHost) {
+            // connect to the primary unless routed elsewhere, and to the matching hosts in random order so that the
+            // connections are spread over the standbys. Both can be overridden by the optional properties
+            props.setProperty(TARGET_SERVER_TYPE, Route.PRIMARY.getTargetServerType());
+            props.setProperty(LOAD_BALANCE_HOSTS, "true");
+        }
         props.setProperty(USER, builder.user);
         if (!Strings.isNullOrEmpty(builder.password)) {
             props.setProperty(PASSWORD, builder.password);
@@ -55,11 +121,12 @@ public class PostgresConnectionConfig {
         if (builder.properties != null && builder.properties.size() != 0) {
             props.putAll(builder.properties);
         }
-        return new PostgresConnectionConfig(url, props);
+        return new PostgresConnectionConfig(url, props, multiHost, Math.max(0, builder.statementTimeoutMillis));
     }
 
     public static class Builder {
         private String host;
+        private List<String> hosts;
         private Boolean useIpv6;
         private String port;
         private String database;
@@ -68,12 +135,18 @@ public class PostgresConnectionConfig {
         private String applicationName;
         private String readOnly;
         private Map<String, String> properties;
+        private long statementTimeoutMillis;
 
         Builder host(String host) {
             this.host = host;
             return this;
         }
 
+        Builder hosts(List<String> hosts) {
+            this.hosts = hosts;
+            return this;
+        }
+
         Builder useIPv6(Boolean useIpv6) {
             this.useIpv6 = useIpv6;
             return this;
@@ -114,6 +187,11 @@ public class PostgresConnectionConfig {
             return this;
         }
 
+        Builder statementTimeoutMillis(long statementTimeoutMillis) {
+            this.statementTimeoutMillis = statementTimeoutMillis;
+            return this;
+        }
+
         PostgresConnectionConfig build() {
             return processBuilder(this);
         }
@@ -18,6 +18,7 @@ package com.appdynamics.extensions.postgres.connection;
 import com.appdynamics.extensions.util.AssertUtils;
 import com.google.common.base.Strings;
 
+import java.util.List;
 import java.util.Map;
 
 import static com.appdynamics.extensions.postgres.util.Constants.*;
@@ -29,18 +30,30 @@ public class PostgresConnectionConfigHelper {
 
     public static PostgresConnectionConfig getConnectionConfig(String dbName, String serverName, final String password,
                                                                Map<String, ?> server) {
+        return getConnectionConfig(dbName, serverName, password, server, 0);
+    }
+
+    /**
+     * @param statementTimeoutMillis statement_timeout of the sessions, so that the server cancels a query even when
+     *                               the extension no longer can, 0 to keep the default of the server
+     */
+    public static PostgresConnectionConfig getConnectionConfig(String dbName, String serverName, final String password,
+                                                               Map<String, ?> server, long statementTimeoutMillis) {
         final String host = (String) server.get(HOST);
+        // hosts takes precedence over host, the queries run on the primary unless they are routed elsewhere
+        final List<String> hosts = (List<String>) server.get(HOSTS);
         final String port = (String) server.get(PORT);
         final String user = (String) server.get(USER);
-        AssertUtils.assertNotNull(host, "Please provide a host to connect in config.yml for server " + serverName);
-        AssertUtils.assertNotNull(host, "Please provide a port to connect in config.yml for server " + serverName);
-        AssertUtils.assertNotNull(host, "Please provide a user to connect in config.yml for server " + serverName);
+        AssertUtils.assertNotNull(hosts == null || hosts.isEmpty() ? host : hosts, "Please provide a host to " +
+                "connect in config.yml for server " + serverName);
+        AssertUtils.assertNotNull(port, "Please provide a port to connect in config.yml for server " + serverName);
+        AssertUtils.assertNotNull(user, "Please provide a user to connect in config.yml for server " + serverName);
         final Boolean useIpv6 = Boolean.valueOf((String) server.get(USE_IPV6));
         final String applicationName = Strings.isNullOrEmpty((String) server.get(APPLICATION_NAME)) ?
                 DEFAULT_APPLICATION_NAME : (String) server.get(APPLICATION_NAME);
         Map<String, String> optionalConnProps = (Map<String, String>) server.get(OPTIONAL_CONNECTION_PROPERTIES);
-        return new PostgresConnectionConfig.Builder().host(host).useIPv6(useIpv6).port(port).database(dbName).user
-                (user).password(password).applicationName(applicationName).readOnly("true").properties
-                (optionalConnProps).build();
+        return new PostgresConnectionConfig.Builder().host(host).hosts(hosts).useIPv6(useIpv6).port(port)
+                .database(dbName).user(user).password(password).applicationName(applicationName).readOnly("true")
+                .properties(optionalConnProps).statementTimeoutMillis(statementTimeoutMillis).build();
     }
 }
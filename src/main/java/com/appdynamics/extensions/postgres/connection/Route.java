@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.connection;
+
+/**
+ * Which member of a server with several hosts a query runs on. The routes map to the {@code targetServerType} of the
+ * driver, which finds a matching host, remembers for {@code hostRecheckSeconds} which hosts are down or of the wrong
+ * type, and fails over to the next matching host when a connection cannot be opened.
+ */
+public enum Route {
+    // the driver bundled with the extension still calls the primary "master"
+    PRIMARY("primary", "master"),
+    PREFER_STANDBY("preferStandby", "preferSecondary"),
+    ANY("any", "any");
+
+    private final String name;
+    private final String targetServerType;
+
+    Route(String name, String targetServerType) {
+        this.name = name;
+        this.targetServerType = targetServerType;
+    }
+
+    /**
+     * @return the route configured as {@code name}, null if there is none
+     */
+    public static Route fromName(String name) {
+        for (Route route : values()) {
+            if (route.name.equalsIgnoreCase(name)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTargetServerType() {
+        return targetServerType;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.discovery;
+
+import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
+import com.appdynamics.extensions.postgres.connection.ConnectionPool;
+import com.appdynamics.extensions.postgres.connection.PooledConnection;
+import com.appdynamics.extensions.postgres.plan.DatabasePlan;
+import com.appdynamics.extensions.postgres.plan.DiscoveryPlan;
+import org.slf4j.Logger;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The databases of a server found in pg_database, listed through a single connection and refreshed once per refresh
+ * interval. The plan compiled for a database is kept for as long as the database is found, so the caches keyed by its
+ * query plans stay valid across refreshes.
+ */
+public class DatabaseDiscovery {
+    private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(DatabaseDiscovery.class);
+    static final String LIST_DATABASES = "SELECT datname FROM pg_catalog.pg_database " +
+            "WHERE datallowconn AND NOT datistemplate ORDER BY datname";
+
+    private final String serverName;
+    private final DiscoveryPlan plan;
+    // databases configured under databases are collected with their own queries
+    private final Set<String> configured = new HashSet<>();
+    private final Map<String, DatabasePlan> discovered = new LinkedHashMap<>();
+    private volatile List<DatabasePlan> databases = Collections.emptyList();
+    // 0 until the first successful listing, so that the databases are listed on the first run
+    private long nextRefresh;
+
+    public DatabaseDiscovery(String serverName, DiscoveryPlan plan, Collection<DatabasePlan> configuredDatabases) {
+        this(serverName, plan, configuredDatabases, null);
+    }
+
+    /**
+     * Takes over the databases found by the discovery of a config.yml that was reloaded, compiled with the new plan,
+     * and when they are due to be listed again, so that a reload does not list the databases of the server again.
+     *
+     * @param previous discovery of the server before the reload, may be null
+     */
+    public DatabaseDiscovery(String serverName, DiscoveryPlan plan, Collection<DatabasePlan> configuredDatabases,
+                             DatabaseDiscovery previous) {
+        this.serverName = serverName;
+        this.plan = plan;
+        for (DatabasePlan database : configuredDatabases) {
+            configured.add(database.getDbName());
+        }
+        if (previous != null) {
+            synchronized (previous) {
+                for (String dbName : previous.discovered.keySet()) {
+                    if (!configured.contains(dbName) && plan.matches(dbName)) {
+                        discovered.put(dbName, plan.compileDatabase(dbName));
+                    }
+                }
+                nextRefresh = previous.nextRefresh;
+            }
+            databases = Collections.unmodifiableList(new ArrayList<>(discovered.values()));
+        }
+    }
+
+    public DiscoveryPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * @return the databases found on the last successful listing
+     */
+    public List<DatabasePlan> getDatabases() {
+        return databases;
+    }
+
+    /**
+     * Lists the databases of the server again if the refresh interval has passed. If the listing fails the databases
+     * found last are kept, and the listing is tried again on the next call.
+     *
+     * @param pool pool of the discovery database, one connection is used
+     * @return the databases that are no longer found
+     */
+    public synchronized List<DatabasePlan> refreshIfDue(ConnectionPool pool, long now) {
+        if (now < nextRefresh) {
+            return Collections.emptyList();
+        }
+        List<String> names;
+        try {
+            names = listDatabases(pool);
+        } catch (SQLException | ClassNotFoundException e) {
+            LOGGER.error("Error listing the databases of server {}, keeping the {} databases found last",
+                    serverName, databases.size(), e);
+            return Collections.emptyList();
+        }
+        nextRefresh = now + plan.getRefreshIntervalMillis();
+        Set<String> found = new HashSet<>();
+        for (String dbName : names) {
+            if (dbName == null || configured.contains(dbName) || !plan.matches(dbName)) {
+                continue;
+            }
+            found.add(dbName);
+            if (!discovered.containsKey(dbName)) {
+                LOGGER.info("Discovered database {} on server {}", dbName, serverName);
+                discovered.put(dbName, plan.compileDatabase(dbName));
+            }
+        }
+        List<DatabasePlan> dropped = new ArrayList<>();
+        Iterator<DatabasePlan> it = discovered.values().iterator();
+        while (it.hasNext()) {
+            DatabasePlan database = it.next();
+            if (!found.contains(database.getDbName())) {
+                LOGGER.info("Database {} is no longer found on server {}", database.getDbName(), serverName);
+                dropped.add(database);
+                it.remove();
+            }
+        }
+        databases = Collections.unmodifiableList(new ArrayList<>(discovered.values()));
+        return dropped;
+    }
+
+    private List<String> listDatabases(ConnectionPool pool) throws SQLException, ClassNotFoundException {
+        List<String> names = new ArrayList<>();
+        try (PooledConnection pooled = pool.acquire()) {
+            try (Statement stmt = pooled.getConnection().createStatement()) {
+                // the listing runs before the deadline of the run applies, a hung server must not block it
+                stmt.setQueryTimeout(plan.getTimeoutSeconds());
+                try (ResultSet rs = stmt.executeQuery(LIST_DATABASES)) {
+                    while (rs.next()) {
+                        names.add(rs.getString(1));
+                    }
+                }
+            } catch (SQLException se) {
+                pooled.invalidateIfBroken(se);
+                throw se;
+            }
+        }
+        return names;
+    }
+}
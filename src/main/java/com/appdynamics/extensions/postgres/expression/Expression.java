@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.expression;
+
+import java.util.Map;
+
+/**
+ * An arithmetic expression over the metricValue columns of a row, such as {@code blks_hit / (blks_hit + blks_read)}.
+ * It is parsed once when the config is loaded into a tree of nodes that read the values of the row from primitive
+ * arrays, so evaluating it for a row does not allocate or box. A column name refers to the value read from the
+ * database, {@code delta(name)} to the change of the column since the previous run.
+ */
+public final class Expression {
+    private final String source;
+    private final Node root;
+    // sorted indexes of the columns referenced with delta()
+    private final int[] deltaColumns;
+
+    Expression(String source, Node root, int[] deltaColumns) {
+        this.source = source;
+        this.root = root;
+        this.deltaColumns = deltaColumns;
+    }
+
+    /**
+     * Parses and compiles the expression.
+     *
+     * @param columns index of each column the expression may refer to, keyed by lower case name
+     * @throws IllegalArgumentException if the expression is not valid or refers to an unknown column
+     */
+    public static Expression compile(String source, Map<String, Integer> columns) {
+        return new ExpressionParser(source, columns).parse();
+    }
+
+    /**
+     * Evaluates the expression for a row.
+     *
+     * @param values the values of the columns of the row, NaN for the columns without a value
+     * @param deltas the changes of the columns since the previous run, NaN when not known
+     * @return the value, NaN when it cannot be computed, for instance on a division by zero or when a column it refers
+     * to has no value
+     */
+    public double evaluate(double[] values, double[] deltas) {
+        double value = root.evaluate(values, deltas);
+        return Double.isInfinite(value) ? Double.NaN : value;
+    }
+
+    /**
+     * @return sorted indexes of the columns whose change since the previous run is referenced
+     */
+    public int[] getDeltaColumns() {
+        return deltaColumns.clone();
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    abstract static class Node {
+        abstract double evaluate(double[] values, double[] deltas);
+
+        boolean isConstant() {
+            return false;
+        }
+    }
+
+    static final class Constant extends Node {
+        private final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        double evaluate(double[] values, double[] deltas) {
+            return value;
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+    }
+
+    static final class Value extends Node {
+        private final int column;
+
+        Value(int column) {
+            this.column = column;
+        }
+
+        @Override
+        double evaluate(double[] values, double[] deltas) {
+            return values[column];
+        }
+    }
+
+    static final class Delta extends Node {
+        private final int column;
+
+        Delta(int column) {
+            this.column = column;
+        }
+
+        @Override
+        double evaluate(double[] values, double[] deltas) {
+            return deltas[column];
+        }
+    }
+
+    static final class Negate extends Node {
+        private final Node operand;
+
+        Negate(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        double evaluate(double[] values, double[] deltas) {
+            return -operand.evaluate(values, deltas);
+        }
+    }
+
+    static final class Add extends Node {
+        private final Node left;
+        private final Node right;
+
+        Add(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double evaluate(double[] values, double[] deltas) {
+            return left.evaluate(values, deltas) + right.evaluate(values, deltas);
+        }
+    }
+
+    static final class Subtract extends Node {
+        private final Node left;
+        private final Node right;
+
+        Subtract(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double evaluate(double[] values, double[] deltas) {
+            return left.evaluate(values, deltas) - right.evaluate(values, deltas);
+        }
+    }
+
+    static final class Multiply extends Node {
+        private final Node left;
+        private final Node right;
+
+        Multiply(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double evaluate(double[] values, double[] deltas) {
+            return left.evaluate(values, deltas) * right.evaluate(values, deltas);
+        }
+    }
+
+    static final class Divide extends Node {
+        private final Node left;
+        private final Node right;
+
+        Divide(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double evaluate(double[] values, double[] deltas) {
+            double divisor = right.evaluate(values, deltas);
+            // a ratio of two counters that did not change has no value, rather than an infinite or NaN one
+            return divisor == 0 ? Double.NaN : left.evaluate(values, deltas) / divisor;
+        }
+    }
+}
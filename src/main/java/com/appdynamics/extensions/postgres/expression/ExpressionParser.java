@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.expression;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Recursive descent parser for {@link Expression}s, with the usual precedence of the arithmetic operators.
+ * <pre>
+ * expression := term (('+' | '-') term)*
+ * term       := unary (('*' | '/') unary)*
+ * unary      := '-' unary | primary
+ * primary    := number | column | 'delta' '(' column ')' | '(' expression ')'
+ * </pre>
+ * Sub expressions made of numbers only are folded into a constant.
+ */
+final class ExpressionParser {
+    private static final String DELTA = "delta";
+
+    private final String source;
+    private final Map<String, Integer> columns;
+    private final TreeSet<Integer> deltaColumns = new TreeSet<>();
+    private int pos;
+
+    ExpressionParser(String source, Map<String, Integer> columns) {
+        this.source = source;
+        this.columns = columns;
+    }
+
+    Expression parse() {
+        if (source == null || source.trim().isEmpty()) {
+            throw new IllegalArgumentException("Empty expression");
+        }
+        Expression.Node root = expression();
+        skipWhitespace();
+        if (pos < source.length()) {
+            throw error("Unexpected '" + source.charAt(pos) + "'");
+        }
+        int[] deltas = new int[deltaColumns.size()];
+        int i = 0;
+        for (int column : deltaColumns) {
+            deltas[i++] = column;
+        }
+        return new Expression(source, root, deltas);
+    }
+
+    private Expression.Node expression() {
+        Expression.Node node = term();
+        while (true) {
+            if (accept('+')) {
+                Expression.Node right = term();
+                node = fold(new Expression.Add(node, right), node, right);
+            } else if (accept('-')) {
+                Expression.Node right = term();
+                node = fold(new Expression.Subtract(node, right), node, right);
+            } else {
+                return node;
+            }
+        }
+    }
+
+    private Expression.Node term() {
+        Expression.Node node = unary();
+        while (true) {
+            if (accept('*')) {
+                Expression.Node right = unary();
+                node = fold(new Expression.Multiply(node, right), node, right);
+            } else if (accept('/')) {
+                Expression.Node right = unary();
+                node = fold(new Expression.Divide(node, right), node, right);
+            } else {
+                return node;
+            }
+        }
+    }
+
+    private Expression.Node unary() {
+        if (accept('-')) {
+            Expression.Node operand = unary();
+            return fold(new Expression.Negate(operand), operand, operand);
+        }
+        return primary();
+    }
+
+    private Expression.Node primary() {
+        skipWhitespace();
+        if (pos >= source.length()) {
+            throw error("Unexpected end of expression");
+        }
+        if (accept('(')) {
+            Expression.Node node = expression();
+            expect(')');
+            return node;
+        }
+        char c = source.charAt(pos);
+        if (Character.isDigit(c) || c == '.') {
+            return number();
+        }
+        if (!isIdentifierStart(c)) {
+            throw error("Unexpected '" + c + "'");
+        }
+        String name = identifier();
+        if (DELTA.equalsIgnoreCase(name) && accept('(')) {
+            int column = column(identifierOrFail());
+            expect(')');
+            deltaColumns.add(column);
+            return new Expression.Delta(column);
+        }
+        return new Expression.Value(column(name));
+    }
+
+    private Expression.Node number() {
+        int start = pos;
+        while (pos < source.length() && (Character.isDigit(source.charAt(pos)) || source.charAt(pos) == '.')) {
+            pos++;
+        }
+        String number = source.substring(start, pos);
+        try {
+            return new Expression.Constant(Double.parseDouble(number));
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("Invalid number " + number);
+        }
+    }
+
+    private int column(String name) {
+        Integer column = columns.get(name.toLowerCase(Locale.ROOT));
+        if (column == null) {
+            throw error("Unknown metricValue column " + name);
+        }
+        return column;
+    }
+
+    private String identifierOrFail() {
+        skipWhitespace();
+        if (pos >= source.length() || !isIdentifierStart(source.charAt(pos))) {
+            throw error("Column name expected");
+        }
+        return identifier();
+    }
+
+    private String identifier() {
+        int start = pos;
+        while (pos < source.length() && (Character.isLetterOrDigit(source.charAt(pos)) || source.charAt(pos) == '_')) {
+            pos++;
+        }
+        return source.substring(start, pos);
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    // an operation on constants is computed once here instead of on every row
+    private static Expression.Node fold(Expression.Node operation, Expression.Node left, Expression.Node right) {
+        if (!left.isConstant() || !right.isConstant()) {
+            return operation;
+        }
+        double[] none = new double[0];
+        return new Expression.Constant(operation.evaluate(none, none));
+    }
+
+    private boolean accept(char c) {
+        skipWhitespace();
+        if (pos < source.length() && source.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!accept(c)) {
+            throw error("'" + c + "' expected");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + (pos + 1) + " of expression " + source);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.metrics.Metric;
+
+import java.util.Map;
+
+/**
+ * What is needed to create a metric again from the result of an earlier run.
+ */
+final class CachedMetric {
+    private final String name;
+    private final String value;
+    private final Map<String, ?> properties;
+    private final String[] tokens;
+
+    CachedMetric(String name, String value, Map<String, ?> properties, String[] tokens) {
+        this.name = name;
+        this.value = value;
+        this.properties = properties;
+        this.tokens = tokens;
+    }
+
+    Metric toMetric(String metricPrefix) {
+        if (properties == null || properties.size() == 0) {
+            return new Metric(name, value, metricPrefix, tokens);
+        }
+        return new Metric(name, value, properties, metricPrefix, tokens);
+    }
+}
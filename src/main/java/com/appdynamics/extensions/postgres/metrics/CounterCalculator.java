@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.postgres.column.CounterMode;
+import com.appdynamics.extensions.postgres.expression.Expression;
+
+/**
+ * Turns the cumulative counters of the rows of one query execution into the change since the previous run, or the
+ * change per second for rate columns, and computes the values of the derived columns. Every counter is sampled once
+ * per row, whether it is reported as a delta or a rate, referenced with {@code delta()} in an expression, or both. Not
+ * thread safe, one calculator is used per query execution.
+ */
+final class CounterCalculator {
+    private final CounterStore counters;
+    private final long nowMillis;
+    private final CounterStore.Sample previous = new CounterStore.Sample();
+    // whether each value column of the decoder is sampled, false if the query has no counter or derived column
+    private final boolean[] sampled;
+    private final boolean active;
+    // for each value column of the current row, its value, its change since the previous run and the time elapsed
+    // since then
+    private final double[] values;
+    private final double[] deltas;
+    private final long[] elapsedMillis;
+
+    CounterCalculator(CounterStore counters, long nowMillis, RowDecoder decoder) {
+        this.counters = counters;
+        this.nowMillis = nowMillis;
+        int valueCount = decoder.getValueCount();
+        this.sampled = new boolean[valueCount];
+        boolean active = false;
+        for (int i = 0; i < valueCount; i++) {
+            if (decoder.getValueColumn(i).getCounterMode() != CounterMode.NONE) {
+                sampled[i] = true;
+                active = true;
+            }
+            Expression expression = decoder.getExpression(i);
+            if (expression != null) {
+                active = true;
+                for (int column : expression.getDeltaColumns()) {
+                    sampled[column] = true;
+                }
+            }
+        }
+        this.active = active;
+        this.values = new double[valueCount];
+        this.deltas = new double[valueCount];
+        this.elapsedMillis = new long[valueCount];
+    }
+
+    /**
+     * Samples the counters of the current row of the decoder. Must be called once per row, before the values of the
+     * row are computed.
+     */
+    void sample(RowDecoder decoder, RowPaths paths) {
+        if (!active) {
+            return;
+        }
+        for (int i = 0; i < values.length; i++) {
+            boolean present = decoder.hasValue(i);
+            values[i] = present ? decoder.getDoubleValue(i) : Double.NaN;
+            deltas[i] = present && sampled[i] ? delta(decoder, paths, i) : Double.NaN;
+        }
+    }
+
+    private double delta(RowDecoder decoder, RowPaths paths, int i) {
+        double current = values[i];
+        boolean integral = decoder.getKind(i) == RowDecoder.Kind.LONG;
+        if (!integral && Double.isNaN(current)) {
+            // text columns cannot be counters
+            return Double.NaN;
+        }
+        long raw = integral ? decoder.getLongValue(i) : Double.doubleToRawLongBits(current);
+        if (!counters.swap(paths.getSeriesId(i), raw, decoder.getResetMarker(), nowMillis, previous)) {
+            return Double.NaN;
+        }
+        double delta = integral ? raw - previous.getValue() : current - Double.longBitsToDouble(previous.getValue());
+        elapsedMillis[i] = nowMillis - previous.getTimeMillis();
+        return delta < 0 ? Double.NaN : delta;
+    }
+
+    /**
+     * Computes the value to report for the i-th value column of the current row of the decoder, which must have a
+     * value.
+     *
+     * @return the value, or NaN when there is nothing to report: the first sample of a counter, a reset of the
+     * statistics, a counter that went backwards, or an expression that cannot be computed
+     */
+    double compute(RowDecoder decoder, int i) {
+        Expression expression = decoder.getExpression(i);
+        if (expression != null) {
+            return expression.evaluate(values, deltas);
+        }
+        CounterMode mode = decoder.getValueColumn(i).getCounterMode();
+        if (mode == CounterMode.NONE) {
+            return decoder.getDoubleValue(i);
+        }
+        double delta = deltas[i];
+        if (mode == CounterMode.DELTA || Double.isNaN(delta)) {
+            return delta;
+        }
+        return elapsedMillis[i] <= 0 ? Double.NaN : delta * 1000 / elapsedMillis[i];
+    }
+
+    /**
+     * Formats a value computed for the i-th value column of the decoder. Values reported as is keep the exact
+     * formatting of the column type.
+     */
+    static String format(RowDecoder decoder, int i, double value) {
+        if (decoder.isReportedAsIs(i)) {
+            return decoder.formatValue(i);
+        }
+        if (decoder.getValueColumn(i).getCounterMode() == CounterMode.DELTA
+                && decoder.getKind(i) == RowDecoder.Kind.LONG) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+/**
+ * Last sample of every counter series of a database, used to turn cumulative counters into deltas and rates. The
+ * series are kept in an open addressing table of primitive arrays keyed by a 64 bit id of the metric path, which costs
+ * about 28 bytes per slot instead of a map entry, a boxed value and a path string per series.
+ */
+public class CounterStore {
+    private static final int MIN_CAPACITY = 16;
+    // 0 marks an empty slot
+    private static final long EMPTY = 0L;
+
+    private long[] ids;
+    private long[] values;
+    private long[] times;
+    private int[] resetMarkers;
+    private int size;
+
+    public CounterStore() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * The previous sample of a series, filled in by {@link #swap}. Owned by the caller so that no object is allocated
+     * per sample.
+     */
+    public static final class Sample {
+        private long value;
+        private long timeMillis;
+
+        /**
+         * @return the raw value, the bits of a double for floating point counters
+         */
+        public long getValue() {
+            return value;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+    }
+
+    /**
+     * Records a sample of the series and copies the sample it replaces into {@code previous}.
+     *
+     * @param value       the raw value, the bits of a double for floating point counters
+     * @param resetMarker identifies when the statistics of the row were last reset, 0 if unknown
+     * @return true if there is a previous sample taken since the statistics were last reset
+     */
+    public synchronized boolean swap(long seriesId, long value, int resetMarker, long timeMillis, Sample previous) {
+        long id = seriesId == EMPTY ? 1L : seriesId;
+        int slot = find(id);
+        if (ids[slot] == EMPTY) {
+            ids[slot] = id;
+            store(slot, value, resetMarker, timeMillis);
+            if (++size > ids.length * 3 / 4) {
+                resize(ids.length * 2);
+            }
+            return false;
+        }
+        boolean comparable = resetMarkers[slot] == resetMarker;
+        previous.value = values[slot];
+        previous.timeMillis = times[slot];
+        store(slot, value, resetMarker, timeMillis);
+        return comparable;
+    }
+
+    /**
+     * Forgets the series that were not sampled since the given time, for instance the rows of dropped tables.
+     *
+     * @return number of series removed
+     */
+    public synchronized int expire(long olderThanMillis) {
+        int live = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != EMPTY && times[i] >= olderThanMillis) {
+                live++;
+            }
+        }
+        int removed = size - live;
+        if (removed > 0) {
+            rebuild(capacityFor(live), olderThanMillis);
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void store(int slot, long value, int resetMarker, long timeMillis) {
+        values[slot] = value;
+        resetMarkers[slot] = resetMarker;
+        times[slot] = timeMillis;
+    }
+
+    private int find(long id) {
+        int mask = ids.length - 1;
+        int slot = mix(id) & mask;
+        while (ids[slot] != EMPTY && ids[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        rebuild(capacity, Long.MIN_VALUE);
+    }
+
+    private void rebuild(int capacity, long olderThanMillis) {
+        long[] oldIds = ids;
+        long[] oldValues = values;
+        long[] oldTimes = times;
+        int[] oldMarkers = resetMarkers;
+        allocate(capacity);
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != EMPTY && oldTimes[i] >= olderThanMillis) {
+                int slot = find(oldIds[i]);
+                ids[slot] = oldIds[i];
+                store(slot, oldValues[i], oldMarkers[i], oldTimes[i]);
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        ids = new long[capacity];
+        values = new long[capacity];
+        times = new long[capacity];
+        resetMarkers = new int[capacity];
+        size = 0;
+    }
+
+    private static int capacityFor(int entries) {
+        int capacity = MIN_CAPACITY;
+        while (entries > capacity * 3 / 4) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    private static int mix(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -18,174 +18,669 @@ package com.appdynamics.extensions.postgres.metrics;
 import com.appdynamics.extensions.MetricWriteHelper;
 import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
 import com.appdynamics.extensions.metrics.Metric;
+import com.appdynamics.extensions.postgres.ServerContext;
 import com.appdynamics.extensions.postgres.column.Column;
-import com.appdynamics.extensions.postgres.column.ColumnGenerator;
-import com.appdynamics.extensions.postgres.connection.ConnectionUtils;
-import com.appdynamics.extensions.postgres.connection.PostgresConnectionConfig;
-import com.google.common.base.Strings;
+import com.appdynamics.extensions.postgres.connection.ConnectionPool;
+import com.appdynamics.extensions.postgres.connection.PooledConnection;
+import com.appdynamics.extensions.postgres.plan.DatabasePlan;
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import com.appdynamics.extensions.postgres.schedule.CircuitBreaker;
+import com.appdynamics.extensions.postgres.schedule.QueryScheduler;
+import com.appdynamics.extensions.postgres.stats.CollectionStats;
 import org.slf4j.Logger;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
-import java.util.concurrent.Phaser;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import static com.appdynamics.extensions.postgres.util.Constants.*;
+import static com.appdynamics.extensions.postgres.util.Constants.CIRCUIT_BREAKER_STATE;
+import static com.appdynamics.extensions.postgres.util.Constants.OTHER;
+import static com.appdynamics.extensions.postgres.util.Constants.RESULT_AGE;
 
 /**
  * @author pradeep.nair
  */
 public class DatabaseTask implements Runnable {
     private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(DatabaseTask.class);
+    // SQLSTATE query_canceled
+    private static final String QUERY_CANCELED = "57014";
+    // the query is not sharded, all its rows are read
+    private static final int NO_SHARD = -1;
 
     private final String serverName;
     private final String dbName;
-    private final Map<String, ?> databaseTask;
-    private final Phaser phaser;
+    private final ServerContext serverContext;
+    private final DatabasePlan database;
+    private final QueryScheduler.Schedule schedule;
     private final String metricPrefix;
-    private final PostgresConnectionConfig connConfig;
+    // pool of the connections to the primary, queries routed to the standbys use their own pools
+    private final ConnectionPool pool;
     private final MetricWriteHelper metricWriteHelper;
     private final AtomicBoolean heart_beat;
+    private final CollectionStats stats;
+    private volatile boolean cancelled;
+    // the statement being executed, so that it can be cancelled from another thread
+    private volatile Statement running;
+    // true for a task refreshing the stale results of a query in the background
+    private boolean revalidating;
 
-    public DatabaseTask(String serverName, String dbName, Map<String, ?> databaseTask, Phaser phaser,
-                        PostgresConnectionConfig connConfig, String metricPrefix, MetricWriteHelper metricWriteHelper
-            , AtomicBoolean heart_beat) {
-        this.serverName = serverName;
-        this.dbName = dbName;
-        this.databaseTask = databaseTask;
-        this.phaser = phaser;
-        this.connConfig = connConfig;
+    public DatabaseTask(ServerContext serverContext, DatabasePlan database, QueryScheduler.Schedule schedule,
+                        String metricPrefix, MetricWriteHelper metricWriteHelper, AtomicBoolean heart_beat) {
+        this.serverName = serverContext.getServerName();
+        this.dbName = database.getDbName();
+        this.serverContext = serverContext;
+        this.database = database;
+        this.schedule = schedule;
+        this.pool = serverContext.getPool(database);
         this.metricPrefix = metricPrefix;
         this.metricWriteHelper = metricWriteHelper;
         this.heart_beat = heart_beat;
-        phaser.register();
+        this.stats = serverContext.getStats();
+    }
+
+    /**
+     * Stops the task, for instance when the run of the server is past its deadline. The statement being executed is
+     * cancelled on the server, the remaining queries are skipped and the metrics not yet handed to the metric writer
+     * are dropped.
+     */
+    public void cancel() {
+        cancelled = true;
+        Statement stmt = running;
+        if (stmt != null) {
+            try {
+                stmt.cancel();
+            } catch (SQLException se) {
+                LOGGER.debug("Could not cancel the query running on database {} server {}", dbName, serverName, se);
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public String getDbName() {
+        return dbName;
     }
 
     @Override
     public void run() {
         LOGGER.info("Collecting metrics for database {}, server {}", dbName, serverName);
-        LOGGER.debug("Connection URL for database {} server {} is {}", dbName, serverName, connConfig.getUrl());
-        List<Map<String, ?>> queries = (List<Map<String, ?>>) databaseTask.get(QUERIES);
-        if (queries == null || queries.size() == 0) {
+        LOGGER.debug("Using connection pool {} for database {} server {}", pool.getName(), dbName, serverName);
+        List<QueryPlan> queries = database.getQueries();
+        if (queries.isEmpty()) {
             LOGGER.debug("No queries under database {} server {}.", dbName, serverName);
         } else {
-            metricWriteHelper.transformAndPrintMetrics(getMetricsForQueries(queries));
+            MetricEmitter emitter = new MetricEmitter(metricWriteHelper,
+                    serverContext.getServerPlan().getMetricChunkSize());
+            boolean queried = false;
+            if (database.getPipelineStmt() != null && !cancelled) {
+                executePipeline(emitter);
+                queried = true;
+            }
+            for (QueryPlan query : database.getStandaloneQueries()) {
+                if (cancelled) {
+                    break;
+                }
+                if (!schedule.isDue(query)) {
+                    republish(query, emitter);
+                } else if (!revalidateInBackground(query, emitter)) {
+                    queried |= executeIfAllowed(query, emitter);
+                }
+            }
+            if (cancelled) {
+                LOGGER.warn("Collection of database {} server {} was cancelled, dropped {} metrics not yet published",
+                        dbName, serverName, emitter.getPendingCount());
+                stats.recordCancelled();
+                stats.recordMetrics(emitter.getEmittedCount() - emitter.getPendingCount());
+                return;
+            }
+            publishBreakerStates(emitter);
+            emitter.flush();
+            stats.recordMetrics(emitter.getEmittedCount());
+            if (!queried) {
+                checkConnection();
+            }
         }
         LOGGER.info("Done collecting metrics for database {}, server {}", dbName, serverName);
-        phaser.arriveAndDeregister();
     }
 
-    private List<Metric> getMetricsForQueries(List<Map<String, ?>> queries) {
-        final List<Metric> metrics = new ArrayList<>();
-        for (Map<String, ?> query : queries) {
-            String name = (String) query.get(NAME);
-            Boolean isServerLvlQuery = Boolean.valueOf((String) query.get(SERVER_LVL_QUERY));
-            String queryStmt = (String) query.get(QUERY_STATEMENT);
-            List<Map<String, ?>> columns = (List<Map<String, ?>>) query.get(COLUMNS);
-            if (!isServerLvlQuery) {
-                if (Strings.isNullOrEmpty(name)) {
-                    LOGGER.debug("Query name is required for non server level queries. Skipping one query for " +
-                            "database {} server {}", dbName, serverName);
+    /**
+     * Executes the query unless its circuit breaker is open.
+     *
+     * @return true if the query was executed
+     */
+    private boolean executeIfAllowed(QueryPlan query, MetricEmitter emitter) {
+        CircuitBreaker breaker = serverContext.getCircuitBreaker(query);
+        if (!breaker.allowRequest(System.currentTimeMillis())) {
+            LOGGER.debug("Skipping query {} database {} server {} after {} failures, retrying after {}",
+                    query.getName(), dbName, serverName, breaker.getFailures(), new Date(breaker.getOpenUntil()));
+            return false;
+        }
+        executeQuery(query, emitter);
+        return true;
+    }
+
+    private void publishBreakerStates(MetricEmitter emitter) {
+        for (QueryPlan query : database.getQueries()) {
+            CircuitBreaker breaker = serverContext.getCircuitBreaker(query);
+            if (query.getName() != null && breaker.hasFailed()) {
+                emitter.emit(new Metric(CIRCUIT_BREAKER_STATE, String.valueOf(breaker.getState().getValue()),
+                        metricPrefix, serverName, dbName, query.getName(), CIRCUIT_BREAKER_STATE));
+            }
+        }
+    }
+
+    private PooledConnection acquire() throws SQLException, ClassNotFoundException {
+        return acquire(pool);
+    }
+
+    private PooledConnection acquire(ConnectionPool pool) throws SQLException, ClassNotFoundException {
+        long start = System.nanoTime();
+        try {
+            PooledConnection pooled = pool.acquire();
+            stats.recordAcquire(start, false);
+            return pooled;
+        } catch (SQLException | ClassNotFoundException e) {
+            stats.recordAcquire(start, true);
+            throw e;
+        }
+    }
+
+    // registers the statement with cancel, a task cancelled before the statement was created fails right away
+    private void track(Statement stmt) throws SQLException {
+        running = stmt;
+        if (cancelled) {
+            throw new SQLException("Collection of database " + dbName + " server " + serverName + " was cancelled",
+                    QUERY_CANCELED);
+        }
+    }
+
+    /**
+     * Sends all the pipelined queries in one round trip and reads the result sets back in order. If the server
+     * rejects the batch, the queries are executed one by one so that only the failing query is lost.
+     */
+    private void executePipeline(MetricEmitter emitter) {
+        List<QueryPlan> queries = database.getPipelinedQueries();
+        // a query backed off by its circuit breaker can only be skipped when the queries run one by one
+        if (allowAll(queries) && runPipeline(queries, emitter)) {
+            return;
+        }
+        for (QueryPlan query : queries) {
+            if (cancelled) {
+                break;
+            }
+            executeIfAllowed(query, emitter);
+        }
+    }
+
+    /**
+     * @return false if the server rejected the batch and the queries have to be executed one by one
+     */
+    private boolean runPipeline(List<QueryPlan> queries, MetricEmitter emitter) {
+        LOGGER.debug("Sending {} queries in one round trip for database {} server {}", queries.size(), dbName,
+                serverName);
+        try (PooledConnection pooled = acquire()) {
+            heart_beat.compareAndSet(false, true);
+            try (Statement stmt = pooled.getConnection().createStatement()) {
+                try {
+                    stmt.setQueryTimeout(totalTimeoutSeconds(queries));
+                    track(stmt);
+                    long start = System.nanoTime();
+                    stmt.execute(database.getPipelineStmt());
+                    stats.recordExecution(dbName, null, start);
+                } catch (SQLException se) {
+                    if (pooled.invalidateIfBroken(se) || cancelled) {
+                        throw se;
+                    }
+                    LOGGER.debug("Pipelined queries failed for database {} server {}, executing them one by one",
+                            dbName, serverName, se);
+                    return false;
+                }
+                for (QueryPlan query : queries) {
+                    readPipelinedResult(stmt, query, emitter);
                 }
+            } finally {
+                running = null;
             }
-            if (columns == null || columns.size() == 0) {
-                LOGGER.debug("Columns not configured in config.yml for query {} database {} server {}", name, dbName,
-                        serverName);
+        } catch (ClassNotFoundException cce) {
+            LOGGER.error("ClassNotFoundException check drivers", cce);
+        } catch (SQLException se) {
+            LOGGER.error("Error executing SQL query", se);
+        } catch (Exception e) {
+            LOGGER.error("Unforeseen exception when executing the query", e);
+        }
+        return true;
+    }
+
+    private boolean allowAll(List<QueryPlan> queries) {
+        long now = System.currentTimeMillis();
+        for (QueryPlan query : queries) {
+            if (!serverContext.getCircuitBreaker(query).allowRequest(now)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the statements of a pipeline run one after the other, 0 if one of them has no timeout
+    private static int totalTimeoutSeconds(List<QueryPlan> queries) {
+        int total = 0;
+        for (QueryPlan query : queries) {
+            if (query.getTimeoutSeconds() <= 0) {
+                return 0;
             }
-            List<Column> cols = ColumnGenerator.getColumnsPOJO(columns);
-            metrics.addAll(executeQuery(queryStmt, isServerLvlQuery, name, cols));
+            total += query.getTimeoutSeconds();
         }
-        return metrics;
+        return total;
     }
 
-    private List<Metric> executeQuery(String queryStmt, Boolean isServerLvlQuery, String name, List<Column> cols) {
-        LOGGER.debug("Starting metrics collection for query {}", queryStmt);
-        List<Metric> metrics = new ArrayList<>();
-        try (Connection conn = ConnectionUtils.getConnection(DRIVER, connConfig.getUrl(),
-                connConfig.getProps())) {
-            if (conn.isValid(1)) {
-                heart_beat.compareAndSet(false, true);
-                try (Statement stmt = conn.createStatement()) {
-                    try (ResultSet rs = stmt.executeQuery(queryStmt)) {
+    private void readPipelinedResult(Statement stmt, QueryPlan query, MetricEmitter emitter) throws SQLException {
+        int emittedBefore = emitter.getEmittedCount();
+        // the result set is closed by getMoreResults
+        ResultSet rs = stmt.getResultSet();
+        if (rs != null) {
+            try {
+                long start = System.nanoTime();
+                int rows = collectMetricsFromResultSet(query, rs, emitter);
+                stats.recordResult(dbName, query, start, rows, emitter.getEmittedCount() - emittedBefore);
+                serverContext.getCircuitBreaker(query).onSuccess();
+                LOGGER.debug("Executed query {} database {} server {}. Size of metrics {}", query.getName(), dbName,
+                        serverName, emitter.getEmittedCount() - emittedBefore);
+            } catch (SQLException se) {
+                serverContext.getCircuitBreaker(query).onFailure(System.currentTimeMillis());
+                stats.recordError(dbName, query, isTimeout(se));
+                LOGGER.error("Error reading the results of query {} database {} server {}", query.getName(),
+                        dbName, serverName, se);
+            }
+        }
+        stmt.getMoreResults();
+    }
+
+    /**
+     * Publishes the metrics of the last successful run of a query that is not due in this run, and how old they are.
+     */
+    private void republish(QueryPlan query, MetricEmitter emitter) {
+        QueryResultCache.Entry cached = serverContext.getResultCache().get(query);
+        if (cached == null) {
+            LOGGER.debug("Query {} database {} server {} is not due and has no earlier results", query.getName(),
+                    dbName, serverName);
+            return;
+        }
+        for (CachedMetric result : cached.getMetrics()) {
+            emitter.emit(result.toMetric(metricPrefix));
+        }
+        long ageSeconds = cached.getAgeMillis(System.currentTimeMillis()) / 1000;
+        if (query.getName() != null) {
+            emitter.emit(new Metric(RESULT_AGE, String.valueOf(ageSeconds), metricPrefix, serverName, dbName,
+                    query.getName(), RESULT_AGE));
+        }
+        LOGGER.debug("Query {} database {} server {} is not due, published the {} metrics of its last run {}s ago",
+                query.getName(), dbName, serverName, cached.getMetrics().size(), ageSeconds);
+    }
+
+    /**
+     * Publishes the results of the last run of a due query with stale-while-revalidate right away, and executes the
+     * query in the background so that fresh results are published on a later run.
+     *
+     * @return false if the query has to be executed now, because it does not use stale-while-revalidate or has no
+     * results to publish
+     */
+    private boolean revalidateInBackground(QueryPlan query, MetricEmitter emitter) {
+        if (!query.isStaleWhileRevalidate() || query.getIntervalMillis() <= 0) {
+            return false;
+        }
+        QueryResultCache.Entry stale = serverContext.getResultCache().get(query);
+        if (stale == null) {
+            return false;
+        }
+        DatabaseTask refresh = new DatabaseTask(serverContext, database, schedule, metricPrefix, metricWriteHelper,
+                new AtomicBoolean());
+        if (serverContext.refreshInBackground(query, () -> refresh.revalidate(query, stale))) {
+            LOGGER.debug("Refreshing the results of query {} database {} server {} in the background",
+                    query.getName(), dbName, serverName);
+        }
+        republish(query, emitter);
+        return true;
+    }
+
+    private void revalidate(QueryPlan query, QueryResultCache.Entry stale) {
+        revalidating = true;
+        executeIfAllowed(query, MetricEmitter.discarding());
+        // results of a failed refresh must not be published again as if they were current
+        serverContext.getResultCache().invalidate(query, stale);
+    }
+
+    // keeps the heart beat accurate on runs where every query is served from the result cache
+    private void checkConnection() {
+        try (PooledConnection pooled = acquire()) {
+            heart_beat.compareAndSet(false, true);
+        } catch (ClassNotFoundException cce) {
+            LOGGER.error("ClassNotFoundException check drivers", cce);
+        } catch (SQLException se) {
+            LOGGER.error("Error connecting to database {} server {}", dbName, serverName, se);
+        }
+    }
+
+    private void executeQuery(QueryPlan query, MetricEmitter emitter) {
+        LOGGER.debug("Starting metrics collection for query {}", query.getQueryStmt());
+        if (query.getIntervalMillis() > 0 && !revalidating) {
+            // results of a failed run must not be published again as if they were current
+            serverContext.getResultCache().invalidate(query);
+        }
+        int emittedBefore = emitter.getEmittedCount();
+        try (PooledConnection pooled = acquire(serverContext.getPool(database, query.getRoute()))) {
+            heart_beat.compareAndSet(false, true);
+            Connection conn = pooled.getConnection();
+            boolean streaming = query.getFetchSize() > 0;
+            try {
+                if (streaming) {
+                    // the driver only uses a cursor, instead of buffering the whole result, inside a transaction
+                    conn.setAutoCommit(false);
+                    conn.setReadOnly(true);
+                }
+                // prepared statements stay open with the connection, ad hoc statements are closed after the query.
+                // Sharded queries bind the shard, so they are prepared even when statements are not kept
+                boolean sharded = query.getShards() > 1;
+                PreparedStatement prepared = serverContext.getServerPlan().isPrepareQueries()
+                        ? pooled.prepare(query.getQueryStmt()) : null;
+                try (Statement adHoc = prepared != null ? null
+                        : sharded ? conn.prepareStatement(query.getQueryStmt()) : conn.createStatement()) {
+                    PreparedStatement bound = prepared != null ? prepared : sharded ? (PreparedStatement) adHoc : null;
+                    Statement stmt = bound == null ? adHoc : bound;
+                    if (streaming) {
+                        stmt.setFetchSize(query.getFetchSize());
+                    }
+                    int shard = NO_SHARD;
+                    if (sharded) {
+                        shard = serverContext.getShardedResults(query).nextShard();
+                        bound.setInt(1, shard);
+                    }
+                    // cancelled by the driver, statement_timeout of the session only applies if the driver fails to
+                    stmt.setQueryTimeout(query.getTimeoutSeconds());
+                    track(stmt);
+                    long start = System.nanoTime();
+                    try (ResultSet rs = bound == null ? adHoc.executeQuery(query.getQueryStmt())
+                            : bound.executeQuery()) {
+                        stats.recordExecution(dbName, query, start);
                         if (rs != null) {
-                            metrics.addAll(collectMetricsFromResultSet(isServerLvlQuery, name, rs, cols));
+                            start = System.nanoTime();
+                            int rows = collectMetricsFromResultSet(query, rs, emitter, shard);
+                            stats.recordResult(dbName, query, start, rows,
+                                    emitter.getEmittedCount() - emittedBefore);
                         }
-                        LOGGER.debug("Executed query {} database {} server {}. Size of metrics {}", name, dbName,
-                                serverName, metrics.size());
+                        serverContext.getCircuitBreaker(query).onSuccess();
+                        LOGGER.debug("Executed query {} database {} server {}. Size of metrics {}", query.getName(),
+                                dbName, serverName, emitter.getEmittedCount() - emittedBefore);
                     }
                 }
-            } else {
-                LOGGER.debug("Connection to database {} server {} is not valid", dbName, serverName);
+            } catch (SQLException se) {
+                if (!cancelled) {
+                    stats.recordError(dbName, query, isTimeout(se));
+                }
+                // a failed query does not mean the connection is unusable, only evict on connection errors
+                if (!pooled.invalidateIfBroken(se)) {
+                    // timeouts and errors of the query itself count against its circuit breaker
+                    serverContext.getCircuitBreaker(query).onFailure(System.currentTimeMillis());
+                    // the statement may refer to objects that changed since it was prepared
+                    pooled.discard(query.getQueryStmt());
+                }
+                throw se;
+            } finally {
+                running = null;
+                if (streaming) {
+                    endReadOnlyTransaction(pooled);
+                }
             }
         } catch (ClassNotFoundException cce) {
             LOGGER.error("ClassNotFoundException check drivers", cce);
         } catch (SQLException se) {
-            LOGGER.error("Error executing SQL query", se);
+            if (cancelled) {
+                LOGGER.warn("Query {} database {} server {} was cancelled", query.getName(), dbName, serverName);
+            } else {
+                LOGGER.error("Error executing SQL query", se);
+            }
         } catch (Exception e) {
             LOGGER.error("Unforeseen exception when executing the query", e);
         }
-        LOGGER.debug("Finished metrics collection for query {}", queryStmt);
-        return metrics;
+        LOGGER.debug("Finished metrics collection for query {}", query.getQueryStmt());
+    }
+
+    // cancelled on timeout by the driver or by statement_timeout, the task was not cancelled
+    private boolean isTimeout(SQLException se) {
+        return !cancelled && QUERY_CANCELED.equals(se.getSQLState());
     }
 
-    private List<Metric> collectMetricsFromResultSet(Boolean isServerLvlQuery, String name, ResultSet rs,
-                                                     List<Column> cols) throws Exception {
-        List<Metric> metrics = new ArrayList<>();
+    private void endReadOnlyTransaction(PooledConnection pooled) {
+        try {
+            // nothing was written, rolling back just closes the transaction and its cursor
+            pooled.getConnection().rollback();
+            pooled.getConnection().setAutoCommit(true);
+        } catch (SQLException se) {
+            LOGGER.debug("Could not end the transaction for database {} server {}, closing the connection", dbName,
+                    serverName, se);
+            pooled.invalidate();
+        }
+    }
+
+    /**
+     * Turns the rows of a result into metrics. Package private for the benchmarks.
+     *
+     * @return number of rows read
+     */
+    int collectMetricsFromResultSet(QueryPlan query, ResultSet rs, MetricEmitter emitter)
+            throws SQLException {
+        return collectMetricsFromResultSet(query, rs, emitter, NO_SHARD);
+    }
+
+    /**
+     * Turns the rows of one shard of a sharded query into metrics, and publishes the metrics of the other shards as
+     * of the run they were last read in.
+     */
+    private int collectMetricsFromResultSet(QueryPlan query, ResultSet rs, MetricEmitter emitter, int shard)
+            throws SQLException {
+        // column indexes and types are resolved once per query, not per row
+        RowDecoder decoder = RowDecoder.forQuery(rs, query);
+        MetricPathCache.Lookup lookup = serverContext.getPathCache().lookup(serverName, dbName, query, decoder);
+        long now = System.currentTimeMillis();
+        CounterCalculator counters = new CounterCalculator(serverContext.getCounterStore(database), now, decoder);
+        // the metrics of queries with an interval are kept to publish them again until the query is due, and the
+        // metrics of a shard until it is read again
+        List<CachedMetric> results = query.getIntervalMillis() > 0 || shard != NO_SHARD ? new ArrayList<>() : null;
+        int rows = query.getTopN() > 0 ? collectTopRows(query, rs, decoder, lookup, counters, emitter, results)
+                : collectAllRows(query, rs, decoder, lookup, counters, emitter, results);
+        if (shard != NO_SHARD) {
+            ShardedResults shards = serverContext.getShardedResults(query);
+            shards.put(shard, results);
+            for (List<CachedMetric> other : shards.getOthers(shard)) {
+                for (CachedMetric result : other) {
+                    emitter.emit(result.toMetric(metricPrefix));
+                }
+            }
+            LOGGER.debug("Read shard {} of {} of query {} database {} server {}", shard + 1, query.getShards(),
+                    query.getName(), dbName, serverName);
+            if (query.getIntervalMillis() > 0) {
+                serverContext.getResultCache().put(query, shards.getAll(), now);
+            }
+        } else if (results != null) {
+            serverContext.getResultCache().put(query, results, now);
+        }
+        return rows;
+    }
+
+    private int collectAllRows(QueryPlan query, ResultSet rs, RowDecoder decoder, MetricPathCache.Lookup lookup,
+                               CounterCalculator counters, MetricEmitter emitter, List<CachedMetric> results)
+            throws SQLException {
+        int rows = 0;
+        int nullValues = 0;
+        int skippedCounters = 0;
+        int undefinedValues = 0;
         while (rs.next()) {
-            LinkedList<String> metricTokens = new LinkedList<>();
-            // {metricPrefix}|{servername}
-            metricTokens.add(serverName);
-            // if not a server level query then dbname and query name should be included in metric path
-            if (!isServerLvlQuery) {
-                //{metricPrefix}|{servername}|{dbname}|{queryname}
-                metricTokens.add(dbName);
-                metricTokens.add(name);
-            }
-            Map<Column, String> metricValues = new HashMap<>();
-            // first check get all tokens and values from ResultSet
-            for (Column col : cols) {
-                LOGGER.debug("Config file column name {} and type {}", col.getName(), col.getType());
-                String rs_get_string = rs.getString(col.getName());
-                LOGGER.debug("");
-                if (rs_get_string == null) {
-                    LOGGER.debug("Null value encountered when fetching string value form result set for column name " +
-                            "{}, will not report this as a metric", col.getName());
+            rows++;
+            decoder.decode(rs);
+            nullValues += countNullPaths(decoder);
+            // path tokens of every metric of the row, rebuilt only for rows not seen in earlier runs
+            RowPaths paths = lookup.paths();
+            counters.sample(decoder, paths);
+            for (int i = 0; i < decoder.getValueCount(); i++) {
+                if (!decoder.hasValue(i)) {
+                    nullValues++;
+                    continue;
+                }
+                String metricValue;
+                if (decoder.isReportedAsIs(i)) {
+                    metricValue = decoder.formatValue(i);
                 } else {
-                    LOGGER.debug("Column name {}, Column Type {}, Value from query output {}", col.getName(),
-                            col.getType(), rs_get_string);
-                    if (col.getType().equalsIgnoreCase("metricPath")) {
-                        metricTokens.add(rs_get_string);
-                    } else if (col.getType().equalsIgnoreCase("metricValue")) {
-                        metricValues.put(col, rs_get_string);
+                    double value = counters.compute(decoder, i);
+                    if (Double.isNaN(value)) {
+                        if (decoder.getExpression(i) == null) {
+                            skippedCounters++;
+                        } else {
+                            undefinedValues++;
+                        }
+                        continue;
                     }
+                    metricValue = CounterCalculator.format(decoder, i, value);
                 }
+                emit(decoder.getValueColumn(i), metricValue, paths.getTokens(i), emitter, results);
             }
-            // once all tokens are obtained from ResultSet, create metrics
-            for (Map.Entry<Column, String> metricVal : metricValues.entrySet()) {
-                Column col = metricVal.getKey();
-                String metricName = col.getName();
-                Map<String, ?> metricProps = col.getProperties();
-                String metricValue = metricVal.getValue();
-                metricTokens.add(metricName);
-                String[] tokens = new String[metricTokens.size()];
-                tokens = metricTokens.toArray(tokens);
-                metricTokens.removeLast();
-                Metric metric;
-                if (metricProps == null || metricProps.size() == 0) {
-                    LOGGER.debug("Creating metric with default properties name {}, value {}, prefix {}, tokens {}",
-                            metricName, metricValue, metricPrefix, tokens);
-                    metric = new Metric(metricName, metricValue, metricPrefix, tokens);
-                } else {
-                    LOGGER.debug("Creating metric name {}, value {}, prefix {}, tokens {}, properties {}", metricName
-                            , metricValue, metricPrefix, tokens, metricProps);
-                    metric = new Metric(metricName, metricValue, metricProps, metricPrefix, tokens);
+        }
+        logSkippedValues(query, nullValues, skippedCounters, undefinedValues);
+        return rows;
+    }
+
+    /**
+     * Reports the rows with the highest rank individually, and the sum of the values of all the other rows under an
+     * "Other" path. Counters are computed for every row, so that a row moving into the top rows is reported
+     * correctly right away. Derived columns are not reported for the other rows, a ratio cannot be summed.
+     */
+    private int collectTopRows(QueryPlan query, ResultSet rs, RowDecoder decoder, MetricPathCache.Lookup lookup,
+                               CounterCalculator counters, MetricEmitter emitter, List<CachedMetric> results)
+            throws SQLException {
+        int valueCount = decoder.getValueCount();
+        TopNSelector selector = new TopNSelector(query.getTopN(), query.getTopNHysteresis(),
+                serverContext.getTopRows(query), valueCount);
+        double[] values = new double[valueCount];
+        int rows = 0;
+        int nullValues = 0;
+        int skippedCounters = 0;
+        int undefinedValues = 0;
+        while (rs.next()) {
+            rows++;
+            decoder.decode(rs);
+            nullValues += countNullPaths(decoder);
+            RowPaths paths = lookup.paths();
+            counters.sample(decoder, paths);
+            for (int i = 0; i < valueCount; i++) {
+                if (!decoder.hasValue(i)) {
+                    nullValues++;
+                    values[i] = Double.NaN;
+                    continue;
+                }
+                values[i] = counters.compute(decoder, i);
+                if (Double.isNaN(values[i]) && !decoder.isReportedAsIs(i)) {
+                    if (decoder.getExpression(i) == null) {
+                        skippedCounters++;
+                    } else {
+                        undefinedValues++;
+                    }
                 }
-                metrics.add(metric);
             }
+            TopNSelector.Entry entry = selector.offer(paths.getRowId(), decoder.getRankValue());
+            if (entry == null) {
+                selector.fold(values);
+                continue;
+            }
+            entry.paths = paths;
+            for (int i = 0; i < valueCount; i++) {
+                entry.values[i] = values[i];
+                boolean reported = decoder.hasValue(i) && (!Double.isNaN(values[i]) || decoder.isReportedAsIs(i));
+                entry.formatted[i] = reported ? CounterCalculator.format(decoder, i, values[i]) : null;
+            }
+        }
+        for (TopNSelector.Entry entry : selector.getTopRows()) {
+            for (int i = 0; i < valueCount; i++) {
+                if (entry.formatted[i] != null) {
+                    emit(decoder.getValueColumn(i), entry.formatted[i], entry.paths.getTokens(i), emitter, results);
+                }
+            }
+        }
+        if (selector.getOtherRowCount() > 0) {
+            String[] otherPrefix = otherPrefix(query);
+            for (int i = 0; i < valueCount; i++) {
+                if (selector.hasOtherValue(i) && decoder.getExpression(i) == null) {
+                    Column col = decoder.getValueColumn(i);
+                    String[] tokens = Arrays.copyOf(otherPrefix, otherPrefix.length + 1);
+                    tokens[otherPrefix.length] = col.getName();
+                    emit(col, formatSum(selector.getOtherValue(i)), tokens, emitter, results);
+                }
+            }
+            LOGGER.debug("Reported {} rows of query {} database {} server {} individually and {} rows as {}",
+                    query.getTopN(), query.getName(), dbName, serverName, selector.getOtherRowCount(), OTHER);
+        }
+        serverContext.setTopRows(query, selector.getTopRowIds());
+        logSkippedValues(query, nullValues, skippedCounters, undefinedValues);
+        return rows;
+    }
+
+    private String[] otherPrefix(QueryPlan query) {
+        if (query.isServerLvlQuery()) {
+            return new String[]{serverName, OTHER};
+        }
+        return new String[]{serverName, dbName, query.getName(), OTHER};
+    }
+
+    // sums of integral values are reported without a fraction
+    private static String formatSum(double sum) {
+        if (sum == Math.rint(sum) && Math.abs(sum) < 1L << 53) {
+            return Long.toString((long) sum);
+        }
+        return Double.toString(sum);
+    }
+
+    private static int countNullPaths(RowDecoder decoder) {
+        int nullPaths = 0;
+        for (int i = 0; i < decoder.getPathCount(); i++) {
+            if (decoder.getPathValue(i) == null) {
+                nullPaths++;
+            }
+        }
+        return nullPaths;
+    }
+
+    private void emit(Column col, String metricValue, String[] tokens, MetricEmitter emitter,
+                      List<CachedMetric> results) {
+        String metricName = col.getName();
+        Map<String, ?> metricProps = col.getMetricProperties();
+        Metric metric;
+        if (metricProps == null || metricProps.size() == 0) {
+            metric = new Metric(metricName, metricValue, metricPrefix, tokens);
+        } else {
+            metric = new Metric(metricName, metricValue, metricProps, metricPrefix, tokens);
+        }
+        emitter.emit(metric);
+        if (results != null) {
+            results.add(new CachedMetric(metricName, metricValue, metricProps, tokens));
+        }
+    }
+
+    private void logSkippedValues(QueryPlan query, int nullValues, int skippedCounters, int undefinedValues) {
+        if (nullValues > 0) {
+            LOGGER.debug("Null values encountered {} times for query {} database {} server {}, these will not be " +
+                    "reported as metrics", nullValues, query.getName(), dbName, serverName);
+        }
+        if (skippedCounters > 0) {
+            LOGGER.debug("{} counters of query {} database {} server {} were seen for the first time or were reset, " +
+                    "they will be reported from the next run", skippedCounters, query.getName(), dbName, serverName);
+        }
+        if (undefinedValues > 0) {
+            LOGGER.debug("{} derived values of query {} database {} server {} could not be computed, for instance " +
+                    "because of a division by zero or a counter seen for the first time", undefinedValues,
+                    query.getName(), dbName, serverName);
         }
-        return metrics;
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.MetricWriteHelper;
+import com.appdynamics.extensions.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands metrics to the {@link MetricWriteHelper} in chunks of a fixed size as they are produced, so that the number
+ * of metrics held in memory is bounded by the chunk size and not by the size of the query results.
+ */
+public class MetricEmitter {
+    private final MetricWriteHelper metricWriteHelper;
+    private final int chunkSize;
+    private List<Metric> chunk;
+    private int emittedCount;
+
+    public MetricEmitter(MetricWriteHelper metricWriteHelper, int chunkSize) {
+        this.metricWriteHelper = metricWriteHelper;
+        this.chunkSize = chunkSize;
+        this.chunk = new ArrayList<>();
+    }
+
+    /**
+     * @return an emitter that only counts the metrics, for queries executed in the background to refresh their cached
+     * results
+     */
+    static MetricEmitter discarding() {
+        return new MetricEmitter(null, Integer.MAX_VALUE);
+    }
+
+    public void emit(Metric metric) {
+        if (metricWriteHelper == null) {
+            emittedCount++;
+            return;
+        }
+        chunk.add(metric);
+        emittedCount++;
+        if (chunk.size() >= chunkSize) {
+            flush();
+        }
+    }
+
+    public void flush() {
+        if (!chunk.isEmpty()) {
+            List<Metric> metrics = chunk;
+            chunk = new ArrayList<>();
+            metricWriteHelper.transformAndPrintMetrics(metrics);
+        }
+    }
+
+    public int getEmittedCount() {
+        return emittedCount;
+    }
+
+    /**
+     * @return number of metrics emitted but not yet handed to the metric writer
+     */
+    public int getPendingCount() {
+        return chunk.size();
+    }
+}
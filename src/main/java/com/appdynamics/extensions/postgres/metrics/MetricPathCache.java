@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of the metric path tokens of a row, keyed by the query and the values of its metricPath columns.
+ * Table and database names rarely change between runs, so in steady state the token arrays handed to {@code Metric}
+ * are reused instead of being rebuilt for every row of every run. Least recently used entries are evicted once the
+ * cache is full.
+ */
+public class MetricPathCache {
+    private final Cache<PathKey, RowPaths> cache;
+
+    public MetricPathCache(long maxSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+    }
+
+    /**
+     * Returns a lookup for the rows of one execution of the query. A lookup is not thread safe and must not be
+     * shared between executions.
+     */
+    Lookup lookup(String serverName, String dbName, QueryPlan query, RowDecoder decoder) {
+        return new Lookup(serverName, dbName, query, decoder);
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return "size=" + cache.size() + ", hits=" + stats.hitCount() + ", misses=" + stats.missCount() +
+                ", evictions=" + stats.evictionCount();
+    }
+
+    /**
+     * Resolves the metric paths for the current row of a {@link RowDecoder}, one path per metricValue column. The
+     * key used for the lookup is reused for every row, a copy is only made when a new row is added to the cache.
+     */
+    final class Lookup {
+        private final String serverName;
+        private final String dbName;
+        private final QueryPlan query;
+        private final RowDecoder decoder;
+        private final PathKey key;
+
+        private Lookup(String serverName, String dbName, QueryPlan query, RowDecoder decoder) {
+            this.serverName = serverName;
+            this.dbName = dbName;
+            this.query = query;
+            this.decoder = decoder;
+            this.key = new PathKey(query, new String[decoder.getPathCount()]);
+        }
+
+        /**
+         * @return the paths of the metrics of the current row, indexed like the value columns of the decoder
+         */
+        RowPaths paths() {
+            for (int i = 0; i < key.pathValues.length; i++) {
+                key.pathValues[i] = decoder.getPathValue(i);
+            }
+            key.rehash();
+            RowPaths paths = cache.getIfPresent(key);
+            if (paths == null) {
+                paths = build();
+                cache.put(key.copy(), paths);
+            }
+            return paths;
+        }
+
+        private RowPaths build() {
+            int prefixSize = query.isServerLvlQuery() ? 1 : 3;
+            int pathSize = 0;
+            for (String value : key.pathValues) {
+                if (value != null) {
+                    pathSize++;
+                }
+            }
+            String[][] tokens = new String[decoder.getValueCount()][];
+            for (int col = 0; col < tokens.length; col++) {
+                String[] metricTokens = new String[prefixSize + pathSize + 1];
+                int pos = 0;
+                // {metricPrefix}|{servername}
+                metricTokens[pos++] = serverName;
+                // if not a server level query then dbname and query name should be included in metric path
+                if (!query.isServerLvlQuery()) {
+                    //{metricPrefix}|{servername}|{dbname}|{queryname}
+                    metricTokens[pos++] = dbName;
+                    metricTokens[pos++] = query.getName();
+                }
+                for (String value : key.pathValues) {
+                    if (value != null) {
+                        metricTokens[pos++] = value;
+                    }
+                }
+                metricTokens[pos] = decoder.getValueColumn(col).getName();
+                tokens[col] = metricTokens;
+            }
+            return new RowPaths(tokens);
+        }
+    }
+
+    // query plans are compiled once per config load and compared by identity
+    private static final class PathKey {
+        private final QueryPlan query;
+        private final String[] pathValues;
+        private int hash;
+
+        private PathKey(QueryPlan query, String[] pathValues) {
+            this.query = query;
+            this.pathValues = pathValues;
+            rehash();
+        }
+
+        private void rehash() {
+            hash = 31 * System.identityHashCode(query) + Arrays.hashCode(pathValues);
+        }
+
+        private PathKey copy() {
+            return new PathKey(query, pathValues.clone());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof PathKey)) {
+                return false;
+            }
+            PathKey other = (PathKey) obj;
+            return query == other.query && Arrays.equals(pathValues, other.pathValues);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The metrics of the last successful run of each query with an interval, published again on the runs where the query
+ * is not due so that the graphs on the controller do not have gaps. One cache is shared by all the servers, it holds
+ * up to a maximum number of metrics and evicts the results of the least recently used queries once it is full.
+ */
+public class QueryResultCache {
+    // query plans are compiled once per config load and compared by identity
+    private final Cache<QueryPlan, Entry> results;
+
+    public QueryResultCache(long maxMetrics) {
+        this.results = CacheBuilder.newBuilder().maximumWeight(maxMetrics)
+                .weigher((QueryPlan query, Entry entry) -> Math.max(1, entry.metrics.size())).recordStats().build();
+    }
+
+    /**
+     * The metrics of one run of a query and when they were collected.
+     */
+    static final class Entry {
+        private final List<CachedMetric> metrics;
+        private final long timeMillis;
+
+        private Entry(List<CachedMetric> metrics, long timeMillis) {
+            this.metrics = metrics;
+            this.timeMillis = timeMillis;
+        }
+
+        List<CachedMetric> getMetrics() {
+            return metrics;
+        }
+
+        long getAgeMillis(long nowMillis) {
+            return Math.max(0, nowMillis - timeMillis);
+        }
+    }
+
+    void put(QueryPlan query, List<CachedMetric> metrics, long timeMillis) {
+        results.put(query, new Entry(Collections.unmodifiableList(metrics), timeMillis));
+    }
+
+    /**
+     * @return the result of the last successful run of the query, null if there is none
+     */
+    Entry get(QueryPlan query) {
+        return results.getIfPresent(query);
+    }
+
+    public void invalidate(QueryPlan query) {
+        results.invalidate(query);
+    }
+
+    /**
+     * Forgets the result of the query only if it is still the given one, not a result put since.
+     */
+    void invalidate(QueryPlan query, Entry entry) {
+        results.asMap().remove(query, entry);
+    }
+
+    public long size() {
+        return results.size();
+    }
+
+    public long getEvictionCount() {
+        return results.stats().evictionCount();
+    }
+
+    public void clear() {
+        results.invalidateAll();
+    }
+}
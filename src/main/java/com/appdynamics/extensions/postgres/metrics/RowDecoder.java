@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.postgres.column.Column;
+import com.appdynamics.extensions.postgres.column.ColumnType;
+import com.appdynamics.extensions.postgres.column.CounterMode;
+import com.appdynamics.extensions.postgres.expression.Expression;
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decodes the configured columns of a {@link ResultSet} row by row. Column indexes and SQL types are resolved once
+ * per result set from {@link ResultSetMetaData}, metric values are read with the accessor matching the SQL type and
+ * kept in reusable primitive buffers, so decoding a row does not look up columns by name or turn numbers into
+ * strings before a metric is actually created. The values of derived columns are not read from the result set, they
+ * follow the metricValue columns and are computed by {@link CounterCalculator}.
+ */
+final class RowDecoder {
+
+    enum Kind {
+        LONG, DOUBLE, DECIMAL, TEXT, DERIVED
+    }
+
+    private final int[] pathIndexes;
+    private final Column[] valueColumns;
+    private final int[] valueIndexes;
+    private final Kind[] kinds;
+    // number of value columns read from the result set, the derived columns follow them
+    private final int resultColumns;
+    // null for the columns read from the result set
+    private final Expression[] expressions;
+    // whether the value of the column is reported as read from the database
+    private final boolean[] asIs;
+    // 0 if the query has no stats reset column
+    private final int resetIndex;
+    // 0 if the rows are not ranked
+    private final int rankIndex;
+    // buffers for the current row, reused for every row
+    private final String[] pathValues;
+    private final boolean[] present;
+    private final long[] longValues;
+    private final double[] doubleValues;
+    private final Object[] objectValues;
+    private int resetMarker;
+    private double rankValue;
+
+    private RowDecoder(int[] pathIndexes, Column[] valueColumns, int[] valueIndexes, Kind[] kinds,
+                       int resultColumns, Expression[] expressions, int resetIndex, int rankIndex) {
+        this.pathIndexes = pathIndexes;
+        this.valueColumns = valueColumns;
+        this.valueIndexes = valueIndexes;
+        this.kinds = kinds;
+        this.resultColumns = resultColumns;
+        this.expressions = expressions;
+        this.resetIndex = resetIndex;
+        this.rankIndex = rankIndex;
+        this.pathValues = new String[pathIndexes.length];
+        this.present = new boolean[valueIndexes.length];
+        this.longValues = new long[valueIndexes.length];
+        this.doubleValues = new double[valueIndexes.length];
+        this.objectValues = new Object[valueIndexes.length];
+        this.asIs = new boolean[valueIndexes.length];
+        for (int i = 0; i < valueIndexes.length; i++) {
+            asIs[i] = kinds[i] != Kind.DERIVED && valueColumns[i].getCounterMode() == CounterMode.NONE;
+        }
+        // derived columns always have a value to compute, the expression decides whether it can be reported
+        for (int i = resultColumns; i < valueIndexes.length; i++) {
+            present[i] = true;
+            doubleValues[i] = Double.NaN;
+        }
+    }
+
+    static RowDecoder forResultSet(ResultSet rs, List<Column> cols) throws SQLException {
+        return forResultSet(rs, cols, Collections.<Expression>emptyList(), null, null);
+    }
+
+    /**
+     * Creates a decoder for the configured columns of the query, and for its stats reset and rank columns if any.
+     */
+    static RowDecoder forQuery(ResultSet rs, QueryPlan query) throws SQLException {
+        return forResultSet(rs, query.getColumns(), query.getExpressions(), query.getStatsResetColumn(),
+                query.getTopN() > 0 ? query.getRankBy() : null);
+    }
+
+    /**
+     * @param expressions the compiled expressions of the derived columns, derived columns without one are ignored
+     */
+    private static RowDecoder forResultSet(ResultSet rs, List<Column> cols, List<Expression> expressions,
+                                           String resetColumn, String rankColumn) throws SQLException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = columnCount; i >= 1; i--) {
+            // like ResultSet.findColumn the first column wins when a label is repeated
+            labels.put(metaData.getColumnLabel(i).toLowerCase(Locale.ROOT), i);
+        }
+        int pathCount = 0;
+        int resultColumns = 0;
+        for (Column col : cols) {
+            if (col.getType() == ColumnType.METRIC_PATH) {
+                pathCount++;
+            } else if (col.getType() == ColumnType.METRIC_VALUE) {
+                resultColumns++;
+            }
+        }
+        int[] pathIndexes = new int[pathCount];
+        Column[] valueColumns = new Column[resultColumns + expressions.size()];
+        int[] valueIndexes = new int[valueColumns.length];
+        Kind[] kinds = new Kind[valueColumns.length];
+        Expression[] compiled = new Expression[valueColumns.length];
+        int p = 0, v = 0, d = resultColumns;
+        for (Column col : cols) {
+            if (col.getType() == ColumnType.DERIVED) {
+                if (d < valueColumns.length) {
+                    valueColumns[d] = col;
+                    kinds[d] = Kind.DERIVED;
+                    compiled[d] = expressions.get(d - resultColumns);
+                    d++;
+                }
+                continue;
+            }
+            Integer index = labels.get(col.getName().toLowerCase(Locale.ROOT));
+            if (index == null) {
+                throw new SQLException("The column name " + col.getName() + " was not found in this ResultSet.");
+            }
+            if (col.getType() == ColumnType.METRIC_PATH) {
+                pathIndexes[p++] = index;
+            } else {
+                valueColumns[v] = col;
+                valueIndexes[v] = index;
+                kinds[v++] = kindOf(metaData.getColumnType(index));
+            }
+        }
+        return new RowDecoder(pathIndexes, valueColumns, valueIndexes, kinds, resultColumns, compiled,
+                indexOf(labels, resetColumn), indexOf(labels, rankColumn));
+    }
+
+    private static int indexOf(Map<String, Integer> labels, String column) throws SQLException {
+        if (column == null) {
+            return 0;
+        }
+        Integer index = labels.get(column.toLowerCase(Locale.ROOT));
+        if (index == null) {
+            throw new SQLException("The column name " + column + " was not found in this ResultSet.");
+        }
+        return index;
+    }
+
+    static Kind kindOf(int sqlType) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return Kind.LONG;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return Kind.DOUBLE;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return Kind.DECIMAL;
+            default:
+                return Kind.TEXT;
+        }
+    }
+
+    /**
+     * Reads the configured columns of the current row into the buffers.
+     */
+    void decode(ResultSet rs) throws SQLException {
+        for (int i = 0; i < pathIndexes.length; i++) {
+            pathValues[i] = rs.getString(pathIndexes[i]);
+        }
+        if (resetIndex > 0) {
+            String reset = rs.getString(resetIndex);
+            resetMarker = reset == null ? 0 : reset.hashCode();
+        }
+        if (rankIndex > 0) {
+            double rank = rs.getDouble(rankIndex);
+            rankValue = rs.wasNull() ? Double.NaN : rank;
+        }
+        for (int i = 0; i < resultColumns; i++) {
+            int index = valueIndexes[i];
+            switch (kinds[i]) {
+                case LONG:
+                    long l = rs.getLong(index);
+                    present[i] = !rs.wasNull();
+                    longValues[i] = l;
+                    doubleValues[i] = l;
+                    break;
+                case DOUBLE:
+                    double d = rs.getDouble(index);
+                    // NaN and infinity cannot be reported as a metric value
+                    present[i] = !rs.wasNull() && !Double.isNaN(d) && !Double.isInfinite(d);
+                    doubleValues[i] = d;
+                    break;
+                case DECIMAL:
+                    BigDecimal bd = rs.getBigDecimal(index);
+                    present[i] = bd != null;
+                    objectValues[i] = bd;
+                    doubleValues[i] = bd == null ? Double.NaN : bd.doubleValue();
+                    break;
+                default:
+                    String s = rs.getString(index);
+                    present[i] = s != null;
+                    objectValues[i] = s;
+                    doubleValues[i] = Double.NaN;
+            }
+        }
+    }
+
+    int getPathCount() {
+        return pathIndexes.length;
+    }
+
+    /**
+     * @return value of the i-th metricPath column of the current row, null if the database returned NULL
+     */
+    String getPathValue(int i) {
+        return pathValues[i];
+    }
+
+    int getValueCount() {
+        return valueIndexes.length;
+    }
+
+    Column getValueColumn(int i) {
+        return valueColumns[i];
+    }
+
+    Kind getKind(int i) {
+        return kinds[i];
+    }
+
+    /**
+     * @return the expression of the i-th value column if it is a derived column, null otherwise
+     */
+    Expression getExpression(int i) {
+        return expressions[i];
+    }
+
+    /**
+     * @return true if the i-th value column is reported as read from the database, false for counters and derived
+     * columns whose value is computed
+     */
+    boolean isReportedAsIs(int i) {
+        return asIs[i];
+    }
+
+    boolean hasValue(int i) {
+        return present[i];
+    }
+
+    /**
+     * @return the i-th metricValue column of the current row, only meaningful for {@link Kind#LONG} columns
+     */
+    long getLongValue(int i) {
+        return longValues[i];
+    }
+
+    /**
+     * @return value of the rank column of the current row, NaN if it is NULL
+     */
+    double getRankValue() {
+        return rankValue;
+    }
+
+    /**
+     * @return identifies when the statistics of the current row were last reset, 0 if unknown
+     */
+    int getResetMarker() {
+        return resetMarker;
+    }
+
+    /**
+     * @return the i-th metricValue column of the current row as a double, NaN for text and derived columns
+     */
+    double getDoubleValue(int i) {
+        return doubleValues[i];
+    }
+
+    /**
+     * @return the i-th metricValue column of the current row formatted as a metric value
+     */
+    String formatValue(int i) {
+        switch (kinds[i]) {
+            case LONG:
+                return Long.toString(longValues[i]);
+            case DOUBLE:
+                return Double.toString(doubleValues[i]);
+            case DECIMAL:
+                return ((BigDecimal) objectValues[i]).toPlainString();
+            default:
+                return (String) objectValues[i];
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+/**
+ * The metric path tokens of one row, and the id of each path, for every metricValue column of a query.
+ */
+final class RowPaths {
+    private final String[][] tokens;
+    private final long[] seriesIds;
+    private final long rowId;
+
+    RowPaths(String[][] tokens) {
+        this.tokens = tokens;
+        this.seriesIds = new long[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            seriesIds[i] = pathHash(tokens[i], tokens[i].length);
+        }
+        // the tokens without the trailing column name identify the row
+        this.rowId = tokens.length == 0 ? 0 : pathHash(tokens[0], tokens[0].length - 1);
+    }
+
+    String[] getTokens(int valueColumn) {
+        return tokens[valueColumn];
+    }
+
+    /**
+     * @return 64 bit FNV-1a hash of the metric path, identifies the series of a counter
+     */
+    long getSeriesId(int valueColumn) {
+        return seriesIds[valueColumn];
+    }
+
+    /**
+     * @return 64 bit FNV-1a hash of the path without the metric name, identifies the row
+     */
+    long getRowId() {
+        return rowId;
+    }
+
+    private static long pathHash(String[] tokens, int count) {
+        long hash = 0xcbf29ce484222325L;
+        for (int t = 0; t < count; t++) {
+            String token = tokens[t];
+            for (int i = 0; i < token.length(); i++) {
+                hash ^= token.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= '|';
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
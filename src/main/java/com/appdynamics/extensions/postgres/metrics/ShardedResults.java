@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The metrics of each shard of a sharded query as of the run the shard was last read in. A sharded query reads one
+ * shard of its rows per run, round robin, and the metrics of the other shards are published again from this view, so
+ * that every row is reported on every run while the load on the server stays the same from run to run.
+ */
+public class ShardedResults {
+    private final List<List<CachedMetric>> shards;
+    private int nextShard;
+
+    public ShardedResults(int shardCount) {
+        this.shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(Collections.<CachedMetric>emptyList());
+        }
+    }
+
+    /**
+     * @return the shard to read on this run
+     */
+    synchronized int nextShard() {
+        int shard = nextShard;
+        nextShard = (nextShard + 1) % shards.size();
+        return shard;
+    }
+
+    /**
+     * Replaces the metrics of a shard with the ones of the run that just read it.
+     */
+    synchronized void put(int shard, List<CachedMetric> metrics) {
+        shards.set(shard, Collections.unmodifiableList(metrics));
+    }
+
+    /**
+     * @return the metrics of every shard but the given one, one list per shard
+     */
+    synchronized List<List<CachedMetric>> getOthers(int shard) {
+        List<List<CachedMetric>> others = new ArrayList<>(shards);
+        others.remove(shard);
+        return others;
+    }
+
+    /**
+     * @return the metrics of all the shards
+     */
+    synchronized List<CachedMetric> getAll() {
+        List<CachedMetric> all = new ArrayList<>();
+        for (List<CachedMetric> shard : shards) {
+            all.addAll(shard);
+        }
+        return all;
+    }
+}
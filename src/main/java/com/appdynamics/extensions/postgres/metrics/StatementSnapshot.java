@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The counters of every statement in pg_stat_statements as of the previous run, keyed by user, database and query id,
+ * used to turn the cumulative counters of the view into the work done since. The previous snapshot and the one being
+ * read are open addressing tables of primitive arrays, swapped after every read, so that once the tables have grown to
+ * the number of statements of the server a read allocates nothing per statement. The statements that took the most
+ * execution time since the previous read are kept in a bounded min heap of entries reused across reads.
+ * <p>
+ * A statement missing from the previous snapshot was added to the view since, after pg_stat_statements_reset() or in
+ * place of statements deallocated to make room, so all its counters are work done since the previous read. The same
+ * goes for a statement whose calls went down, it was reset or deallocated and added again in between. Not thread
+ * safe, a snapshot is read by one task at a time.
+ */
+public class StatementSnapshot {
+    private static final int MIN_CAPACITY = 64;
+
+    private Table previous = new Table(MIN_CAPACITY);
+    private Table current = new Table(MIN_CAPACITY);
+    // false until a snapshot was read completely, the counters of the first snapshot have no baseline
+    private boolean hasPrevious;
+    private boolean deltas;
+    private Delta[] heap = new Delta[0];
+    private int heapSize;
+    private final Delta total = new Delta();
+    private int statementCount;
+    private int addedCount;
+    private int resetCount;
+    private int deallocatedCount;
+
+    /**
+     * The work done by a statement since the previous read. The names are filled in by the caller when the entry is
+     * handed out by {@link #add}.
+     */
+    static final class Delta {
+        long userId;
+        long dbId;
+        long queryId;
+        long calls;
+        // milliseconds
+        double execTime;
+        long rows;
+        long blocksHit;
+        long blocksRead;
+        String dbName;
+        String userName;
+
+        private void set(long userId, long dbId, long queryId, long calls, double execTime, long rows,
+                         long blocksHit, long blocksRead) {
+            this.userId = userId;
+            this.dbId = dbId;
+            this.queryId = queryId;
+            this.calls = calls;
+            this.execTime = execTime;
+            this.rows = rows;
+            this.blocksHit = blocksHit;
+            this.blocksRead = blocksRead;
+            this.dbName = null;
+            this.userName = null;
+        }
+
+        private void add(long calls, double execTime, long rows, long blocksHit, long blocksRead) {
+            this.calls += calls;
+            this.execTime += execTime;
+            this.rows += rows;
+            this.blocksHit += blocksHit;
+            this.blocksRead += blocksRead;
+        }
+    }
+
+    /**
+     * Starts reading a new snapshot, keeping the {@code topK} statements with the most execution time.
+     */
+    void begin(int topK) {
+        // sized for the statements of the previous snapshot, so that it does not grow while it is read
+        current.reset(previous.size);
+        // left over by a read that failed
+        previous.clearFound();
+        if (heap.length != topK) {
+            heap = new Delta[topK];
+            for (int i = 0; i < topK; i++) {
+                heap[i] = new Delta();
+            }
+        }
+        heapSize = 0;
+        total.set(0, 0, 0, 0, 0, 0, 0, 0);
+        deltas = hasPrevious;
+        statementCount = 0;
+        addedCount = 0;
+        resetCount = 0;
+        deallocatedCount = 0;
+    }
+
+    /**
+     * Adds the cumulative counters of a statement to the snapshot being read.
+     *
+     * @return the entry to fill in with the names of the statement if it is among the top statements so far, null if
+     * it is not or there is no previous snapshot to compare with
+     */
+    Delta add(long userId, long dbId, long queryId, long calls, double execTime, long rows, long blocksHit,
+              long blocksRead) {
+        statementCount++;
+        long owner = owner(userId, dbId);
+        current.put(owner, queryId, calls, execTime, rows, blocksHit, blocksRead);
+        if (!deltas) {
+            return null;
+        }
+        int slot = previous.find(owner, queryId);
+        long deltaCalls = calls;
+        double deltaTime = execTime;
+        long deltaRows = rows;
+        long deltaHit = blocksHit;
+        long deltaRead = blocksRead;
+        if (slot < 0) {
+            addedCount++;
+        } else {
+            previous.match(slot);
+            if (calls < previous.calls[slot]) {
+                resetCount++;
+            } else {
+                deltaCalls -= previous.calls[slot];
+                deltaTime = Math.max(0, deltaTime - previous.execTimes[slot]);
+                deltaRows = Math.max(0, deltaRows - previous.rows[slot]);
+                deltaHit = Math.max(0, deltaHit - previous.blocksHit[slot]);
+                deltaRead = Math.max(0, deltaRead - previous.blocksRead[slot]);
+            }
+        }
+        total.add(deltaCalls, deltaTime, deltaRows, deltaHit, deltaRead);
+        if (deltaCalls == 0) {
+            // not executed since the previous read
+            return null;
+        }
+        Delta entry;
+        if (heapSize < heap.length) {
+            entry = heap[heapSize];
+            entry.set(userId, dbId, queryId, deltaCalls, deltaTime, deltaRows, deltaHit, deltaRead);
+            siftUp(heapSize++);
+        } else if (heapSize > 0 && deltaTime > heap[0].execTime) {
+            // the statement with the least execution time is pushed out and its entry is reused
+            entry = heap[0];
+            entry.set(userId, dbId, queryId, deltaCalls, deltaTime, deltaRows, deltaHit, deltaRead);
+            siftDown(0);
+        } else {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Completes the snapshot being read, it becomes the previous snapshot of the next read. A snapshot that is not
+     * completed, because reading it failed, is discarded by the next {@link #begin}.
+     */
+    void finish() {
+        if (deltas) {
+            deallocatedCount = previous.size - previous.matched;
+        }
+        Table read = current;
+        current = previous;
+        previous = read;
+        hasPrevious = true;
+    }
+
+    /**
+     * @return true if the last snapshot was compared with a previous one, false on the first read
+     */
+    boolean hasDeltas() {
+        return deltas;
+    }
+
+    /**
+     * @return the statements with the most execution time since the previous read, most first
+     */
+    List<Delta> getTop() {
+        List<Delta> top = new ArrayList<>(Arrays.asList(heap).subList(0, heapSize));
+        top.sort((a, b) -> Double.compare(b.execTime, a.execTime));
+        return top;
+    }
+
+    /**
+     * @return the work done by all the statements since the previous read
+     */
+    Delta getTotal() {
+        return total;
+    }
+
+    int getStatementCount() {
+        return statementCount;
+    }
+
+    /**
+     * @return number of statements added to the view since the previous read
+     */
+    int getAddedCount() {
+        return addedCount;
+    }
+
+    /**
+     * @return number of statements whose counters went back since the previous read
+     */
+    int getResetCount() {
+        return resetCount;
+    }
+
+    /**
+     * @return number of statements of the previous read that are no longer in the view, deallocated or reset
+     */
+    int getDeallocatedCount() {
+        return deallocatedCount;
+    }
+
+    private void siftUp(int i) {
+        Delta entry = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent].execTime <= entry.execTime) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = entry;
+    }
+
+    private void siftDown(int i) {
+        Delta entry = heap[i];
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && heap[child + 1].execTime < heap[child].execTime) {
+                child++;
+            }
+            if (entry.execTime <= heap[child].execTime) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = entry;
+    }
+
+    // oids are unsigned 32 bit integers
+    private static long owner(long userId, long dbId) {
+        return userId << 32 | (dbId & 0xFFFFFFFFL);
+    }
+
+    private static final class Table {
+        private long[] owners;
+        private long[] queryIds;
+        private long[] calls;
+        private double[] execTimes;
+        private long[] rows;
+        private long[] blocksHit;
+        private long[] blocksRead;
+        private boolean[] used;
+        // statements found again in the next snapshot
+        private boolean[] found;
+        private int size;
+        private int matched;
+
+        private Table(int capacity) {
+            allocate(capacity);
+        }
+
+        private void reset(int expected) {
+            int capacity = capacityFor(expected);
+            // shrinks once the server tracks far fewer statements than it used to
+            if (capacity > used.length || capacity * 4 < used.length) {
+                allocate(capacity);
+            } else {
+                Arrays.fill(used, false);
+                Arrays.fill(found, false);
+            }
+            size = 0;
+            matched = 0;
+        }
+
+        private void clearFound() {
+            if (matched > 0) {
+                Arrays.fill(found, false);
+                matched = 0;
+            }
+        }
+
+        private void put(long owner, long queryId, long calls, double execTime, long rows, long blocksHit,
+                         long blocksRead) {
+            int slot = slot(owner, queryId);
+            if (!used[slot]) {
+                used[slot] = true;
+                owners[slot] = owner;
+                queryIds[slot] = queryId;
+                if (++size > used.length * 3 / 4) {
+                    resize();
+                    slot = slot(owner, queryId);
+                }
+            }
+            this.calls[slot] = calls;
+            this.execTimes[slot] = execTime;
+            this.rows[slot] = rows;
+            this.blocksHit[slot] = blocksHit;
+            this.blocksRead[slot] = blocksRead;
+        }
+
+        private int find(long owner, long queryId) {
+            int slot = slot(owner, queryId);
+            return used[slot] ? slot : -1;
+        }
+
+        private void match(int slot) {
+            if (!found[slot]) {
+                found[slot] = true;
+                matched++;
+            }
+        }
+
+        // the slot of the statement, or the empty slot it goes in
+        private int slot(long owner, long queryId) {
+            int mask = used.length - 1;
+            int slot = mix(owner, queryId) & mask;
+            while (used[slot] && (owners[slot] != owner || queryIds[slot] != queryId)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize() {
+            long[] oldOwners = owners;
+            long[] oldQueryIds = queryIds;
+            long[] oldCalls = calls;
+            double[] oldExecTimes = execTimes;
+            long[] oldRows = rows;
+            long[] oldHit = blocksHit;
+            long[] oldRead = blocksRead;
+            boolean[] oldUsed = used;
+            allocate(oldUsed.length * 2);
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (oldUsed[i]) {
+                    int slot = slot(oldOwners[i], oldQueryIds[i]);
+                    used[slot] = true;
+                    owners[slot] = oldOwners[i];
+                    queryIds[slot] = oldQueryIds[i];
+                    calls[slot] = oldCalls[i];
+                    execTimes[slot] = oldExecTimes[i];
+                    rows[slot] = oldRows[i];
+                    blocksHit[slot] = oldHit[i];
+                    blocksRead[slot] = oldRead[i];
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            owners = new long[capacity];
+            queryIds = new long[capacity];
+            calls = new long[capacity];
+            execTimes = new double[capacity];
+            rows = new long[capacity];
+            blocksHit = new long[capacity];
+            blocksRead = new long[capacity];
+            used = new boolean[capacity];
+            found = new boolean[capacity];
+        }
+
+        private static int capacityFor(int entries) {
+            int capacity = MIN_CAPACITY;
+            while (entries > capacity / 2) {
+                capacity *= 2;
+            }
+            return capacity;
+        }
+
+        private static int mix(long owner, long queryId) {
+            long h = (owner * 0x9E3779B97F4A7C15L) ^ queryId;
+            h *= 0xC2B2AE3D27D4EB4FL;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.MetricWriteHelper;
+import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
+import com.appdynamics.extensions.metrics.Metric;
+import com.appdynamics.extensions.postgres.ServerContext;
+import com.appdynamics.extensions.postgres.connection.ConnectionPool;
+import com.appdynamics.extensions.postgres.connection.PooledConnection;
+import com.appdynamics.extensions.postgres.plan.StatementsPlan;
+import com.appdynamics.extensions.postgres.stats.CollectionStats;
+import org.slf4j.Logger;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.appdynamics.extensions.postgres.util.Constants.STATEMENTS_PATH;
+
+/**
+ * Collects the statements of a server that took the most execution time since the previous run from
+ * pg_stat_statements. The view is streamed once per run and diffed against the snapshot of the previous run kept by
+ * the server, and only the top statements, the work done by all the statements and the churn of the view are
+ * reported, whatever the number of statements the server tracks.
+ */
+public class StatementsTask implements Runnable {
+    private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(StatementsTask.class);
+    // SQLSTATE undefined_table, the extension is not installed in the database
+    private static final String UNDEFINED_TABLE = "42P01";
+    // SQLSTATE query_canceled
+    private static final String QUERY_CANCELED = "57014";
+    // columns of the statements query
+    private static final int USER_ID = 1;
+    private static final int DB_ID = 2;
+    private static final int QUERY_ID = 3;
+    private static final int CALLS = 4;
+    private static final int EXEC_TIME = 5;
+    private static final int ROWS = 6;
+    private static final int BLOCKS_HIT = 7;
+    private static final int BLOCKS_READ = 8;
+    private static final int DB_NAME = 9;
+    private static final int USER_NAME = 10;
+
+    private final String serverName;
+    private final ServerContext serverContext;
+    private final StatementsPlan plan;
+    private final String metricPrefix;
+    private final ConnectionPool pool;
+    private final MetricWriteHelper metricWriteHelper;
+    private final AtomicBoolean heart_beat;
+    private final CollectionStats stats;
+    private volatile boolean cancelled;
+    // the statement being executed, so that it can be cancelled from another thread
+    private volatile Statement running;
+
+    public StatementsTask(ServerContext serverContext, StatementsPlan plan, String metricPrefix,
+                          MetricWriteHelper metricWriteHelper, AtomicBoolean heart_beat) {
+        this.serverName = serverContext.getServerName();
+        this.serverContext = serverContext;
+        this.plan = plan;
+        this.metricPrefix = metricPrefix;
+        this.pool = serverContext.getPool(plan.getDatabase());
+        this.metricWriteHelper = metricWriteHelper;
+        this.heart_beat = heart_beat;
+        this.stats = serverContext.getStats();
+    }
+
+    /**
+     * The execution time is total_time before PostgreSQL 13, and nested statements are listed separately from
+     * PostgreSQL 14 when pg_stat_statements.track is all. Their time is part of the time of the top level statements,
+     * so only those are read. Users and databases dropped since are reported by their oid.
+     */
+    static String statementsQuery(int majorVersion) {
+        return "SELECT s.userid, s.dbid, s.queryid, s.calls, " +
+                (majorVersion >= 13 ? "s.total_exec_time" : "s.total_time") +
+                ", s.rows, s.shared_blks_hit, s.shared_blks_read, d.datname, r.rolname FROM pg_stat_statements s " +
+                "LEFT JOIN pg_catalog.pg_database d ON d.oid = s.dbid " +
+                "LEFT JOIN pg_catalog.pg_roles r ON r.oid = s.userid WHERE s.queryid IS NOT NULL" +
+                (majorVersion >= 14 ? " AND s.toplevel" : "");
+    }
+
+    /**
+     * Cancels the read of pg_stat_statements, for instance when the run of the server is past its deadline. The
+     * snapshot of the previous run is kept, so the next run reports the work done since then.
+     */
+    public void cancel() {
+        cancelled = true;
+        Statement stmt = running;
+        if (stmt != null) {
+            try {
+                stmt.cancel();
+            } catch (SQLException se) {
+                LOGGER.debug("Could not cancel the read of pg_stat_statements of server {}", serverName, se);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        String dbName = plan.getDatabase().getDbName();
+        LOGGER.debug("Collecting the top statements of server {} from database {}", serverName, dbName);
+        MetricEmitter emitter = new MetricEmitter(metricWriteHelper,
+                serverContext.getServerPlan().getMetricChunkSize());
+        try (PooledConnection pooled = acquire()) {
+            heart_beat.compareAndSet(false, true);
+            Connection conn = pooled.getConnection();
+            boolean streaming = plan.getFetchSize() > 0;
+            try {
+                if (streaming) {
+                    // the driver only uses a cursor, instead of buffering the whole result, inside a transaction
+                    conn.setAutoCommit(false);
+                    conn.setReadOnly(true);
+                }
+                String query = statementsQuery(conn.getMetaData().getDatabaseMajorVersion());
+                try (Statement stmt = conn.createStatement()) {
+                    if (streaming) {
+                        stmt.setFetchSize(plan.getFetchSize());
+                    }
+                    stmt.setQueryTimeout(plan.getTimeoutSeconds());
+                    running = stmt;
+                    if (cancelled) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    try (ResultSet rs = stmt.executeQuery(query)) {
+                        stats.recordExecution(dbName, null, start);
+                        start = System.nanoTime();
+                        StatementSnapshot snapshot = serverContext.getStatementSnapshot();
+                        synchronized (snapshot) {
+                            int rows = read(snapshot, rs);
+                            publish(snapshot, emitter);
+                            stats.recordResult(dbName, null, start, rows, emitter.getEmittedCount());
+                        }
+                    }
+                }
+            } catch (SQLException se) {
+                if (!cancelled) {
+                    stats.recordError(dbName, null, QUERY_CANCELED.equals(se.getSQLState()));
+                }
+                pooled.invalidateIfBroken(se);
+                throw se;
+            } finally {
+                running = null;
+                if (streaming) {
+                    endReadOnlyTransaction(pooled);
+                }
+            }
+        } catch (ClassNotFoundException cce) {
+            LOGGER.error("ClassNotFoundException check drivers", cce);
+        } catch (SQLException se) {
+            if (cancelled) {
+                LOGGER.warn("Read of pg_stat_statements of server {} was cancelled", serverName);
+            } else if (UNDEFINED_TABLE.equals(se.getSQLState())) {
+                LOGGER.error("pg_stat_statements is not installed in database {} of server {}, run CREATE " +
+                        "EXTENSION pg_stat_statements in it", dbName, serverName, se);
+            } else {
+                LOGGER.error("Error reading pg_stat_statements of server {}", serverName, se);
+            }
+        }
+        emitter.flush();
+        stats.recordMetrics(emitter.getEmittedCount());
+    }
+
+    private PooledConnection acquire() throws SQLException, ClassNotFoundException {
+        long start = System.nanoTime();
+        try {
+            PooledConnection pooled = pool.acquire();
+            stats.recordAcquire(start, false);
+            return pooled;
+        } catch (SQLException | ClassNotFoundException e) {
+            stats.recordAcquire(start, true);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the counters of all the statements into the snapshot. Only the names of the statements that make it into
+     * the top statements so far are read.
+     *
+     * @return number of rows read
+     */
+    private int read(StatementSnapshot snapshot, ResultSet rs) throws SQLException {
+        snapshot.begin(plan.getTopK());
+        int rows = 0;
+        while (rs.next()) {
+            rows++;
+            StatementSnapshot.Delta entry = snapshot.add(rs.getLong(USER_ID), rs.getLong(DB_ID),
+                    rs.getLong(QUERY_ID), rs.getLong(CALLS), rs.getDouble(EXEC_TIME), rs.getLong(ROWS),
+                    rs.getLong(BLOCKS_HIT), rs.getLong(BLOCKS_READ));
+            if (entry != null) {
+                entry.dbName = rs.getString(DB_NAME);
+                entry.userName = rs.getString(USER_NAME);
+            }
+        }
+        snapshot.finish();
+        return rows;
+    }
+
+    private void publish(StatementSnapshot snapshot, MetricEmitter emitter) {
+        emit(emitter, String.valueOf(snapshot.getStatementCount()), "Tracked");
+        if (!snapshot.hasDeltas()) {
+            LOGGER.debug("Read the first snapshot of {} statements of server {}, the top statements will be " +
+                    "reported from the next run", snapshot.getStatementCount(), serverName);
+            return;
+        }
+        emit(emitter, String.valueOf(snapshot.getAddedCount()), "Added");
+        emit(emitter, String.valueOf(snapshot.getResetCount()), "Reset");
+        emit(emitter, String.valueOf(snapshot.getDeallocatedCount()), "Deallocated");
+        emitDelta(emitter, snapshot.getTotal(), "Total");
+        List<StatementSnapshot.Delta> top = snapshot.getTop();
+        for (StatementSnapshot.Delta delta : top) {
+            String db = delta.dbName != null ? delta.dbName : Long.toString(delta.dbId);
+            String user = delta.userName != null ? delta.userName : Long.toString(delta.userId);
+            emitDelta(emitter, delta, db, user, Long.toString(delta.queryId));
+            emit(emitter, Long.toString(Math.round(delta.execTime * 1000 / delta.calls)), db, user,
+                    Long.toString(delta.queryId), "Mean Exec Time (us)");
+        }
+        LOGGER.debug("Reported the top {} of {} statements of server {}, {} added, {} reset and {} deallocated since " +
+                "the previous run", top.size(), snapshot.getStatementCount(), serverName,
+                snapshot.getAddedCount(), snapshot.getResetCount(), snapshot.getDeallocatedCount());
+    }
+
+    private void emitDelta(MetricEmitter emitter, StatementSnapshot.Delta delta, String... path) {
+        emit(emitter, Long.toString(delta.calls), append(path, "Calls"));
+        emit(emitter, Long.toString(Math.round(delta.execTime)), append(path, "Exec Time (ms)"));
+        emit(emitter, Long.toString(delta.rows), append(path, "Rows"));
+        emit(emitter, Long.toString(delta.blocksHit), append(path, "Shared Blocks Hit"));
+        emit(emitter, Long.toString(delta.blocksRead), append(path, "Shared Blocks Read"));
+    }
+
+    private static String[] append(String[] path, String metricName) {
+        String[] tokens = new String[path.length + 1];
+        System.arraycopy(path, 0, tokens, 0, path.length);
+        tokens[path.length] = metricName;
+        return tokens;
+    }
+
+    private void emit(MetricEmitter emitter, String metricValue, String... path) {
+        String[] tokens = new String[path.length + 2];
+        tokens[0] = serverName;
+        tokens[1] = STATEMENTS_PATH;
+        System.arraycopy(path, 0, tokens, 2, path.length);
+        emitter.emit(new Metric(path[path.length - 1], metricValue, metricPrefix, tokens));
+    }
+
+    private void endReadOnlyTransaction(PooledConnection pooled) {
+        try {
+            // nothing was written, rolling back just closes the transaction and its cursor
+            pooled.getConnection().rollback();
+            pooled.getConnection().setAutoCommit(true);
+        } catch (SQLException se) {
+            LOGGER.debug("Could not end the transaction reading pg_stat_statements of server {}, closing the " +
+                    "connection", serverName, se);
+            pooled.invalidate();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the N most significant rows of a result while it is streamed, in a min heap ordered by rank, and folds the
+ * values of every other row into a single "Other" row. Rows that were kept on the previous run have their rank raised
+ * by the hysteresis, so that rows with close ranks do not swap places on every run. Not thread safe, one selector is
+ * used per query execution.
+ */
+final class TopNSelector {
+    private static final Comparator<Entry> BY_RANK = Comparator.comparingDouble(entry -> entry.rank);
+
+    private final int n;
+    private final double hysteresis;
+    // row ids kept on the previous run, sorted
+    private final long[] incumbents;
+    private final int valueCount;
+    private final PriorityQueue<Entry> heap;
+    private final double[] otherValues;
+    private final boolean[] otherPresent;
+    private int otherRows;
+
+    TopNSelector(int n, double hysteresis, long[] incumbents, int valueCount) {
+        this.n = n;
+        this.hysteresis = hysteresis;
+        this.incumbents = incumbents == null ? new long[0] : incumbents;
+        this.valueCount = valueCount;
+        this.heap = new PriorityQueue<>(n, BY_RANK);
+        this.otherValues = new double[valueCount];
+        this.otherPresent = new boolean[valueCount];
+    }
+
+    /**
+     * A row kept in the heap. The values are filled in by the caller when the row enters the heap.
+     */
+    static final class Entry {
+        private double rank;
+        private long rowId;
+        RowPaths paths;
+        // formatted values to report, null when the column has nothing to report
+        final String[] formatted;
+        // values folded into the other row if the entry is pushed out of the heap, NaN when not numeric
+        final double[] values;
+
+        private Entry(int valueCount) {
+            this.formatted = new String[valueCount];
+            this.values = new double[valueCount];
+        }
+    }
+
+    /**
+     * Offers the current row to the heap.
+     *
+     * @param rank the value of the rank column of the row, NaN if it is NULL
+     * @return the entry to fill with the values of the row if the row is kept, or null if the caller has to
+     * {@link #fold} the row
+     */
+    Entry offer(long rowId, double rank) {
+        double effectiveRank = Double.isNaN(rank) ? Double.NEGATIVE_INFINITY : rank;
+        if (hysteresis > 0 && Arrays.binarySearch(incumbents, rowId) >= 0) {
+            effectiveRank += Math.abs(effectiveRank) * hysteresis;
+        }
+        Entry entry;
+        if (heap.size() < n) {
+            entry = new Entry(valueCount);
+        } else if (effectiveRank > heap.peek().rank) {
+            // the least significant row is pushed out and its entry is reused
+            entry = heap.poll();
+            fold(entry.values);
+        } else {
+            return null;
+        }
+        entry.rank = effectiveRank;
+        entry.rowId = rowId;
+        heap.add(entry);
+        return entry;
+    }
+
+    /**
+     * Adds the values of a row that is not kept to the other row.
+     *
+     * @param values the values of the row, NaN for the columns that have nothing to report
+     */
+    void fold(double[] values) {
+        otherRows++;
+        for (int i = 0; i < valueCount; i++) {
+            if (!Double.isNaN(values[i])) {
+                otherValues[i] += values[i];
+                otherPresent[i] = true;
+            }
+        }
+    }
+
+    /**
+     * @return the rows kept, most significant first
+     */
+    List<Entry> getTopRows() {
+        List<Entry> rows = new ArrayList<>(heap);
+        rows.sort(BY_RANK.reversed());
+        return rows;
+    }
+
+    /**
+     * @return the sorted ids of the rows kept, to be passed as incumbents to the selector of the next run
+     */
+    long[] getTopRowIds() {
+        long[] ids = new long[heap.size()];
+        int i = 0;
+        for (Entry entry : heap) {
+            ids[i++] = entry.rowId;
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    int getOtherRowCount() {
+        return otherRows;
+    }
+
+    boolean hasOtherValue(int i) {
+        return otherPresent[i];
+    }
+
+    double getOtherValue(int i) {
+        return otherValues[i];
+    }
+}
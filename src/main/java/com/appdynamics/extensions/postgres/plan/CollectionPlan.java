@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.plan;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed, immutable view of config.yml that is compiled once per config load and shared by every run.
+ */
+public class CollectionPlan {
+    private final List<ServerPlan> servers;
+    private final int resultCacheMaxMetrics;
+
+    CollectionPlan(List<ServerPlan> servers, int resultCacheMaxMetrics) {
+        this.servers = Collections.unmodifiableList(servers);
+        this.resultCacheMaxMetrics = resultCacheMaxMetrics;
+    }
+
+    public List<ServerPlan> getServers() {
+        return servers;
+    }
+
+    /**
+     * @return maximum number of metrics of queries with an interval kept to publish again, for all servers together
+     */
+    public int getResultCacheMaxMetrics() {
+        return resultCacheMaxMetrics;
+    }
+}
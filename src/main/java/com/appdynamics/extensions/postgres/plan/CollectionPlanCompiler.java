@@ -0,0 +1,528 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.plan;
+
+import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
+import com.appdynamics.extensions.postgres.column.Column;
+import com.appdynamics.extensions.postgres.column.ColumnGenerator;
+import com.appdynamics.extensions.postgres.column.ColumnType;
+import com.appdynamics.extensions.postgres.connection.PostgresConnectionConfig;
+import com.appdynamics.extensions.postgres.connection.PostgresConnectionConfigHelper;
+import com.appdynamics.extensions.postgres.connection.Route;
+import com.appdynamics.extensions.postgres.expression.Expression;
+import com.appdynamics.extensions.postgres.util.ConfigUtils;
+import com.appdynamics.extensions.util.AssertUtils;
+import com.appdynamics.extensions.util.CryptoUtils;
+import com.google.common.base.Strings;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+import static com.appdynamics.extensions.postgres.util.Constants.*;
+
+/**
+ * Compiles the raw config.yml map into a {@link CollectionPlan}. All casting, validation, column binding and password
+ * decryption happens here once per config load instead of on every run.
+ */
+public class CollectionPlanCompiler {
+    private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(CollectionPlanCompiler.class);
+
+    public static CollectionPlan compile(Map<String, ?> config) {
+        return compile(config, new QueryPlanIndex());
+    }
+
+    /**
+     * Compiles a reloaded config.yml, handing back the plans of the running plan for the queries whose config did
+     * not change.
+     */
+    public static CollectionPlan compile(Map<String, ?> config, QueryPlanIndex previous) {
+        List<Map<String, ?>> servers = (List<Map<String, ?>>) config.get(SERVERS);
+        AssertUtils.assertNotNull(servers, "The servers section in config.yml cannot be null");
+        List<ServerPlan> serverPlans = new ArrayList<>();
+        for (Map<String, ?> server : servers) {
+            serverPlans.add(compileServer(server, config, previous));
+        }
+        return new CollectionPlan(serverPlans, Math.max(1, ConfigUtils.getInt(config, RESULT_CACHE_MAX_METRICS,
+                DEFAULT_RESULT_CACHE_MAX_METRICS)));
+    }
+
+    // settings configured at the top level of config.yml apply to every server
+    static ServerPlan compileServer(Map<String, ?> server, Map<String, ?> config, QueryPlanIndex previous) {
+        final String encryptionKey = (String) config.get(ENCRYPTION_KEY);
+        AssertUtils.assertNotNull(server.get(DISPLAY_NAME), "The displayName section for the database " +
+                "server cannot be null");
+        final String serverName = server.get(DISPLAY_NAME).toString();
+        List<DatabasePlan> databasePlans = new ArrayList<>();
+        List<Map<String, ?>> databases = (List<Map<String, ?>>) server.get(DATABASES);
+        Map<String, ?> discovery = (Map<String, ?>) server.get(DISCOVERY);
+        Map<String, ?> statements = (Map<String, ?>) server.get(STATEMENTS);
+        Map<String, ?> waitEvents = (Map<String, ?>) server.get(WAIT_EVENTS);
+        final String password = (databases == null || databases.isEmpty()) && discovery == null
+                && statements == null && waitEvents == null ? null : CryptoUtils.getPassword(server, encryptionKey);
+        final int queryTimeoutSeconds = ConfigUtils.getInt(server, QUERY_TIMEOUT_SECONDS,
+                DEFAULT_QUERY_TIMEOUT_SECONDS);
+        // server level queries of all the databases keyed by their statement, they are run once per server
+        Map<String, QueryPlan> serverQueries = new LinkedHashMap<>();
+        String serverQueryDb = null;
+        boolean pipelineServerQueries = false;
+        if (databases != null) {
+            for (Map<String, ?> database : databases) {
+                final String dbName = (String) database.get(DB_NAME);
+                if (Strings.isNullOrEmpty(dbName)) {
+                    LOGGER.debug("Please provide database name for server {}. Skipping entry...", serverName);
+                    continue;
+                }
+                boolean pipelineQueries = ConfigUtils.getBoolean(database, PIPELINE_QUERIES, false);
+                List<QueryPlan> queries = compileQueries(serverName, dbName,
+                        (List<Map<String, ?>>) database.get(QUERIES), queryTimeoutSeconds, previous);
+                if (pullUpServerQueries(serverName, dbName, queries, serverQueries) && serverQueryDb == null) {
+                    serverQueryDb = dbName;
+                    pipelineServerQueries = pipelineQueries;
+                }
+                databasePlans.add(compileDatabase(serverName, dbName, password, server, dbLevel(queries),
+                        pipelineQueries));
+            }
+        }
+        DiscoveryPlan discoveryPlan = null;
+        if (discovery != null) {
+            discoveryPlan = compileDiscovery(serverName, password, server, discovery, previous);
+            String dbName = discoveryPlan.getDatabase().getDbName();
+            List<QueryPlan> template = compileQueries(serverName, dbName,
+                    (List<Map<String, ?>>) discovery.get(QUERIES), queryTimeoutSeconds, previous);
+            if (pullUpServerQueries(serverName, dbName, template, serverQueries) && serverQueryDb == null) {
+                serverQueryDb = dbName;
+                pipelineServerQueries = ConfigUtils.getBoolean(discovery, PIPELINE_QUERIES, false);
+            }
+        }
+        DatabasePlan serverLevelDatabase = serverQueryDb == null ? null : compileDatabase(serverName,
+                serverQueryDb, password, server, new ArrayList<>(serverQueries.values()), pipelineServerQueries);
+        Map<String, ?> poolConfig = (Map<String, ?>) server.get(CONNECTION_POOL);
+        Map<String, ?> breakerConfig = (Map<String, ?>) server.get(CIRCUIT_BREAKER);
+        int[] bulkhead = compileBulkhead(serverName, (Map<String, ?>) server.get(BULKHEAD));
+        Map<String, ?> selfMonitoring = (Map<String, ?>) config.get(SELF_MONITORING);
+        return new ServerPlan.Builder().serverName(serverName).databases(databasePlans)
+                .maxPoolSize(ConfigUtils.getInt(poolConfig, MAX_POOL_SIZE, DEFAULT_MAX_POOL_SIZE))
+                .acquireTimeoutMillis(ConfigUtils.getInt(poolConfig, ACQUIRE_TIMEOUT_SECONDS,
+                        DEFAULT_ACQUIRE_TIMEOUT_SECONDS) * 1000L)
+                .validationIntervalMillis(ConfigUtils.getInt(poolConfig, VALIDATION_INTERVAL_SECONDS,
+                        DEFAULT_VALIDATION_INTERVAL_SECONDS) * 1000L)
+                .maxIdleMillis(ConfigUtils.getInt(poolConfig, MAX_IDLE_SECONDS, DEFAULT_MAX_IDLE_SECONDS) * 1000L)
+                .prepareQueries(ConfigUtils.getBoolean(poolConfig, PREPARE_QUERIES, true))
+                .metricChunkSize(ConfigUtils.getInt(config, METRIC_CHUNK_SIZE, DEFAULT_METRIC_CHUNK_SIZE))
+                .metricPathCacheSize(ConfigUtils.getInt(config, METRIC_PATH_CACHE_SIZE,
+                        DEFAULT_METRIC_PATH_CACHE_SIZE))
+                .counterExpiryMillis(ConfigUtils.getInt(config, COUNTER_EXPIRY_SECONDS,
+                        DEFAULT_COUNTER_EXPIRY_SECONDS) * 1000L)
+                .collectionDeadlineMillis(ConfigUtils.getInt(config, COLLECTION_DEADLINE_SECONDS,
+                        DEFAULT_COLLECTION_DEADLINE_SECONDS) * 1000L)
+                .serverLevelDatabase(serverLevelDatabase).discovery(discoveryPlan)
+                .statements(statements == null ? null : compileStatements(serverName, password, server, statements))
+                .waitEvents(waitEvents == null ? null : compileWaitEvents(serverName, password, server, waitEvents))
+                .circuitBreaker(Math.max(0, ConfigUtils.getInt(breakerConfig, FAILURE_THRESHOLD,
+                        DEFAULT_FAILURE_THRESHOLD)), ConfigUtils.getInt(breakerConfig, BACKOFF_SECONDS,
+                        DEFAULT_BACKOFF_SECONDS) * 1000L, ConfigUtils.getInt(breakerConfig, MAX_BACKOFF_SECONDS,
+                        DEFAULT_MAX_BACKOFF_SECONDS) * 1000L)
+                .selfMonitoring(ConfigUtils.getBoolean(selfMonitoring, ENABLED, true),
+                        ConfigUtils.getBoolean(selfMonitoring, PER_QUERY, false))
+                .maxConcurrentDatabases(Math.max(1, ConfigUtils.getInt(server, MAX_CONCURRENT_DATABASES,
+                        DEFAULT_MAX_CONCURRENT_DATABASES))).bulkhead(bulkhead[0], bulkhead[1]).build();
+    }
+
+    /**
+     * @return the maximum number of connections and of connections in flight, both 0 if the server has no bulkhead
+     */
+    private static int[] compileBulkhead(String serverName, Map<String, ?> bulkhead) {
+        if (bulkhead == null) {
+            return new int[2];
+        }
+        int maxConnections = ConfigUtils.getInt(bulkhead, MAX_CONNECTIONS, 0);
+        if (maxConnections < 1) {
+            LOGGER.warn("bulkhead of server {} has no valid maxConnections, the connections to the server will not " +
+                    "be bounded", serverName);
+            return new int[2];
+        }
+        int maxInFlight = ConfigUtils.getInt(bulkhead, MAX_IN_FLIGHT, maxConnections);
+        if (maxInFlight < 1 || maxInFlight > maxConnections) {
+            LOGGER.warn("maxInFlight of the bulkhead of server {} should be between 1 and maxConnections, using {}",
+                    serverName, maxConnections);
+            maxInFlight = maxConnections;
+        }
+        return new int[]{maxConnections, maxInFlight};
+    }
+
+    /**
+     * pg_stat_statements lists the statements of all the databases of the server, so it is read from a single
+     * database. The rows are streamed, a server tracks up to pg_stat_statements.max statements.
+     */
+    private static StatementsPlan compileStatements(String serverName, String password, Map<String, ?> server,
+                                                    Map<String, ?> statements) {
+        String dbName = (String) statements.get(STATEMENTS_DATABASE);
+        if (Strings.isNullOrEmpty(dbName)) {
+            dbName = DEFAULT_DISCOVERY_DATABASE;
+        }
+        int topK = ConfigUtils.getInt(statements, TOP_K, DEFAULT_TOP_K);
+        if (topK < 1) {
+            LOGGER.warn("topK of the statements of server {} should be at least 1, using {}", serverName,
+                    DEFAULT_TOP_K);
+            topK = DEFAULT_TOP_K;
+        }
+        return new StatementsPlan.Builder()
+                .database(compileDatabase(serverName, dbName, password, server, new ArrayList<>(), false))
+                .topK(topK).fetchSize(Math.max(0, ConfigUtils.getInt(statements, FETCH_SIZE,
+                        DEFAULT_STATEMENTS_FETCH_SIZE)))
+                .timeoutSeconds(Math.max(0, ConfigUtils.getInt(server, QUERY_TIMEOUT_SECONDS,
+                        DEFAULT_QUERY_TIMEOUT_SECONDS))).build();
+    }
+
+    /**
+     * The wait events of all the databases of the server are sampled from a single database. The window is at least
+     * one sample long.
+     */
+    private static WaitEventsPlan compileWaitEvents(String serverName, String password, Map<String, ?> server,
+                                                    Map<String, ?> waitEvents) {
+        String dbName = (String) waitEvents.get(WAIT_EVENTS_DATABASE);
+        if (Strings.isNullOrEmpty(dbName)) {
+            dbName = DEFAULT_DISCOVERY_DATABASE;
+        }
+        int intervalMillis = ConfigUtils.getInt(waitEvents, SAMPLE_INTERVAL_MILLIS, DEFAULT_SAMPLE_INTERVAL_MILLIS);
+        if (intervalMillis < MIN_SAMPLE_INTERVAL_MILLIS) {
+            LOGGER.warn("sampleIntervalMillis of the wait events of server {} should be at least {}, using {}",
+                    serverName, MIN_SAMPLE_INTERVAL_MILLIS, MIN_SAMPLE_INTERVAL_MILLIS);
+            intervalMillis = MIN_SAMPLE_INTERVAL_MILLIS;
+        }
+        int maxWaitEvents = ConfigUtils.getInt(waitEvents, MAX_WAIT_EVENTS, DEFAULT_MAX_WAIT_EVENTS);
+        if (maxWaitEvents < 1) {
+            LOGGER.warn("maxWaitEvents of the wait events of server {} should be at least 1, using {}", serverName,
+                    DEFAULT_MAX_WAIT_EVENTS);
+            maxWaitEvents = DEFAULT_MAX_WAIT_EVENTS;
+        }
+        return new WaitEventsPlan.Builder()
+                .database(compileDatabase(serverName, dbName, password, server, new ArrayList<>(), false))
+                .sampleIntervalMillis(intervalMillis)
+                .windowMillis(Math.max(intervalMillis, ConfigUtils.getInt(waitEvents, WINDOW_SECONDS,
+                        DEFAULT_WINDOW_SECONDS) * 1000L))
+                .maxWaitEvents(maxWaitEvents).build();
+    }
+
+    private static DatabasePlan compileDatabase(String serverName, String dbName, String password,
+                                                Map<String, ?> server, List<QueryPlan> queries,
+                                                boolean pipelineQueries) {
+        PostgresConnectionConfig connConfig = PostgresConnectionConfigHelper.getConnectionConfig(dbName, serverName,
+                password, server, sessionTimeoutMillis(server));
+        DatabasePlan.Builder builder = new DatabasePlan.Builder().dbName(dbName).queries(queries)
+                .connConfig(connConfig);
+        if (pipelineQueries) {
+            compilePipeline(builder, queries, connConfig.isMultiHost());
+        }
+        return builder.build();
+    }
+
+    /**
+     * The statement_timeout of the sessions is a backstop for queries the extension fails to cancel itself, so it is
+     * the longest timeout of any query of the server. All the databases of the server get the same value, because the
+     * server level queries share the connections of a database.
+     *
+     * @return 0 if one of the queries has no timeout
+     */
+    private static long sessionTimeoutMillis(Map<String, ?> server) {
+        int defaultTimeout = ConfigUtils.getInt(server, QUERY_TIMEOUT_SECONDS, DEFAULT_QUERY_TIMEOUT_SECONDS);
+        List<List<Map<String, ?>>> queryLists = new ArrayList<>();
+        List<Map<String, ?>> databases = (List<Map<String, ?>>) server.get(DATABASES);
+        if (databases != null) {
+            for (Map<String, ?> database : databases) {
+                queryLists.add((List<Map<String, ?>>) database.get(QUERIES));
+            }
+        }
+        Map<String, ?> discovery = (Map<String, ?>) server.get(DISCOVERY);
+        if (discovery != null) {
+            queryLists.add((List<Map<String, ?>>) discovery.get(QUERIES));
+        }
+        int longest = defaultTimeout;
+        for (List<Map<String, ?>> queries : queryLists) {
+            if (queries == null) {
+                continue;
+            }
+            for (Map<String, ?> query : queries) {
+                int timeout = ConfigUtils.getInt(query, TIMEOUT_SECONDS, defaultTimeout);
+                if (timeout <= 0) {
+                    return 0;
+                }
+                longest = Math.max(longest, timeout);
+            }
+        }
+        return longest <= 0 ? 0 : longest * 1000L;
+    }
+
+    /**
+     * Adds the server level queries to the queries run once per server. Server level queries read cluster wide views
+     * and publish under the server, so a query configured under several databases would publish the same metrics
+     * again for every database. Queries with the same statement are merged, the first definition is kept.
+     *
+     * @return true if the queries have at least one server level query
+     */
+    private static boolean pullUpServerQueries(String serverName, String dbName, List<QueryPlan> queries,
+                                               Map<String, QueryPlan> serverQueries) {
+        boolean found = false;
+        for (QueryPlan query : queries) {
+            if (!query.isServerLvlQuery()) {
+                continue;
+            }
+            found = true;
+            String stmt = normalize(query.getQueryStmt());
+            QueryPlan merged = serverQueries.putIfAbsent(stmt, query);
+            if (merged != null) {
+                if (!sameColumns(merged.getColumns(), query.getColumns())) {
+                    LOGGER.warn("Server level query {} of database {} server {} has the same statement as query {} " +
+                            "but other columns, only the columns of the first one are collected", query.getName(),
+                            dbName, serverName, merged.getName());
+                } else {
+                    LOGGER.debug("Server level query {} of database {} server {} is already collected for the " +
+                            "server", query.getName(), dbName, serverName);
+                }
+            }
+        }
+        return found;
+    }
+
+    private static boolean sameColumns(List<Column> columns, List<Column> others) {
+        if (columns.size() != others.size()) {
+            return false;
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            Column other = others.get(i);
+            if (!Objects.equals(column.getName(), other.getName()) || column.getType() != other.getType()
+                    || !Objects.equals(column.getProperties(), other.getProperties())
+                    || !Objects.equals(column.getExpression(), other.getExpression())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<QueryPlan> dbLevel(List<QueryPlan> queries) {
+        List<QueryPlan> dbLevel = new ArrayList<>();
+        for (QueryPlan query : queries) {
+            if (!query.isServerLvlQuery()) {
+                dbLevel.add(query);
+            }
+        }
+        return dbLevel;
+    }
+
+    // queries that only differ in whitespace or trailing semicolons are the same query
+    private static String normalize(String queryStmt) {
+        return trimTrailingSemicolons(queryStmt).trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * The queries of the discovery section are a template, compiled for every database discovered. Databases that
+     * are configured under databases are left out of the discovery, and the server level queries of the template are
+     * run once per server.
+     */
+    private static DiscoveryPlan compileDiscovery(String serverName, String password, Map<String, ?> server,
+                                                  Map<String, ?> discovery, QueryPlanIndex previous) {
+        String dbName = (String) discovery.get(DISCOVERY_DATABASE);
+        if (Strings.isNullOrEmpty(dbName)) {
+            dbName = DEFAULT_DISCOVERY_DATABASE;
+        }
+        List<Map<String, ?>> queryConfigs = (List<Map<String, ?>>) discovery.get(QUERIES);
+        boolean pipelineQueries = ConfigUtils.getBoolean(discovery, PIPELINE_QUERIES, false);
+        int queryTimeoutSeconds = ConfigUtils.getInt(server, QUERY_TIMEOUT_SECONDS, DEFAULT_QUERY_TIMEOUT_SECONDS);
+        return new DiscoveryPlan.Builder()
+                .database(compileDatabase(serverName, dbName, password, server, new ArrayList<>(), false))
+                .includes(compilePatterns(discovery.get(INCLUDE))).excludes(compilePatterns(discovery.get(EXCLUDE)))
+                .refreshIntervalMillis(ConfigUtils.getInt(discovery, REFRESH_INTERVAL_SECONDS,
+                        DEFAULT_REFRESH_INTERVAL_SECONDS) * 1000L)
+                .timeoutSeconds(Math.max(0, queryTimeoutSeconds))
+                .template(discovered -> compileDatabase(serverName, discovered, password, server,
+                        dbLevel(compileQueries(serverName, discovered, queryConfigs, queryTimeoutSeconds,
+                                previous)), pipelineQueries)).build();
+    }
+
+    // a single pattern or a list of patterns, each has to match the whole database name
+    private static List<Pattern> compilePatterns(Object patterns) {
+        List<Pattern> compiled = new ArrayList<>();
+        if (patterns instanceof List) {
+            for (Object pattern : (List<?>) patterns) {
+                compiled.add(Pattern.compile(pattern.toString()));
+            }
+        } else if (patterns != null && !patterns.toString().trim().isEmpty()) {
+            compiled.add(Pattern.compile(patterns.toString().trim()));
+        }
+        return compiled;
+    }
+
+    /**
+     * Joins the statements of the queries that can share a round trip into one multi-statement string. Queries read
+     * through a cursor need their own transaction, queries with an interval are not due on every run, sharded
+     * queries take a parameter and, on a server with several hosts, queries not routed to the primary run on other
+     * connections, so they are left out.
+     */
+    private static void compilePipeline(DatabasePlan.Builder builder, List<QueryPlan> queries, boolean multiHost) {
+        List<QueryPlan> pipelined = new ArrayList<>();
+        List<QueryPlan> standalone = new ArrayList<>();
+        StringBuilder stmt = new StringBuilder();
+        for (QueryPlan query : queries) {
+            if (query.getFetchSize() > 0 || query.getIntervalMillis() > 0 || query.getShards() > 1
+                    || (multiHost && query.getRoute() != Route.PRIMARY)) {
+                standalone.add(query);
+                continue;
+            }
+            if (stmt.length() > 0) {
+                stmt.append(";\n");
+            }
+            stmt.append(trimTrailingSemicolons(query.getQueryStmt()));
+            pipelined.add(query);
+        }
+        // a single query gains nothing from a pipeline
+        if (pipelined.size() > 1) {
+            builder.pipeline(pipelined, standalone, stmt.toString());
+        }
+    }
+
+    /**
+     * Restricts the rows of a query to the ones whose key hashes to the shard bound as the only parameter. hashtext
+     * gives the same hash on every run, so each row is read exactly once every {@code shards} runs.
+     */
+    private static String shardedStatement(String queryStmt, String shardKey, int shards) {
+        return "SELECT * FROM (" + trimTrailingSemicolons(queryStmt) + ") AS sharded WHERE (hashtext((" + shardKey +
+                ")::text) & 2147483647) % " + shards + " = ?";
+    }
+
+    private static String trimTrailingSemicolons(String queryStmt) {
+        int end = queryStmt.length();
+        while (end > 0 && (queryStmt.charAt(end - 1) == ';' || Character.isWhitespace(queryStmt.charAt(end - 1)))) {
+            end--;
+        }
+        return queryStmt.substring(0, end);
+    }
+
+    /**
+     * Compiles the queries configured under a database. A query is fully defined by its config, the server, the
+     * database and the default timeout, so the plan compiled earlier from the same definition is reused.
+     */
+    private static List<QueryPlan> compileQueries(String serverName, String dbName, List<Map<String, ?>> queries,
+                                                  int defaultTimeoutSeconds, QueryPlanIndex previous) {
+        List<QueryPlan> queryPlans = new ArrayList<>();
+        if (queries == null) {
+            return queryPlans;
+        }
+        for (Map<String, ?> query : queries) {
+            String name = (String) query.get(NAME);
+            boolean isServerLvlQuery = ConfigUtils.getBoolean(query, SERVER_LVL_QUERY, false);
+            String queryStmt = (String) query.get(QUERY_STATEMENT);
+            List<Map<String, ?>> columns = (List<Map<String, ?>>) query.get(COLUMNS);
+            if (!isServerLvlQuery && Strings.isNullOrEmpty(name)) {
+                LOGGER.debug("Query name is required for non server level queries. Skipping one query for " +
+                        "database {} server {}", dbName, serverName);
+            }
+            if (Strings.isNullOrEmpty(queryStmt)) {
+                LOGGER.debug("queryStmt not configured in config.yml for query {} database {} server {}", name,
+                        dbName, serverName);
+                continue;
+            }
+            if (columns == null || columns.size() == 0) {
+                LOGGER.debug("Columns not configured in config.yml for query {} database {} server {}", name, dbName,
+                        serverName);
+                continue;
+            }
+            List<Expression> expressions = new ArrayList<>();
+            List<Column> cols = compileDerivedColumns(serverName, dbName, name,
+                    ColumnGenerator.getColumnsPOJO(columns), expressions);
+            int topN = ConfigUtils.getInt(query, TOP_N, 0);
+            String rankBy = (String) query.get(RANK_BY);
+            if (topN > 0 && Strings.isNullOrEmpty(rankBy)) {
+                LOGGER.warn("topN is set without rankBy for query {} database {} server {}, all rows will be " +
+                        "reported", name, dbName, serverName);
+                topN = 0;
+            }
+            int shards = ConfigUtils.getInt(query, SHARDS, 1);
+            String shardKey = (String) query.get(SHARD_KEY);
+            if (shards > 1 && Strings.isNullOrEmpty(shardKey)) {
+                LOGGER.warn("shards is set without shardKey for query {} database {} server {}, all rows will be " +
+                        "read on every run", name, dbName, serverName);
+                shards = 1;
+            } else if (shards > 1 && topN > 0) {
+                LOGGER.warn("shards cannot be combined with topN for query {} database {} server {}, all rows will " +
+                        "be read on every run", name, dbName, serverName);
+                shards = 1;
+            }
+            if (shards > 1) {
+                queryStmt = shardedStatement(queryStmt, shardKey, shards);
+            }
+            Route route = Route.PRIMARY;
+            if (query.get(ROUTE) != null) {
+                route = Route.fromName(query.get(ROUTE).toString());
+                if (route == null) {
+                    LOGGER.warn("Unknown route {} for query {} database {} server {}, the query will run on the " +
+                            "primary", query.get(ROUTE), name, dbName, serverName);
+                    route = Route.PRIMARY;
+                }
+            }
+            queryPlans.add(previous.reuse(new QueryPlan.Builder().name(name).serverLvlQuery(isServerLvlQuery)
+                    .queryStmt(queryStmt).columns(cols).expressions(expressions)
+                    .fetchSize(ConfigUtils.getInt(query, FETCH_SIZE, 0))
+                    .timeoutSeconds(Math.max(0, ConfigUtils.getInt(query, TIMEOUT_SECONDS, defaultTimeoutSeconds)))
+                    .statsResetColumn(Strings.emptyToNull((String) query.get(STATS_RESET_COLUMN)))
+                    .intervalMillis(Math.max(0, ConfigUtils.getInt(query, INTERVAL, 0)) * 1000L)
+                    .staleWhileRevalidate(ConfigUtils.getBoolean(query, STALE_WHILE_REVALIDATE, false))
+                    .shards(shards).route(route)
+                    .topN(Math.max(0, topN), rankBy, ConfigUtils.getDouble(query, TOP_N_HYSTERESIS,
+                            DEFAULT_TOP_N_HYSTERESIS))
+                    .definition(Arrays.asList(serverName, dbName, query, defaultTimeoutSeconds)).build()));
+        }
+        return queryPlans;
+    }
+
+    /**
+     * Compiles the expressions of the derived columns of a query into {@code expressions}, in the order of the
+     * columns. Expressions refer to the metricValue columns by their index among them.
+     *
+     * @return the columns without the derived columns whose expression is not valid
+     */
+    private static List<Column> compileDerivedColumns(String serverName, String dbName, String name,
+                                                      List<Column> cols, List<Expression> expressions) {
+        Map<String, Integer> valueColumns = new HashMap<>();
+        for (Column col : cols) {
+            if (col.getType() == ColumnType.METRIC_VALUE) {
+                valueColumns.putIfAbsent(col.getName().toLowerCase(Locale.ROOT), valueColumns.size());
+            }
+        }
+        List<Column> compiled = new ArrayList<>(cols.size());
+        for (Column col : cols) {
+            if (col.getType() == ColumnType.DERIVED) {
+                try {
+                    expressions.add(Expression.compile(col.getExpression(), valueColumns));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warn("Derived column {} of query {} database {} server {} will not be reported: {}",
+                            col.getName(), name, dbName, serverName, e.getMessage());
+                    continue;
+                }
+            }
+            compiled.add(col);
+        }
+        return compiled;
+    }
+}
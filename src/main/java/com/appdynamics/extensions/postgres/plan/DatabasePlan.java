@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.plan;
+
+import com.appdynamics.extensions.postgres.connection.PostgresConnectionConfig;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A configured database of a server with the connection config and the queries to run against it.
+ */
+public class DatabasePlan {
+    private final String dbName;
+    private final PostgresConnectionConfig connConfig;
+    private final List<QueryPlan> queries;
+    private final List<QueryPlan> pipelinedQueries;
+    private final List<QueryPlan> standaloneQueries;
+    private final String pipelineStmt;
+
+    private DatabasePlan(Builder builder) {
+        this.dbName = builder.dbName;
+        this.connConfig = builder.connConfig;
+        this.queries = Collections.unmodifiableList(builder.queries);
+        this.pipelinedQueries = Collections.unmodifiableList(builder.pipelinedQueries);
+        this.standaloneQueries = Collections.unmodifiableList(builder.standaloneQueries);
+        this.pipelineStmt = builder.pipelineStmt;
+    }
+
+    public String getDbName() {
+        return dbName;
+    }
+
+    public PostgresConnectionConfig getConnConfig() {
+        return connConfig;
+    }
+
+    public List<QueryPlan> getQueries() {
+        return queries;
+    }
+
+    /**
+     * @return queries sent together in {@link #getPipelineStmt()}, in the order of their result sets
+     */
+    public List<QueryPlan> getPipelinedQueries() {
+        return pipelinedQueries;
+    }
+
+    /**
+     * @return queries executed one by one, all the queries when pipelining is not enabled
+     */
+    public List<QueryPlan> getStandaloneQueries() {
+        return standaloneQueries;
+    }
+
+    /**
+     * @return the statements of the pipelined queries joined into one multi-statement string, null when queries are
+     * not pipelined
+     */
+    public String getPipelineStmt() {
+        return pipelineStmt;
+    }
+
+    static class Builder {
+        private String dbName;
+        private PostgresConnectionConfig connConfig;
+        private List<QueryPlan> queries;
+        private List<QueryPlan> pipelinedQueries = Collections.emptyList();
+        private List<QueryPlan> standaloneQueries;
+        private String pipelineStmt;
+
+        Builder dbName(String dbName) {
+            this.dbName = dbName;
+            return this;
+        }
+
+        Builder connConfig(PostgresConnectionConfig connConfig) {
+            this.connConfig = connConfig;
+            return this;
+        }
+
+        Builder queries(List<QueryPlan> queries) {
+            this.queries = queries;
+            return this;
+        }
+
+        Builder pipeline(List<QueryPlan> pipelinedQueries, List<QueryPlan> standaloneQueries, String pipelineStmt) {
+            this.pipelinedQueries = pipelinedQueries;
+            this.standaloneQueries = standaloneQueries;
+            this.pipelineStmt = pipelineStmt;
+            return this;
+        }
+
+        DatabasePlan build() {
+            if (standaloneQueries == null) {
+                standaloneQueries = queries;
+            }
+            return new DatabasePlan(this);
+        }
+    }
+}
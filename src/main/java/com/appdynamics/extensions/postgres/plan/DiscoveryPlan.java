@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.plan;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Settings to discover the databases of a server from pg_database, and the query template applied to every database
+ * discovered.
+ */
+public class DiscoveryPlan {
+    private final DatabasePlan database;
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+    private final long refreshIntervalMillis;
+    private final int timeoutSeconds;
+    private final Function<String, DatabasePlan> template;
+
+    private DiscoveryPlan(Builder builder) {
+        this.database = builder.database;
+        this.includes = Collections.unmodifiableList(builder.includes);
+        this.excludes = Collections.unmodifiableList(builder.excludes);
+        this.refreshIntervalMillis = builder.refreshIntervalMillis;
+        this.timeoutSeconds = builder.timeoutSeconds;
+        this.template = builder.template;
+    }
+
+    /**
+     * @return the database the databases are listed from, without queries
+     */
+    public DatabasePlan getDatabase() {
+        return database;
+    }
+
+    /**
+     * @return time between two listings of the databases of the server
+     */
+    public long getRefreshIntervalMillis() {
+        return refreshIntervalMillis;
+    }
+
+    /**
+     * @return time the listing of the databases may take before it is cancelled, 0 for no limit
+     */
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    /**
+     * @return true if the database name matches one of the include patterns, or there are none, and none of the
+     * exclude patterns
+     */
+    public boolean matches(String dbName) {
+        boolean included = includes.isEmpty();
+        for (Pattern include : includes) {
+            if (include.matcher(dbName).matches()) {
+                included = true;
+                break;
+            }
+        }
+        if (!included) {
+            return false;
+        }
+        for (Pattern exclude : excludes) {
+            if (exclude.matcher(dbName).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compiles the query template for a discovered database. Every call returns new query plans, so the plan of a
+     * database should be compiled once and kept for as long as the database is discovered.
+     */
+    public DatabasePlan compileDatabase(String dbName) {
+        return template.apply(dbName);
+    }
+
+    static class Builder {
+        private DatabasePlan database;
+        private List<Pattern> includes = Collections.emptyList();
+        private List<Pattern> excludes = Collections.emptyList();
+        private long refreshIntervalMillis;
+        private int timeoutSeconds;
+        private Function<String, DatabasePlan> template;
+
+        Builder database(DatabasePlan database) {
+            this.database = database;
+            return this;
+        }
+
+        Builder includes(List<Pattern> includes) {
+            this.includes = includes;
+            return this;
+        }
+
+        Builder excludes(List<Pattern> excludes) {
+            this.excludes = excludes;
+            return this;
+        }
+
+        Builder refreshIntervalMillis(long refreshIntervalMillis) {
+            this.refreshIntervalMillis = refreshIntervalMillis;
+            return this;
+        }
+
+        Builder timeoutSeconds(int timeoutSeconds) {
+            this.timeoutSeconds = timeoutSeconds;
+            return this;
+        }
+
+        Builder template(Function<String, DatabasePlan> template) {
+            this.template = template;
+            return this;
+        }
+
+        DiscoveryPlan build() {
+            return new DiscoveryPlan(this);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.plan;
+
+import com.appdynamics.extensions.postgres.column.Column;
+import com.appdynamics.extensions.postgres.connection.Route;
+import com.appdynamics.extensions.postgres.expression.Expression;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A configured query with its columns resolved, compiled once per config load.
+ */
+public class QueryPlan {
+    private final String name;
+    private final boolean serverLvlQuery;
+    private final String queryStmt;
+    private final List<Column> columns;
+    private final List<Expression> expressions;
+    private final int fetchSize;
+    private final int timeoutSeconds;
+    private final String statsResetColumn;
+    private final long intervalMillis;
+    private final boolean staleWhileRevalidate;
+    private final int shards;
+    private final Route route;
+    private final int topN;
+    private final String rankBy;
+    private final double topNHysteresis;
+    // the config the plan was compiled from, null if unknown
+    private final Object definition;
+
+    private QueryPlan(Builder builder) {
+        this.name = builder.name;
+        this.serverLvlQuery = builder.serverLvlQuery;
+        this.queryStmt = builder.queryStmt;
+        this.columns = Collections.unmodifiableList(builder.columns);
+        this.expressions = builder.expressions == null ? Collections.<Expression>emptyList()
+                : Collections.unmodifiableList(builder.expressions);
+        this.fetchSize = builder.fetchSize;
+        this.timeoutSeconds = builder.timeoutSeconds;
+        this.statsResetColumn = builder.statsResetColumn;
+        this.intervalMillis = builder.intervalMillis;
+        this.staleWhileRevalidate = builder.staleWhileRevalidate;
+        this.shards = Math.max(1, builder.shards);
+        this.route = builder.route == null ? Route.PRIMARY : builder.route;
+        this.topN = builder.topN;
+        this.rankBy = builder.rankBy;
+        this.topNHysteresis = builder.topNHysteresis;
+        this.definition = builder.definition;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isServerLvlQuery() {
+        return serverLvlQuery;
+    }
+
+    public String getQueryStmt() {
+        return queryStmt;
+    }
+
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return the compiled expressions of the derived columns, in the order of the columns
+     */
+    public List<Expression> getExpressions() {
+        return expressions;
+    }
+
+    /**
+     * @return number of rows fetched per round trip through a cursor, 0 to fetch the whole result at once
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * @return time after which the query is cancelled, 0 if it is never cancelled
+     */
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    /**
+     * @return column with the time the statistics of a row were last reset, null if the query has none
+     */
+    public String getStatsResetColumn() {
+        return statsResetColumn;
+    }
+
+    /**
+     * @return time between two executions of the query, 0 to execute it on every run
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * @return true if the last results are published again when the query is due, while the query is executed in
+     * the background, so that an expensive query does not hold up the run. Only used with an interval
+     */
+    public boolean isStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * @return number of runs the rows of the query are spread over, 1 if all the rows are read on every run. The
+     * statement of a sharded query takes the shard to read as its only parameter
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @return which host of a server with several hosts the query runs on, ignored when the server has one host
+     */
+    public Route getRoute() {
+        return route;
+    }
+
+    /**
+     * @return the config the plan was compiled from, equal for the plans compiled from the same config
+     */
+    Object getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @return number of rows reported individually, the others are reported as one aggregate row. 0 to report all rows
+     */
+    public int getTopN() {
+        return topN;
+    }
+
+    /**
+     * @return column whose value ranks the rows when only the top rows are reported
+     */
+    public String getRankBy() {
+        return rankBy;
+    }
+
+    /**
+     * @return fraction by which the rank of a row reported on the previous run is raised
+     */
+    public double getTopNHysteresis() {
+        return topNHysteresis;
+    }
+
+    static class Builder {
+        private String name;
+        private boolean serverLvlQuery;
+        private String queryStmt;
+        private List<Column> columns;
+        private List<Expression> expressions;
+        private int fetchSize;
+        private int timeoutSeconds;
+        private String statsResetColumn;
+        private long intervalMillis;
+        private boolean staleWhileRevalidate;
+        private int shards;
+        private Route route;
+        private int topN;
+        private String rankBy;
+        private double topNHysteresis;
+        private Object definition;
+
+        Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        Builder serverLvlQuery(boolean serverLvlQuery) {
+            this.serverLvlQuery = serverLvlQuery;
+            return this;
+        }
+
+        Builder queryStmt(String queryStmt) {
+            this.queryStmt = queryStmt;
+            return this;
+        }
+
+        Builder columns(List<Column> columns) {
+            this.columns = columns;
+            return this;
+        }
+
+        Builder expressions(List<Expression> expressions) {
+            this.expressions = expressions;
+            return this;
+        }
+
+        Builder fetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+            return this;
+        }
+
+        Builder timeoutSeconds(int timeoutSeconds) {
+            this.timeoutSeconds = timeoutSeconds;
+            return this;
+        }
+
+        Builder statsResetColumn(String statsResetColumn) {
+            this.statsResetColumn = statsResetColumn;
+            return this;
+        }
+
+        Builder intervalMillis(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+            return this;
+        }
+
+        Builder staleWhileRevalidate(boolean staleWhileRevalidate) {
+            this.staleWhileRevalidate = staleWhileRevalidate;
+            return this;
+        }
+
+        Builder shards(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        Builder route(Route route) {
+            this.route = route;
+            return this;
+        }
+
+        Builder definition(Object definition) {
+            this.definition = definition;
+            return this;
+        }
+
+        Builder topN(int topN, String rankBy, double topNHysteresis) {
+            this.topN = topN;
+            this.rankBy = rankBy;
+            this.topNHysteresis = topNHysteresis;
+            return this;
+        }
+
+        QueryPlan build() {
+            return new QueryPlan(this);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.plan;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The query plans of the running collection plan keyed by the config they were compiled from, so that compiling a
+ * reloaded config.yml hands back the same plan for every query whose config did not change. The caches, counters and
+ * circuit breakers keyed by the plan are then carried over the reload. Clear the index once the reload is done, the
+ * query template of a discovery keeps using it to compile the databases it finds later.
+ */
+public class QueryPlanIndex {
+    private final Map<Object, QueryPlan> plans = new ConcurrentHashMap<>();
+    private final AtomicInteger reused = new AtomicInteger();
+
+    public QueryPlanIndex() {
+    }
+
+    public QueryPlanIndex(Collection<QueryPlan> queries) {
+        for (QueryPlan query : queries) {
+            if (query.getDefinition() != null) {
+                plans.putIfAbsent(query.getDefinition(), query);
+            }
+        }
+    }
+
+    /**
+     * Each plan of the index is handed back once at most, so that two queries configured alike do not end up sharing
+     * one plan.
+     *
+     * @return the plan compiled earlier from the same config as the given plan, or the given plan if there is none
+     */
+    QueryPlan reuse(QueryPlan compiled) {
+        QueryPlan previous = plans.remove(compiled.getDefinition());
+        if (previous == null) {
+            return compiled;
+        }
+        reused.incrementAndGet();
+        return previous;
+    }
+
+    /**
+     * @return number of plans handed back by the compiler instead of new ones
+     */
+    public int getReusedCount() {
+        return reused.get();
+    }
+
+    public int size() {
+        return plans.size();
+    }
+
+    public void clear() {
+        plans.clear();
+    }
+}
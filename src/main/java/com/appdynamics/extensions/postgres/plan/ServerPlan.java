@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.plan;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A configured server with its databases and connection pool settings.
+ */
+public class ServerPlan {
+    private final String serverName;
+    private final List<DatabasePlan> databases;
+    private final DatabasePlan serverLevelDatabase;
+    private final int maxPoolSize;
+    private final long acquireTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final long maxIdleMillis;
+    private final boolean prepareQueries;
+    private final int metricChunkSize;
+    private final int metricPathCacheSize;
+    private final long counterExpiryMillis;
+    private final DiscoveryPlan discovery;
+    private final StatementsPlan statements;
+    private final WaitEventsPlan waitEvents;
+    private final int maxConcurrentDatabases;
+    private final int bulkheadMaxConnections;
+    private final int bulkheadMaxInFlight;
+    private final long collectionDeadlineMillis;
+    private final int breakerFailureThreshold;
+    private final long breakerBackoffMillis;
+    private final long breakerMaxBackoffMillis;
+    private final boolean selfMonitoring;
+    private final boolean selfMonitoringPerQuery;
+
+    private ServerPlan(Builder builder) {
+        this.serverName = builder.serverName;
+        this.databases = Collections.unmodifiableList(builder.databases);
+        this.serverLevelDatabase = builder.serverLevelDatabase;
+        this.maxPoolSize = builder.maxPoolSize;
+        this.acquireTimeoutMillis = builder.acquireTimeoutMillis;
+        this.validationIntervalMillis = builder.validationIntervalMillis;
+        this.maxIdleMillis = builder.maxIdleMillis;
+        this.prepareQueries = builder.prepareQueries;
+        this.metricChunkSize = builder.metricChunkSize;
+        this.metricPathCacheSize = builder.metricPathCacheSize;
+        this.counterExpiryMillis = builder.counterExpiryMillis;
+        this.discovery = builder.discovery;
+        this.statements = builder.statements;
+        this.waitEvents = builder.waitEvents;
+        this.maxConcurrentDatabases = builder.maxConcurrentDatabases;
+        this.bulkheadMaxConnections = builder.bulkheadMaxConnections;
+        this.bulkheadMaxInFlight = builder.bulkheadMaxInFlight;
+        this.collectionDeadlineMillis = builder.collectionDeadlineMillis;
+        this.breakerFailureThreshold = builder.breakerFailureThreshold;
+        this.breakerBackoffMillis = builder.breakerBackoffMillis;
+        this.breakerMaxBackoffMillis = builder.breakerMaxBackoffMillis;
+        this.selfMonitoring = builder.selfMonitoring;
+        this.selfMonitoringPerQuery = builder.selfMonitoringPerQuery;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public List<DatabasePlan> getDatabases() {
+        return databases;
+    }
+
+    /**
+     * @return the database the server level queries of all the databases are run on once per run, with only those
+     * queries, null if there are none
+     */
+    public DatabasePlan getServerLevelDatabase() {
+        return serverLevelDatabase;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public long getAcquireTimeoutMillis() {
+        return acquireTimeoutMillis;
+    }
+
+    public long getValidationIntervalMillis() {
+        return validationIntervalMillis;
+    }
+
+    public long getMaxIdleMillis() {
+        return maxIdleMillis;
+    }
+
+    /**
+     * @return true if queries are executed as server side prepared statements cached per connection
+     */
+    public boolean isPrepareQueries() {
+        return prepareQueries;
+    }
+
+    /**
+     * @return maximum number of metrics handed to the metric writer at once
+     */
+    public int getMetricChunkSize() {
+        return metricChunkSize;
+    }
+
+    /**
+     * @return maximum number of rows whose metric paths are cached for the server
+     */
+    public int getMetricPathCacheSize() {
+        return metricPathCacheSize;
+    }
+
+    /**
+     * @return time after which the last sample of a counter that is no longer returned is forgotten
+     */
+    public long getCounterExpiryMillis() {
+        return counterExpiryMillis;
+    }
+
+    /**
+     * @return how the databases of the server are discovered, null if only the configured databases are monitored
+     */
+    public DiscoveryPlan getDiscovery() {
+        return discovery;
+    }
+
+    /**
+     * @return how the top statements of pg_stat_statements are collected, null if they are not
+     */
+    public StatementsPlan getStatements() {
+        return statements;
+    }
+
+    /**
+     * @return how the wait events of the server are sampled, null if they are not
+     */
+    public WaitEventsPlan getWaitEvents() {
+        return waitEvents;
+    }
+
+    /**
+     * @return maximum number of databases of the server collected at the same time
+     */
+    public int getMaxConcurrentDatabases() {
+        return maxConcurrentDatabases;
+    }
+
+    /**
+     * @return maximum number of connections open to the server across all its databases, 0 if not bounded
+     */
+    public int getBulkheadMaxConnections() {
+        return bulkheadMaxConnections;
+    }
+
+    /**
+     * @return maximum number of connections to the server running queries at the same time, 0 if not bounded
+     */
+    public int getBulkheadMaxInFlight() {
+        return bulkheadMaxInFlight;
+    }
+
+    /**
+     * @return time after the start of a run when the database tasks of the server still running are cancelled
+     */
+    public long getCollectionDeadlineMillis() {
+        return collectionDeadlineMillis;
+    }
+
+    /**
+     * @return consecutive failures of a query after which it is backed off, 0 if queries are never backed off
+     */
+    public int getBreakerFailureThreshold() {
+        return breakerFailureThreshold;
+    }
+
+    /**
+     * @return time a query is first backed off for, doubled every time the query fails again after the backoff
+     */
+    public long getBreakerBackoffMillis() {
+        return breakerBackoffMillis;
+    }
+
+    public long getBreakerMaxBackoffMillis() {
+        return breakerMaxBackoffMillis;
+    }
+
+    /**
+     * @return true if the timings and counters of the collection are published with the metrics of the server
+     */
+    public boolean isSelfMonitoring() {
+        return selfMonitoring;
+    }
+
+    /**
+     * @return true if the timings and counters of every query of every database are published as well
+     */
+    public boolean isSelfMonitoringPerQuery() {
+        return selfMonitoringPerQuery;
+    }
+
+    static class Builder {
+        private String serverName;
+        private List<DatabasePlan> databases;
+        private DatabasePlan serverLevelDatabase;
+        private int maxPoolSize;
+        private long acquireTimeoutMillis;
+        private long validationIntervalMillis;
+        private long maxIdleMillis;
+        private boolean prepareQueries;
+        private int metricChunkSize;
+        private int metricPathCacheSize;
+        private long counterExpiryMillis;
+        private DiscoveryPlan discovery;
+        private StatementsPlan statements;
+        private WaitEventsPlan waitEvents;
+        private int maxConcurrentDatabases;
+        private int bulkheadMaxConnections;
+        private int bulkheadMaxInFlight;
+        private long collectionDeadlineMillis;
+        private int breakerFailureThreshold;
+        private long breakerBackoffMillis;
+        private long breakerMaxBackoffMillis;
+        private boolean selfMonitoring;
+        private boolean selfMonitoringPerQuery;
+
+        Builder serverName(String serverName) {
+            this.serverName = serverName;
+            return this;
+        }
+
+        Builder databases(List<DatabasePlan> databases) {
+            this.databases = databases;
+            return this;
+        }
+
+        Builder serverLevelDatabase(DatabasePlan serverLevelDatabase) {
+            this.serverLevelDatabase = serverLevelDatabase;
+            return this;
+        }
+
+        Builder maxPoolSize(int maxPoolSize) {
+            this.maxPoolSize = maxPoolSize;
+            return this;
+        }
+
+        Builder acquireTimeoutMillis(long acquireTimeoutMillis) {
+            this.acquireTimeoutMillis = acquireTimeoutMillis;
+            return this;
+        }
+
+        Builder validationIntervalMillis(long validationIntervalMillis) {
+            this.validationIntervalMillis = validationIntervalMillis;
+            return this;
+        }
+
+        Builder maxIdleMillis(long maxIdleMillis) {
+            this.maxIdleMillis = maxIdleMillis;
+            return this;
+        }
+
+        Builder prepareQueries(boolean prepareQueries) {
+            this.prepareQueries = prepareQueries;
+            return this;
+        }
+
+        Builder metricChunkSize(int metricChunkSize) {
+            this.metricChunkSize = metricChunkSize;
+            return this;
+        }
+
+        Builder metricPathCacheSize(int metricPathCacheSize) {
+            this.metricPathCacheSize = metricPathCacheSize;
+            return this;
+        }
+
+        Builder counterExpiryMillis(long counterExpiryMillis) {
+            this.counterExpiryMillis = counterExpiryMillis;
+            return this;
+        }
+
+        Builder discovery(DiscoveryPlan discovery) {
+            this.discovery = discovery;
+            return this;
+        }
+
+        Builder statements(StatementsPlan statements) {
+            this.statements = statements;
+            return this;
+        }
+
+        Builder waitEvents(WaitEventsPlan waitEvents) {
+            this.waitEvents = waitEvents;
+            return this;
+        }
+
+        Builder maxConcurrentDatabases(int maxConcurrentDatabases) {
+            this.maxConcurrentDatabases = maxConcurrentDatabases;
+            return this;
+        }
+
+        Builder bulkhead(int maxConnections, int maxInFlight) {
+            this.bulkheadMaxConnections = maxConnections;
+            this.bulkheadMaxInFlight = maxInFlight;
+            return this;
+        }
+
+        Builder collectionDeadlineMillis(long collectionDeadlineMillis) {
+            this.collectionDeadlineMillis = collectionDeadlineMillis;
+            return this;
+        }
+
+        Builder circuitBreaker(int failureThreshold, long backoffMillis, long maxBackoffMillis) {
+            this.breakerFailureThreshold = failureThreshold;
+            this.breakerBackoffMillis = backoffMillis;
+            this.breakerMaxBackoffMillis = maxBackoffMillis;
+            return this;
+        }
+
+        Builder selfMonitoring(boolean enabled, boolean perQuery) {
+            this.selfMonitoring = enabled;
+            this.selfMonitoringPerQuery = perQuery;
+            return this;
+        }
+
+        ServerPlan build() {
+            return new ServerPlan(this);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.plan;
+
+/**
+ * Settings to collect the statements of a server that took the most execution time since the previous run, from the
+ * pg_stat_statements view of the database the extension is installed in.
+ */
+public class StatementsPlan {
+    private final DatabasePlan database;
+    private final int topK;
+    private final int fetchSize;
+    private final int timeoutSeconds;
+
+    private StatementsPlan(Builder builder) {
+        this.database = builder.database;
+        this.topK = builder.topK;
+        this.fetchSize = builder.fetchSize;
+        this.timeoutSeconds = builder.timeoutSeconds;
+    }
+
+    /**
+     * @return the database pg_stat_statements is read from, without queries
+     */
+    public DatabasePlan getDatabase() {
+        return database;
+    }
+
+    /**
+     * @return number of statements reported individually per run
+     */
+    public int getTopK() {
+        return topK;
+    }
+
+    /**
+     * @return number of rows of pg_stat_statements fetched per round trip
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * @return time the read of pg_stat_statements may take before it is cancelled, 0 for no limit
+     */
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    static class Builder {
+        private DatabasePlan database;
+        private int topK;
+        private int fetchSize;
+        private int timeoutSeconds;
+
+        Builder database(DatabasePlan database) {
+            this.database = database;
+            return this;
+        }
+
+        Builder topK(int topK) {
+            this.topK = topK;
+            return this;
+        }
+
+        Builder fetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+            return this;
+        }
+
+        Builder timeoutSeconds(int timeoutSeconds) {
+            this.timeoutSeconds = timeoutSeconds;
+            return this;
+        }
+
+        StatementsPlan build() {
+            return new StatementsPlan(this);
+        }
+    }
+}
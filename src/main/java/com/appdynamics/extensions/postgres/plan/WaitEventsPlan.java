@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.plan;
+
+/**
+ * Settings to sample the wait events of the active sessions of a server from pg_stat_activity in the background,
+ * several times per run.
+ */
+public class WaitEventsPlan {
+    private final DatabasePlan database;
+    private final long sampleIntervalMillis;
+    private final long windowMillis;
+    private final int maxWaitEvents;
+
+    private WaitEventsPlan(Builder builder) {
+        this.database = builder.database;
+        this.sampleIntervalMillis = builder.sampleIntervalMillis;
+        this.windowMillis = builder.windowMillis;
+        this.maxWaitEvents = builder.maxWaitEvents;
+    }
+
+    /**
+     * @return the database pg_stat_activity is sampled from, without queries
+     */
+    public DatabasePlan getDatabase() {
+        return database;
+    }
+
+    public long getSampleIntervalMillis() {
+        return sampleIntervalMillis;
+    }
+
+    /**
+     * @return time covered by the samples averaged on every run
+     */
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @return number of distinct state and wait event combinations counted, the others are counted together
+     */
+    public int getMaxWaitEvents() {
+        return maxWaitEvents;
+    }
+
+    /**
+     * @return true if a sampler started with this plan samples the same way as with the other plan
+     */
+    public boolean samplesLike(WaitEventsPlan other) {
+        return other != null && sampleIntervalMillis == other.sampleIntervalMillis
+                && windowMillis == other.windowMillis && maxWaitEvents == other.maxWaitEvents
+                && database.getConnConfig().equals(other.database.getConnConfig());
+    }
+
+    static class Builder {
+        private DatabasePlan database;
+        private long sampleIntervalMillis;
+        private long windowMillis;
+        private int maxWaitEvents;
+
+        Builder database(DatabasePlan database) {
+            this.database = database;
+            return this;
+        }
+
+        Builder sampleIntervalMillis(long sampleIntervalMillis) {
+            this.sampleIntervalMillis = sampleIntervalMillis;
+            return this;
+        }
+
+        Builder windowMillis(long windowMillis) {
+            this.windowMillis = windowMillis;
+            return this;
+        }
+
+        Builder maxWaitEvents(int maxWaitEvents) {
+            this.maxWaitEvents = maxWaitEvents;
+            return this;
+        }
+
+        WaitEventsPlan build() {
+            return new WaitEventsPlan(this);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.schedule;
+
+/**
+ * Backs off a query that keeps failing or timing out, so that it stops holding a connection and a backend on every
+ * run. The breaker opens after a number of consecutive failures and the query is skipped until the backoff has passed.
+ * The next run then tries the query once: a success closes the breaker, a failure opens it again for twice as long, up
+ * to a maximum backoff.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED(0), HALF_OPEN(1), OPEN(2);
+
+        private final int value;
+
+        State(int value) {
+            this.value = value;
+        }
+
+        /**
+         * @return the value the state is published as
+         */
+        public int getValue() {
+            return value;
+        }
+    }
+
+    private final int failureThreshold;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private State state = State.CLOSED;
+    private int failures;
+    private long currentBackoffMillis;
+    private long openUntil;
+    // the state is published once the query has failed, and from then on so that the recovery shows too
+    private boolean failedOnce;
+
+    /**
+     * @param failureThreshold consecutive failures after which the breaker opens, 0 to never open
+     */
+    public CircuitBreaker(int failureThreshold, long backoffMillis, long maxBackoffMillis) {
+        this.failureThreshold = failureThreshold;
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = Math.max(backoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * @return true if the query may run, moves an open breaker whose backoff has passed to half open
+     */
+    public synchronized boolean allowRequest(long nowMillis) {
+        if (state == State.OPEN && nowMillis >= openUntil) {
+            state = State.HALF_OPEN;
+        }
+        return state != State.OPEN;
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        currentBackoffMillis = 0;
+    }
+
+    public synchronized void onFailure(long nowMillis) {
+        failures++;
+        failedOnce = true;
+        if (state == State.HALF_OPEN) {
+            currentBackoffMillis = Math.min(currentBackoffMillis * 2, maxBackoffMillis);
+            open(nowMillis);
+        } else if (state == State.CLOSED && failureThreshold > 0 && failures >= failureThreshold) {
+            currentBackoffMillis = backoffMillis;
+            open(nowMillis);
+        }
+    }
+
+    private void open(long nowMillis) {
+        state = State.OPEN;
+        openUntil = nowMillis + currentBackoffMillis;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if the query has failed at least once
+     */
+    public synchronized boolean hasFailed() {
+        return failedOnce;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return time until which the query is skipped, only meaningful while the breaker is open
+     */
+    public synchronized long getOpenUntil() {
+        return openUntil;
+    }
+}
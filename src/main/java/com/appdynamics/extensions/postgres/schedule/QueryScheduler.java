@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.schedule;
+
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which queries of a server run on a monitor run. Queries without an interval run on every run. Queries with
+ * an interval are grouped in tiers by interval, and all the queries of a tier become due together, once per interval.
+ */
+public class QueryScheduler {
+    // the machine agent does not start runs exactly one minute apart
+    static final long DUE_TOLERANCE_MILLIS = 5000;
+
+    // next due time of each tier, keyed by interval
+    private final Map<Long, Long> tiers = new HashMap<>();
+
+    /**
+     * Starts a monitor run and returns the tiers that are due in it. Called once per server run, before the database
+     * tasks are started.
+     */
+    public synchronized Schedule next(long nowMillis) {
+        Set<Long> due = new HashSet<>();
+        for (Map.Entry<Long, Long> tier : tiers.entrySet()) {
+            if (nowMillis + DUE_TOLERANCE_MILLIS >= tier.getValue()) {
+                due.add(tier.getKey());
+            }
+        }
+        for (Long interval : due) {
+            tiers.put(interval, nowMillis + interval);
+        }
+        return new Schedule(this, nowMillis, due);
+    }
+
+    /**
+     * A tier is created and due the first time one of its queries is checked.
+     */
+    private synchronized boolean joinTier(long intervalMillis, long nowMillis) {
+        if (tiers.containsKey(intervalMillis)) {
+            return false;
+        }
+        tiers.put(intervalMillis, nowMillis + intervalMillis);
+        return true;
+    }
+
+    /**
+     * The queries due in one monitor run.
+     */
+    public static final class Schedule {
+        private final QueryScheduler scheduler;
+        private final long nowMillis;
+        private final Set<Long> dueIntervals;
+
+        private Schedule(QueryScheduler scheduler, long nowMillis, Set<Long> dueIntervals) {
+            this.scheduler = scheduler;
+            this.nowMillis = nowMillis;
+            this.dueIntervals = Collections.synchronizedSet(dueIntervals);
+        }
+
+        public boolean isDue(QueryPlan query) {
+            long interval = query.getIntervalMillis();
+            if (interval <= 0 || dueIntervals.contains(interval)) {
+                return true;
+            }
+            if (scheduler.joinTier(interval, nowMillis)) {
+                dueIntervals.add(interval);
+                return true;
+            }
+            return false;
+        }
+    }
+}
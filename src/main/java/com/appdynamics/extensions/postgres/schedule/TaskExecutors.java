@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.schedule;
+
+import com.appdynamics.extensions.logging.ExtensionsLoggerFactory;
+import org.slf4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors the database tasks of a server run on, so that they do not take threads from the executor of
+ * the machine agent. On Java 21 and later every task gets a virtual thread. The extension is built for Java 8, so the
+ * virtual thread executor is looked up reflectively.
+ */
+public class TaskExecutors {
+    private static final Logger LOGGER = ExtensionsLoggerFactory.getLogger(TaskExecutors.class);
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * @param maxThreads maximum number of platform threads when virtual threads are not available, idle threads are
+     *                   released after a minute
+     */
+    public static ExecutorService newExecutor(String name, int maxThreads) {
+        ExecutorService virtual = newVirtualThreadExecutor();
+        if (virtual != null) {
+            LOGGER.debug("Running the database tasks of {} on virtual threads", name);
+            return virtual;
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "Postgres " + name + " " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        // tasks are never queued, the number of tasks submitted per run is bounded by the caller
+        return new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                threadFactory);
+    }
+
+    /**
+     * @return a single daemon thread for a background task of a server that runs on a fixed schedule
+     */
+    public static ScheduledExecutorService newScheduler(String name) {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "Postgres " + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return scheduler;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException nsme) {
+            return null;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            // Java 19 and 20 have the method but only as a preview feature
+            LOGGER.debug("Virtual threads are not available, using platform threads", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.stats;
+
+import com.appdynamics.extensions.metrics.Metric;
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.appdynamics.extensions.postgres.util.Constants.SELF_MONITORING_PATH;
+
+/**
+ * Instrumentation of the collection of one server: how long connecting, waiting for a pooled connection or for the
+ * bulkhead, executing the queries and decoding their results took, and how many rows, metrics, errors and timeouts
+ * there were. The recording methods are lock free and cheap enough to be called for every query, the values are
+ * published and reset once per run under {@code <metricPrefix>|<server>|Self Monitoring}.
+ */
+public class CollectionStats {
+    private static final String[] PERCENTILE_NAMES = {"50th Percentile (us)", "95th Percentile (us)",
+            "99th Percentile (us)"};
+    private static final double[] PERCENTILES = {50, 95, 99};
+    static final String[] QUERY_METRICS = {"Execution Time (us)", "Decode Time (us)", "Rows Fetched",
+            "Metrics Emitted", "Errors", "Timeouts"};
+
+    private final boolean perQuery;
+    private final LatencyHistogram connectTimes = new LatencyHistogram();
+    private final LatencyHistogram acquireTimes = new LatencyHistogram();
+    private final LatencyHistogram bulkheadWaitTimes = new LatencyHistogram();
+    private final LatencyHistogram executionTimes = new LatencyHistogram();
+    private final LatencyHistogram decodeTimes = new LatencyHistogram();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong metrics = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong connectionErrors = new AtomicLong();
+    private final AtomicLong cancelledDatabases = new AtomicLong();
+    private final Map<QueryPlan, QueryStats> queries = new ConcurrentHashMap<>();
+
+    /**
+     * @param perQuery true to also publish the cost of every query of every database
+     */
+    public CollectionStats(boolean perQuery) {
+        this.perQuery = perQuery;
+    }
+
+    /**
+     * @return the histogram of the time taken to open new physical connections
+     */
+    public LatencyHistogram getConnectTimes() {
+        return connectTimes;
+    }
+
+    /**
+     * @return the histogram of the time spent queueing for the bulkhead of the server
+     */
+    public LatencyHistogram getBulkheadWaitTimes() {
+        return bulkheadWaitTimes;
+    }
+
+    public void recordAcquire(long startNanos, boolean failed) {
+        acquireTimes.recordSince(startNanos);
+        if (failed) {
+            connectionErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records the execution of a query, up to the first rows of its result. Pipelined queries are executed together,
+     * their execution is recorded once with a null query.
+     */
+    public void recordExecution(String dbName, QueryPlan query, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        executionTimes.record(micros);
+        if (perQuery && query != null) {
+            forQuery(dbName, query).recordExecution(micros);
+        }
+    }
+
+    /**
+     * Records reading the rows of a query and turning them into metrics.
+     */
+    public void recordResult(String dbName, QueryPlan query, long startNanos, long rowCount, long metricCount) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        decodeTimes.record(micros);
+        rows.addAndGet(rowCount);
+        if (perQuery && query != null) {
+            forQuery(dbName, query).recordResult(micros, rowCount, metricCount);
+        }
+    }
+
+    public void recordError(String dbName, QueryPlan query, boolean timeout) {
+        (timeout ? timeouts : errors).incrementAndGet();
+        if (perQuery && query != null) {
+            forQuery(dbName, query).recordError(timeout);
+        }
+    }
+
+    /**
+     * Records the metrics a database task handed to the metric writer, including those published again from the
+     * result cache.
+     */
+    public void recordMetrics(long metricCount) {
+        metrics.addAndGet(metricCount);
+    }
+
+    public void recordCancelled() {
+        cancelledDatabases.incrementAndGet();
+    }
+
+    public void forget(QueryPlan query) {
+        queries.remove(query);
+    }
+
+    public void clear() {
+        queries.clear();
+    }
+
+    private QueryStats forQuery(String dbName, QueryPlan query) {
+        return queries.computeIfAbsent(query, q -> new QueryStats(dbName, q.getName()));
+    }
+
+    /**
+     * Adds the values recorded since the last call to the metrics and starts a new interval.
+     *
+     * @param collectionMillis how long the run of the server took
+     */
+    public void publishAndReset(String metricPrefix, String serverName, long collectionMillis, List<Metric> out) {
+        out.add(metric("Collection Time (ms)", collectionMillis, metricPrefix, serverName));
+        addHistogram("Connect Time", connectTimes, metricPrefix, serverName, out);
+        addHistogram("Connection Acquire Time", acquireTimes, metricPrefix, serverName, out);
+        addHistogram("Bulkhead Wait Time", bulkheadWaitTimes, metricPrefix, serverName, out);
+        addHistogram("Query Execution Time", executionTimes, metricPrefix, serverName, out);
+        addHistogram("Result Decode Time", decodeTimes, metricPrefix, serverName, out);
+        out.add(metric("Rows Fetched", rows.getAndSet(0), metricPrefix, serverName));
+        out.add(metric("Metrics Emitted", metrics.getAndSet(0), metricPrefix, serverName));
+        out.add(metric("Query Errors", errors.getAndSet(0), metricPrefix, serverName));
+        out.add(metric("Query Timeouts", timeouts.getAndSet(0), metricPrefix, serverName));
+        out.add(metric("Connection Errors", connectionErrors.getAndSet(0), metricPrefix, serverName));
+        out.add(metric("Cancelled Databases", cancelledDatabases.getAndSet(0), metricPrefix, serverName));
+        for (QueryStats stats : queries.values()) {
+            long[] values = stats.snapshotAndReset();
+            if (values == null || stats.getQueryName() == null) {
+                continue;
+            }
+            for (int i = 0; i < values.length; i++) {
+                out.add(metric(QUERY_METRICS[i], values[i], metricPrefix, serverName, stats.getDbName(),
+                        stats.getQueryName()));
+            }
+        }
+    }
+
+    private static void addHistogram(String name, LatencyHistogram histogram, String metricPrefix, String serverName,
+                                     List<Metric> out) {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            out.add(metric(PERCENTILE_NAMES[i], snapshot.getValueAtPercentile(PERCENTILES[i]), metricPrefix,
+                    serverName, name));
+        }
+        out.add(metric("Max (us)", snapshot.getMax(), metricPrefix, serverName, name));
+        out.add(metric("Count", snapshot.getCount(), metricPrefix, serverName, name));
+    }
+
+    private static Metric metric(String name, long value, String metricPrefix, String serverName,
+                                 String... path) {
+        String[] tokens = new String[path.length + 3];
+        tokens[0] = serverName;
+        tokens[1] = SELF_MONITORING_PATH;
+        System.arraycopy(path, 0, tokens, 2, path.length);
+        tokens[tokens.length - 1] = name;
+        return new Metric(name, String.valueOf(value), metricPrefix, tokens);
+    }
+}
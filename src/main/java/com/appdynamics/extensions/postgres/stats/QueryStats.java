@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What one query of one database cost during the current interval. A query runs at most once per run of its server,
+ * so the times are the sums over the interval rather than histograms.
+ */
+public class QueryStats {
+    private final String dbName;
+    private final String queryName;
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong executionMicros = new AtomicLong();
+    private final AtomicLong decodeMicros = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong metrics = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    QueryStats(String dbName, String queryName) {
+        this.dbName = dbName;
+        this.queryName = queryName;
+    }
+
+    public String getDbName() {
+        return dbName;
+    }
+
+    public String getQueryName() {
+        return queryName;
+    }
+
+    void recordExecution(long micros) {
+        executions.incrementAndGet();
+        executionMicros.addAndGet(micros);
+    }
+
+    void recordResult(long decodeMicros, long rows, long metrics) {
+        this.decodeMicros.addAndGet(decodeMicros);
+        this.rows.addAndGet(rows);
+        this.metrics.addAndGet(metrics);
+    }
+
+    void recordError(boolean timeout) {
+        (timeout ? timeouts : errors).incrementAndGet();
+    }
+
+    /**
+     * @return the values of the interval, indexed like {@link CollectionStats#QUERY_METRICS}, or null if the query
+     * neither ran nor failed during the interval
+     */
+    long[] snapshotAndReset() {
+        long[] values = {executionMicros.getAndSet(0), decodeMicros.getAndSet(0), rows.getAndSet(0),
+                metrics.getAndSet(0), errors.getAndSet(0), timeouts.getAndSet(0)};
+        long ran = executions.getAndSet(0);
+        return ran == 0 && values[4] == 0 && values[5] == 0 ? null : values;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.util;
+
+import com.google.common.base.Strings;
+
+import java.util.Map;
+
+/**
+ * Helpers to read optional values from config.yml, where numbers and booleans may be written either as plain yaml
+ * scalars or as quoted strings.
+ */
+public class ConfigUtils {
+
+    public static int getInt(Map<String, ?> map, String key, int defaultValue) {
+        Object value = map == null ? null : map.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value == null || Strings.isNullOrEmpty(value.toString().trim())) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Expected a number for " + key + " in config.yml but found " + value);
+        }
+    }
+
+    public static double getDouble(Map<String, ?> map, String key, double defaultValue) {
+        Object value = map == null ? null : map.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value == null || Strings.isNullOrEmpty(value.toString().trim())) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.toString().trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Expected a number for " + key + " in config.yml but found " + value);
+        }
+    }
+
+    public static boolean getBoolean(Map<String, ?> map, String key, boolean defaultValue) {
+        Object value = map == null ? null : map.get(key);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value == null || Strings.isNullOrEmpty(value.toString().trim())) {
+            return defaultValue;
+        }
+        return Boolean.valueOf(value.toString().trim());
+    }
+}
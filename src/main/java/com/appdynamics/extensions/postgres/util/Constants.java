@@ -25,12 +25,15 @@ public class Constants {
     public static final String SERVERS = "servers";
     public static final String DISPLAY_NAME = "displayName";
     public static final String HOST = "host";
+    public static final String HOSTS = "hosts";
     public static final String USE_IPV6 = "useIpv6";
     public static final String PORT = "port";
     public static final String USER = "user";
     public static final String PASSWORD = "password";
     public static final String ENCRYPTION_KEY = "encryptionKey";
     public static final String OPTIONAL_CONNECTION_PROPERTIES = "optionalConnectionProperties";
+    public static final String TARGET_SERVER_TYPE = "targetServerType";
+    public static final String LOAD_BALANCE_HOSTS = "loadBalanceHosts";
     public static final String DATABASES = "databases";
     public static final String DB_NAME = "dbName";
     public static final String QUERIES = "queries";
@@ -47,4 +50,83 @@ public class Constants {
     public static final String DRIVER = "org.postgresql.Driver";
     public static final String DEFAULT_APPLICATION_NAME = "AppDynamicsPSQLExtension";
     public static final String HEART_BEAT = "HEART_BEAT";
+    public static final String CONNECTION_POOL = "connectionPool";
+    public static final String MAX_POOL_SIZE = "maxPoolSize";
+    public static final String ACQUIRE_TIMEOUT_SECONDS = "acquireTimeoutSeconds";
+    public static final String VALIDATION_INTERVAL_SECONDS = "validationIntervalSeconds";
+    public static final String MAX_IDLE_SECONDS = "maxIdleSeconds";
+    public static final int DEFAULT_MAX_POOL_SIZE = 2;
+    public static final int DEFAULT_ACQUIRE_TIMEOUT_SECONDS = 10;
+    public static final int DEFAULT_VALIDATION_INTERVAL_SECONDS = 30;
+    public static final int DEFAULT_MAX_IDLE_SECONDS = 600;
+    public static final String FETCH_SIZE = "fetchSize";
+    public static final String METRIC_CHUNK_SIZE = "metricChunkSize";
+    public static final int DEFAULT_METRIC_CHUNK_SIZE = 1000;
+    public static final String PIPELINE_QUERIES = "pipelineQueries";
+    public static final String PREPARE_QUERIES = "prepareQueries";
+    public static final String METRIC_PATH_CACHE_SIZE = "metricPathCacheSize";
+    public static final int DEFAULT_METRIC_PATH_CACHE_SIZE = 100000;
+    public static final String DELTA = "delta";
+    public static final String RATE = "rate";
+    public static final String STATS_RESET_COLUMN = "statsResetColumn";
+    public static final String COUNTER_EXPIRY_SECONDS = "counterExpirySeconds";
+    public static final int DEFAULT_COUNTER_EXPIRY_SECONDS = 3600;
+    public static final String INTERVAL = "interval";
+    public static final String STALE_WHILE_REVALIDATE = "staleWhileRevalidate";
+    public static final String RESULT_CACHE_MAX_METRICS = "resultCacheMaxMetrics";
+    public static final int DEFAULT_RESULT_CACHE_MAX_METRICS = 100000;
+    public static final String RESULT_AGE = "RESULT_AGE";
+    public static final String SHARDS = "shards";
+    public static final String SHARD_KEY = "shardKey";
+    public static final String ROUTE = "route";
+    public static final String TOP_N = "topN";
+    public static final String RANK_BY = "rankBy";
+    public static final String TOP_N_HYSTERESIS = "topNHysteresis";
+    public static final double DEFAULT_TOP_N_HYSTERESIS = 0.1;
+    public static final String OTHER = "Other";
+    public static final String DISCOVERY = "discovery";
+    public static final String DISCOVERY_DATABASE = "database";
+    public static final String DEFAULT_DISCOVERY_DATABASE = "postgres";
+    public static final String INCLUDE = "include";
+    public static final String EXCLUDE = "exclude";
+    public static final String REFRESH_INTERVAL_SECONDS = "refreshIntervalSeconds";
+    public static final int DEFAULT_REFRESH_INTERVAL_SECONDS = 600;
+    public static final String STATEMENTS = "statements";
+    public static final String STATEMENTS_DATABASE = "database";
+    public static final String TOP_K = "topK";
+    public static final int DEFAULT_TOP_K = 10;
+    public static final int DEFAULT_STATEMENTS_FETCH_SIZE = 1000;
+    public static final String STATEMENTS_PATH = "Statements";
+    public static final String WAIT_EVENTS = "waitEvents";
+    public static final String WAIT_EVENTS_DATABASE = "database";
+    public static final String SAMPLE_INTERVAL_MILLIS = "sampleIntervalMillis";
+    public static final int DEFAULT_SAMPLE_INTERVAL_MILLIS = 1000;
+    public static final int MIN_SAMPLE_INTERVAL_MILLIS = 100;
+    public static final String WINDOW_SECONDS = "windowSeconds";
+    public static final int DEFAULT_WINDOW_SECONDS = 60;
+    public static final String MAX_WAIT_EVENTS = "maxWaitEvents";
+    public static final int DEFAULT_MAX_WAIT_EVENTS = 64;
+    public static final String WAIT_EVENTS_PATH = "Wait Events";
+    public static final String MAX_CONCURRENT_DATABASES = "maxConcurrentDatabases";
+    public static final int DEFAULT_MAX_CONCURRENT_DATABASES = 4;
+    public static final String BULKHEAD = "bulkhead";
+    public static final String MAX_CONNECTIONS = "maxConnections";
+    public static final String MAX_IN_FLIGHT = "maxInFlight";
+    public static final String COLLECTION_DEADLINE_SECONDS = "collectionDeadlineSeconds";
+    public static final int DEFAULT_COLLECTION_DEADLINE_SECONDS = 50;
+    public static final String TIMEOUT_SECONDS = "timeoutSeconds";
+    public static final String QUERY_TIMEOUT_SECONDS = "queryTimeoutSeconds";
+    public static final int DEFAULT_QUERY_TIMEOUT_SECONDS = 30;
+    public static final String CIRCUIT_BREAKER = "circuitBreaker";
+    public static final String FAILURE_THRESHOLD = "failureThreshold";
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final String BACKOFF_SECONDS = "backoffSeconds";
+    public static final int DEFAULT_BACKOFF_SECONDS = 60;
+    public static final String MAX_BACKOFF_SECONDS = "maxBackoffSeconds";
+    public static final int DEFAULT_MAX_BACKOFF_SECONDS = 3600;
+    public static final String CIRCUIT_BREAKER_STATE = "CIRCUIT_BREAKER";
+    public static final String SELF_MONITORING = "selfMonitoring";
+    public static final String ENABLED = "enabled";
+    public static final String PER_QUERY = "perQuery";
+    public static final String SELF_MONITORING_PATH = "Self Monitoring";
 }
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres;
+
+import com.appdynamics.extensions.ABaseMonitor;
+import com.appdynamics.extensions.AMonitorTaskRunnable;
+import com.appdynamics.extensions.MetricWriteHelper;
+import com.appdynamics.extensions.TasksExecutionServiceProvider;
+import com.appdynamics.extensions.conf.MonitorContext;
+import com.appdynamics.extensions.conf.MonitorContextConfiguration;
+import com.appdynamics.extensions.metrics.Metric;
+import com.appdynamics.extensions.metrics.MetricCharSequenceReplacer;
+import com.appdynamics.extensions.postgres.fake.FakePostgresDriver;
+import com.appdynamics.extensions.postgres.fake.FleetProfile;
+import com.appdynamics.extensions.util.MetricPathUtils;
+import com.appdynamics.extensions.yml.YmlReader;
+import com.singularity.ee.agent.systemagent.api.MetricWriter;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.appdynamics.extensions.postgres.util.Constants.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Runs {@link PostgresMonitor#doRun} end to end against a fleet of servers simulated by {@link FakePostgresDriver},
+ * the way the machine agent does: the task of every server is run on a pool of {@code numberOfThreads} threads and
+ * completed with onTaskComplete. Every run reports how long it took until the last server completed, the peak number
+ * of live threads, the peak heap usage and the number of metrics written per second.
+ * <p>
+ * Run it from the project directory with the test classpath, for example
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.appdynamics.extensions.postgres.FleetHarness -Dexec.args="servers=2000 databases=5"}.
+ * The arguments are the fields of {@link FleetProfile} and servers, threads and runs, as name=value pairs.
+ */
+public class FleetHarness {
+    private static final String FLEET_CONFIG = "src/test/resources/conf/config_fleet.yml";
+
+    private final Map<String, ?> config;
+    private final int servers;
+    private final int threads;
+    private final AtomicLong metrics = new AtomicLong();
+    private final Map<String, String> heartBeats = new ConcurrentHashMap<>();
+    private final AtomicReference<CountDownLatch> pending = new AtomicReference<>();
+    private final ExecutorService taskPool;
+    private final PostgresMonitor monitor;
+    private final TasksExecutionServiceProvider provider;
+
+    /**
+     * @param servers number of copies of the server of the fleet config
+     * @param threads numberOfThreads of the monitor, the extension needs one per server
+     */
+    public FleetHarness(int servers, int threads) {
+        this.servers = servers;
+        this.threads = threads;
+        this.config = fleetConfig(servers);
+        this.taskPool = Executors.newFixedThreadPool(threads);
+        MonitorContextConfiguration contextConfiguration = mockContextConfiguration(config);
+        this.monitor = new PostgresMonitor() {
+            @Override
+            public MonitorContextConfiguration getContextConfiguration() {
+                return contextConfiguration;
+            }
+        };
+        // stub only, so that the metrics written are not kept as invocations
+        MetricWriteHelper metricWriteHelper = mock(MetricWriteHelper.class, withSettings().stubOnly());
+        doAnswer(invocation -> {
+            List<Metric> written = (List<Metric>) invocation.getArguments()[0];
+            metrics.addAndGet(written.size());
+            for (Metric metric : written) {
+                if (HEART_BEAT.equals(metric.getMetricName())) {
+                    heartBeats.put(metric.getMetricPath(), metric.getMetricValue());
+                }
+            }
+            return null;
+        }).when(metricWriteHelper).transformAndPrintMetrics(anyList());
+        this.provider = mock(TasksExecutionServiceProvider.class, withSettings().stubOnly());
+        when(provider.getMetricWriteHelper()).thenReturn(metricWriteHelper);
+        doAnswer(invocation -> {
+            AMonitorTaskRunnable task = (AMonitorTaskRunnable) invocation.getArguments()[1];
+            CountDownLatch latch = pending.get();
+            taskPool.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    task.onTaskComplete();
+                    latch.countDown();
+                }
+            });
+            return null;
+        }).when(provider).submit(anyString(), any(AMonitorTaskRunnable.class));
+    }
+
+    /**
+     * Runs the monitor once and waits for every server to complete.
+     */
+    public Report runOnce(long timeoutMillis) throws InterruptedException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        metrics.set(0);
+        CountDownLatch latch = new CountDownLatch(servers);
+        pending.set(latch);
+        long start = System.nanoTime();
+        monitor.doRun(provider);
+        boolean completed = latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        long cycleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long heapPeak = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            heapPeak += pool.getPeakUsage().getUsed();
+        }
+        return new Report(completed, cycleMillis, threadBean.getPeakThreadCount(), heapPeak, metrics.get());
+    }
+
+    /**
+     * @return the last HEART_BEAT of every server, keyed by server name
+     */
+    public Map<String, String> getHeartBeats() {
+        Map<String, String> byServer = new HashMap<>();
+        for (Map.Entry<String, String> entry : heartBeats.entrySet()) {
+            String[] tokens = entry.getKey().split("\\|");
+            byServer.put(tokens[tokens.length - 2], entry.getValue());
+        }
+        return byServer;
+    }
+
+    public void shutdown() {
+        taskPool.shutdownNow();
+    }
+
+    public static String serverName(int i) {
+        return "server-" + i;
+    }
+
+    // copies the server of the fleet config once per simulated server
+    private static Map<String, ?> fleetConfig(int servers) {
+        Map<String, Object> config = new LinkedHashMap<>(YmlReader.readFromFileAsMap(new File(FLEET_CONFIG)));
+        Map<String, ?> template = ((List<Map<String, ?>>) config.get(SERVERS)).get(0);
+        List<Map<String, ?>> fleet = new ArrayList<>();
+        for (int i = 1; i <= servers; i++) {
+            Map<String, Object> server = new LinkedHashMap<>(template);
+            server.put(DISPLAY_NAME, serverName(i));
+            server.put(HOST, serverName(i));
+            fleet.add(server);
+        }
+        config.put(SERVERS, fleet);
+        return config;
+    }
+
+    private static MonitorContextConfiguration mockContextConfiguration(Map<String, ?> config) {
+        ABaseMonitor baseMonitor = mock(ABaseMonitor.class);
+        MonitorContextConfiguration contextConfiguration = mock(MonitorContextConfiguration.class);
+        MonitorContext context = mock(MonitorContext.class);
+        when(baseMonitor.getContextConfiguration()).thenReturn(contextConfiguration);
+        when(contextConfiguration.getContext()).thenReturn(context);
+        when(contextConfiguration.getConfigYml()).thenReturn((Map) config);
+        when(contextConfiguration.getMetricPrefix()).thenReturn((String) config.get("metricPrefix"));
+        MetricPathUtils.registerMetricCharSequenceReplacer(baseMonitor);
+        when(context.getMetricCharSequenceReplacer()).thenReturn(MetricCharSequenceReplacer.createInstance(config));
+        when(baseMonitor.getMetricWriter(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mock(MetricWriter.class));
+        return contextConfiguration;
+    }
+
+    /**
+     * What one run of the monitor cost.
+     */
+    public static final class Report {
+        private final boolean completed;
+        private final long cycleMillis;
+        private final int peakThreads;
+        private final long heapPeakBytes;
+        private final long metrics;
+
+        private Report(boolean completed, long cycleMillis, int peakThreads, long heapPeakBytes, long metrics) {
+            this.completed = completed;
+            this.cycleMillis = cycleMillis;
+            this.peakThreads = peakThreads;
+            this.heapPeakBytes = heapPeakBytes;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return true if every server completed before the timeout of the run
+         */
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        public long getCycleMillis() {
+            return cycleMillis;
+        }
+
+        public int getPeakThreads() {
+            return peakThreads;
+        }
+
+        public long getHeapPeakBytes() {
+            return heapPeakBytes;
+        }
+
+        public long getMetrics() {
+            return metrics;
+        }
+
+        public double getMetricsPerSecond() {
+            return cycleMillis == 0 ? metrics : metrics * 1000.0 / cycleMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("completed=%s cycle=%d ms peakThreads=%d heapPeak=%d MB metrics=%d " +
+                            "metrics/s=%.0f", completed, cycleMillis, peakThreads, heapPeakBytes >> 20, metrics,
+                    getMetricsPerSecond());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            options.put(pair[0], pair.length > 1 ? pair[1] : "true");
+        }
+        int servers = Integer.parseInt(options.getOrDefault("servers", "1000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(servers)));
+        int runs = Integer.parseInt(options.getOrDefault("runs", "5"));
+        FleetProfile profile = new FleetProfile.Builder()
+                .databases(Integer.parseInt(options.getOrDefault("databases", "10")))
+                .rows(Integer.parseInt(options.getOrDefault("rows", "100")))
+                .columns(Integer.parseInt(options.getOrDefault("columns", "10")))
+                .connectLatencyMillis(Long.parseLong(options.getOrDefault("connectLatencyMillis", "20")))
+                .queryLatencyMillis(Long.parseLong(options.getOrDefault("queryLatencyMillis", "5")))
+                .connectFailureRate(Double.parseDouble(options.getOrDefault("connectFailureRate", "0")))
+                .failureRate(Double.parseDouble(options.getOrDefault("failureRate", "0.01")))
+                .hangRate(Double.parseDouble(options.getOrDefault("hangRate", "0.001"))).build();
+        FakePostgresDriver driver = FakePostgresDriver.install(profile);
+        FleetHarness harness = new FleetHarness(servers, threads);
+        try {
+            System.out.printf("%d servers, %d databases each, %d threads%n", servers, profile.getDatabases(),
+                    threads);
+            for (int run = 1; run <= runs; run++) {
+                Report report = harness.runOnce(TimeUnit.MINUTES.toMillis(2));
+                System.out.printf("run %d: %s connects=%d executions=%d openConnections=%d%n", run, report,
+                        driver.getConnects(), driver.getExecutions(), driver.getOpenConnections());
+            }
+        } finally {
+            harness.shutdown();
+            FakePostgresDriver.uninstall();
+        }
+        System.exit(0);
+    }
+}
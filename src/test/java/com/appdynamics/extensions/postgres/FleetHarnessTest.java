@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres;
+
+import com.appdynamics.extensions.postgres.fake.FakePostgresDriver;
+import com.appdynamics.extensions.postgres.fake.FleetProfile;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A small simulated fleet with one server that cannot be connected to and one whose queries all hang.
+ */
+public class FleetHarnessTest {
+    private FleetHarness harness;
+
+    @After
+    public void tearDown() throws Exception {
+        if (harness != null) {
+            harness.shutdown();
+        }
+        FakePostgresDriver.uninstall();
+    }
+
+    @Test
+    public void unhealthyServersDoNotHoldUpTheFleet() throws Exception {
+        FleetProfile healthy = new FleetProfile.Builder().databases(3).rows(20).columns(5).queryLatencyMillis(2)
+                .build();
+        FakePostgresDriver driver = FakePostgresDriver.install(healthy)
+                .withHost(FleetHarness.serverName(2), new FleetProfile.Builder().connectFailureRate(1).build())
+                .withHost(FleetHarness.serverName(3), new FleetProfile.Builder().columns(5).hangRate(1).build());
+        harness = new FleetHarness(10, 10);
+
+        FleetHarness.Report first = harness.runOnce(30000);
+        FleetHarness.Report second = harness.runOnce(30000);
+
+        assertThat(first.isCompleted(), is(true));
+        assertThat(second.isCompleted(), is(true));
+        // the hanging server is cancelled by the query timeout of 1 second, well before the deadline of 10
+        assertTrue(second.toString(), second.getCycleMillis() < 8000);
+        assertTrue(second.getMetricsPerSecond() > 0);
+        // 8 healthy servers, each with 3 databases of 20 rows with 4 values and 20 rows with 2 values
+        assertTrue(String.valueOf(second.getMetrics()), second.getMetrics() >= 8 * (3 * 20 * 4 + 20 * 2));
+        Map<String, String> heartBeats = harness.getHeartBeats();
+        assertThat(heartBeats.size(), is(10));
+        assertThat(heartBeats.get(FleetHarness.serverName(1)), equalTo("1"));
+        assertThat(heartBeats.get(FleetHarness.serverName(2)), equalTo("0"));
+        assertThat(heartBeats.get(FleetHarness.serverName(3)), equalTo("1"));
+        // connections are pooled across runs
+        assertTrue(driver.getOpenConnections() <= driver.getConnects());
+    }
+}
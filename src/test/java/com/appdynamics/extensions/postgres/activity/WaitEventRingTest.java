@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.activity;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class WaitEventRingTest {
+
+    @Test
+    public void sessionsAreSummedPerWaitEventOverTheWindow() {
+        WaitEventRing ring = new WaitEventRing(4, 8);
+        ring.begin(1000);
+        ring.add(bytes("active"), null, null, 3);
+        ring.add(bytes("active"), bytes("Lock"), bytes("transactionid"), 1);
+        ring.commit();
+        ring.begin(2000);
+        // the names are copied, the driver may reuse its buffers
+        byte[] state = bytes("active");
+        ring.add(state, null, null, 1);
+        state[0] = 'x';
+        ring.add(bytes("active"), bytes("Lock"), bytes("transactionid"), 4);
+        ring.add(bytes("idle in transaction"), bytes("Client"), bytes("ClientRead"), 2);
+        ring.commit();
+
+        long[] sums = new long[ring.getKeyCapacity()];
+        int[] peaks = new int[ring.getKeyCapacity()];
+        assertThat(ring.aggregate(0, sums, peaks), is(2));
+        assertThat(ring.getNames(0), equalTo(new String[]{"active", "CPU", "CPU"}));
+        assertThat(sums[0], is(4L));
+        assertThat(peaks[0], is(3));
+        assertThat(ring.getNames(1), equalTo(new String[]{"active", "Lock", "transactionid"}));
+        assertThat(sums[1], is(5L));
+        assertThat(peaks[1], is(4));
+        assertThat(ring.getNames(2), equalTo(new String[]{"idle in transaction", "Client", "ClientRead"}));
+        assertThat(sums[2], is(2L));
+        assertThat(ring.getNames(3), is(nullValue()));
+
+        // the first sample is out of the window
+        assertThat(ring.aggregate(1500, sums, peaks), is(1));
+        assertThat(sums[0], is(1L));
+        assertThat(peaks[1], is(4));
+    }
+
+    @Test
+    public void oldestSampleIsOverwrittenAndFailedSamplesAreLeftOut() {
+        WaitEventRing ring = new WaitEventRing(2, 8);
+        for (int i = 1; i <= 3; i++) {
+            ring.begin(i * 1000);
+            ring.add(bytes("active"), null, null, i);
+            ring.commit();
+        }
+        // not committed
+        ring.begin(4000);
+        ring.add(bytes("active"), null, null, 100);
+
+        long[] sums = new long[ring.getKeyCapacity()];
+        int[] peaks = new int[ring.getKeyCapacity()];
+        assertThat(ring.aggregate(0, sums, peaks), is(1));
+        assertThat(sums[0], is(3L));
+
+        ring.begin(5000);
+        ring.add(bytes("active"), null, null, 5);
+        ring.commit();
+        assertThat(ring.aggregate(0, sums, peaks), is(1));
+        assertThat(sums[0], is(5L));
+    }
+
+    @Test
+    public void waitEventsPastTheMaximumAreCountedAsOther() {
+        WaitEventRing ring = new WaitEventRing(2, 2);
+        ring.begin(1000);
+        ring.add(bytes("active"), null, null, 1);
+        ring.add(bytes("active"), bytes("IO"), bytes("DataFileRead"), 2);
+        ring.add(bytes("active"), bytes("LWLock"), bytes("WALWrite"), 3);
+        ring.add(bytes("active"), bytes("Lock"), bytes("relation"), 4);
+        ring.commit();
+
+        long[] sums = new long[ring.getKeyCapacity()];
+        int[] peaks = new int[ring.getKeyCapacity()];
+        assertThat(ring.aggregate(0, sums, peaks), is(1));
+        assertThat(sums[1], is(2L));
+        assertThat(ring.getNames(2), equalTo(new String[]{"Other", "Other", "Other"}));
+        assertThat(sums[2], is(7L));
+    }
+
+    private static byte[] bytes(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -39,11 +39,11 @@ public class ColumnGeneratorTest {
         assertThat(cols.size(), is(5));
         Column col1 = cols.get(0);
         assertThat(col1.getName(), equalTo("datname"));
-        assertThat(col1.getType().toLowerCase(), equalTo("metricpath"));
+        assertThat(col1.getType(), is(ColumnType.METRIC_PATH));
         assertThat(col1.getProperties(), is(nullValue()));
         Column col2 = cols.get(1);
         assertThat(col2.getName(), equalTo("numbackends"));
-        assertThat(col2.getType().toLowerCase(), equalTo("metricvalue"));
+        assertThat(col2.getType(), is(ColumnType.METRIC_VALUE));
         assertThat(col2.getProperties(), is(notNullValue()));
         Map<String, ?> properties = col2.getProperties();
         assertThat(properties.size(), is(4));
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.connection;
+
+import com.appdynamics.extensions.postgres.stats.LatencyHistogram;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(ConnectionUtils.class)
+public class BulkheadTest {
+    private PostgresConnectionConfig connectionConfig;
+
+    @Before
+    public void setup() throws SQLException, ClassNotFoundException {
+        connectionConfig = mock(PostgresConnectionConfig.class);
+        when(connectionConfig.getUrl()).thenReturn("");
+        mockStatic(ConnectionUtils.class);
+        when(ConnectionUtils.getConnection(anyString(), anyString(), any())).thenAnswer(invocation ->
+                mock(Connection.class));
+    }
+
+    private ConnectionPool pool(String dbName, long acquireTimeoutMillis, Bulkhead bulkhead) {
+        return new ConnectionPool("server|" + dbName, connectionConfig, 2, acquireTimeoutMillis, 30000, 600000, null,
+                bulkhead);
+    }
+
+    @Test
+    public void idleConnectionOfAnotherDatabaseIsClosedToStayWithinTheBulkhead() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("server", 2, 2, null);
+        ConnectionPool first = pool("first", 100, bulkhead);
+        ConnectionPool second = pool("second", 100, bulkhead);
+        Connection idle;
+        try (PooledConnection pooled = first.acquire()) {
+            idle = pooled.getConnection();
+        }
+        try (PooledConnection one = second.acquire(); PooledConnection two = second.acquire()) {
+            assertThat(bulkhead.getOpenConnections(), is(2));
+            assertThat(bulkhead.getInFlight(), is(2));
+        }
+        verify(idle).close();
+        assertThat(first.getIdleCount(), is(0));
+        assertThat(second.getIdleCount(), is(2));
+        assertThat(bulkhead.getInFlight(), is(0));
+        first.close();
+        second.close();
+        assertThat(bulkhead.getOpenConnections(), is(0));
+    }
+
+    @Test
+    public void acquireTimesOutWhenTooManyConnectionsAreInFlight() throws Exception {
+        LatencyHistogram waitTimes = new LatencyHistogram();
+        Bulkhead bulkhead = new Bulkhead("server", 2, 1, waitTimes);
+        ConnectionPool first = pool("first", 10, bulkhead);
+        ConnectionPool second = pool("second", 10, bulkhead);
+        try (PooledConnection held = first.acquire()) {
+            second.acquire();
+            fail("the bulkhead should not let a second connection in flight");
+        } catch (SQLException se) {
+            assertThat(se.getMessage(), containsString("bulkhead"));
+        }
+        // a connection that failed to open gives its permits back
+        when(ConnectionUtils.getConnection(anyString(), anyString(), any())).thenThrow(new SQLException("refused"));
+        try {
+            second.acquire();
+            fail("the connection should not open");
+        } catch (SQLException se) {
+            assertThat(se.getMessage(), equalTo("refused"));
+        }
+        assertThat(bulkhead.getInFlight(), is(0));
+        assertThat(bulkhead.getOpenConnections(), is(1));
+        // the queueing time is recorded for every permit, including the wait that timed out
+        assertThat(waitTimes.snapshotAndReset().getCount(), is(5L));
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void queuedTaskGetsTheConnectionGivenBack() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("server", 1, 1, null);
+        ConnectionPool first = pool("first", 5000, bulkhead);
+        ConnectionPool second = pool("second", 5000, bulkhead);
+        PooledConnection held = first.acquire();
+        CompletableFuture<PooledConnection> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return second.acquire();
+            } catch (SQLException | ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertThat(queued.isDone(), is(false));
+        Connection handedOver = held.getConnection();
+        held.close();
+        try (PooledConnection pooled = queued.get(5, TimeUnit.SECONDS)) {
+            assertThat(pooled.getConnection(), is(not(sameInstance(handedOver))));
+            assertThat(bulkhead.getOpenConnections(), is(1));
+        }
+        verify(handedOver).close();
+        first.close();
+        second.close();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.connection;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(ConnectionUtils.class)
+public class ConnectionPoolTest {
+    private PostgresConnectionConfig connectionConfig;
+
+    @Before
+    public void setup() throws SQLException, ClassNotFoundException {
+        connectionConfig = mock(PostgresConnectionConfig.class);
+        when(connectionConfig.getUrl()).thenReturn("");
+        mockStatic(ConnectionUtils.class);
+        when(ConnectionUtils.getConnection(anyString(), anyString(), any())).thenAnswer(invocation ->
+                mock(Connection.class));
+    }
+
+    @Test
+    public void connectionIsReusedAcrossAcquires() throws Exception {
+        ConnectionPool pool = new ConnectionPool("server|db", connectionConfig, 2, 100, 30000, 600000);
+        Connection first;
+        try (PooledConnection pooled = pool.acquire()) {
+            first = pooled.getConnection();
+        }
+        try (PooledConnection pooled = pool.acquire()) {
+            assertThat(pooled.getConnection(), is(sameInstance(first)));
+        }
+        verifyStatic(times(1));
+        ConnectionUtils.getConnection(anyString(), anyString(), any());
+        pool.close();
+    }
+
+    @Test
+    public void brokenConnectionIsEvicted() throws Exception {
+        ConnectionPool pool = new ConnectionPool("server|db", connectionConfig, 2, 100, 30000, 600000);
+        Connection first;
+        try (PooledConnection pooled = pool.acquire()) {
+            first = pooled.getConnection();
+            pooled.invalidateIfBroken(new SQLException("connection reset", "08006"));
+        }
+        verify(first).close();
+        assertThat(pool.getIdleCount(), is(0));
+        try (PooledConnection pooled = pool.acquire()) {
+            assertThat(pooled.getConnection(), is(not(sameInstance(first))));
+        }
+        pool.close();
+    }
+
+    @Test
+    public void preparedStatementsLiveAsLongAsTheConnection() throws Exception {
+        ConnectionPool pool = new ConnectionPool("server|db", connectionConfig, 2, 100, 30000, 600000);
+        PreparedStatement stmt;
+        try (PooledConnection pooled = pool.acquire()) {
+            when(pooled.getConnection().prepareStatement("SELECT 1")).thenReturn(mock(PreparedStatement.class));
+            stmt = pooled.prepare("SELECT 1");
+        }
+        try (PooledConnection pooled = pool.acquire()) {
+            assertThat(pooled.prepare("SELECT 1"), is(sameInstance(stmt)));
+            assertThat(pooled.getPreparedCount(), is(1));
+            pooled.invalidate();
+        }
+        verify(stmt).close();
+        pool.close();
+    }
+
+    @Test
+    public void discardedStatementsAreClosedOnceTheConnectionIsIdle() throws Exception {
+        ConnectionPool pool = new ConnectionPool("server|db", connectionConfig, 2, 100, 30000, 600000);
+        PooledConnection busy = pool.acquire();
+        PreparedStatement busyStmt = mock(PreparedStatement.class);
+        when(busy.getConnection().prepareStatement("SELECT 1")).thenReturn(busyStmt);
+        busy.prepare("SELECT 1");
+        PreparedStatement idleStmt = mock(PreparedStatement.class);
+        PreparedStatement keptStmt = mock(PreparedStatement.class);
+        try (PooledConnection pooled = pool.acquire()) {
+            when(pooled.getConnection().prepareStatement("SELECT 1")).thenReturn(idleStmt);
+            when(pooled.getConnection().prepareStatement("SELECT 2")).thenReturn(keptStmt);
+            pooled.prepare("SELECT 1");
+            pooled.prepare("SELECT 2");
+        }
+        pool.discard(Collections.singleton("SELECT 1"));
+        verify(idleStmt).close();
+        verify(keptStmt, never()).close();
+        // still running its query
+        verify(busyStmt, never()).close();
+        busy.close();
+        verify(busyStmt).close();
+        assertThat(busy.getPreparedCount(), is(0));
+        pool.close();
+    }
+
+    @Test
+    public void statementTimeoutIsSetOnNewConnections() throws Exception {
+        when(connectionConfig.getStatementTimeoutMillis()).thenReturn(30000L);
+        Connection conn = mock(Connection.class);
+        Statement stmt = mock(Statement.class);
+        when(conn.createStatement()).thenReturn(stmt);
+        when(ConnectionUtils.getConnection(anyString(), anyString(), any())).thenReturn(conn);
+        ConnectionPool pool = new ConnectionPool("server|db", connectionConfig, 2, 100, 30000, 600000);
+        try (PooledConnection pooled = pool.acquire()) {
+            assertThat(pooled.getConnection(), is(sameInstance(conn)));
+        }
+        // once per physical connection
+        try (PooledConnection pooled = pool.acquire()) {
+            assertThat(pooled.getConnection(), is(sameInstance(conn)));
+        }
+        verify(stmt, times(1)).execute("SET statement_timeout = 30000");
+        verify(stmt).close();
+        pool.close();
+    }
+
+    @Test
+    public void connectionIsClosedWhenTheSessionCannotBeSet() throws Exception {
+        when(connectionConfig.getStatementTimeoutMillis()).thenReturn(30000L);
+        Connection conn = mock(Connection.class);
+        when(conn.createStatement()).thenThrow(new SQLException("connection reset", "08006"));
+        when(ConnectionUtils.getConnection(anyString(), anyString(), any())).thenReturn(conn);
+        ConnectionPool pool = new ConnectionPool("server|db", connectionConfig, 1, 100, 30000, 600000);
+        try {
+            pool.acquire();
+            fail("the connection should not be handed out");
+        } catch (SQLException se) {
+            assertThat(se.getSQLState(), equalTo("08006"));
+        }
+        verify(conn).close();
+        // the permit was given back
+        when(ConnectionUtils.getConnection(anyString(), anyString(), any())).thenReturn(mock(Connection.class));
+        when(connectionConfig.getStatementTimeoutMillis()).thenReturn(0L);
+        pool.acquire().close();
+        pool.close();
+    }
+
+    @Test
+    public void queryErrorDoesNotEvictConnection() throws Exception {
+        ConnectionPool pool = new ConnectionPool("server|db", connectionConfig, 2, 100, 30000, 600000);
+        try (PooledConnection pooled = pool.acquire()) {
+            pooled.invalidateIfBroken(new SQLException("relation does not exist", "42P01"));
+        }
+        assertThat(pool.getIdleCount(), is(1));
+        pool.close();
+        assertThat(pool.getIdleCount(), is(0));
+    }
+
+    @Test(expected = SQLException.class)
+    public void acquireTimesOutWhenPoolIsExhausted() throws Exception {
+        ConnectionPool pool = new ConnectionPool("server|db", connectionConfig, 1, 10, 30000, 600000);
+        PooledConnection held = pool.acquire();
+        try {
+            pool.acquire();
+        } finally {
+            held.close();
+            pool.close();
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.sql.DriverManager;
+import java.util.Arrays;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 /**
@@ -43,4 +44,11 @@ public class ConnectionUtilsTest {
         String url = ConnectionUtils.buildURL("shield", "marvel", "1234", "avengers", false);
         Assert.assertThat(url, equalTo("shield//marvel:1234/avengers"));
     }
+
+    @Test
+    public void hostsWithoutPortGetTheDefaultPort() {
+        String url = ConnectionUtils.buildURL("shield", Arrays.asList("marvel", "dc:4321", "[::1]", "[::2]:4321"),
+                "1234", "avengers", false);
+        Assert.assertThat(url, equalTo("shield//marvel:1234,dc:4321,[::1]:1234,[::2]:4321/avengers"));
+    }
 }
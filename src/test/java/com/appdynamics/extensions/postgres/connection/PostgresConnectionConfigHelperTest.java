@@ -23,6 +23,8 @@ import java.util.List;
 import java.util.Map;
 
 import static com.appdynamics.extensions.postgres.util.Constants.SERVERS;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
 
 /**
  * @author pradeep.nair
@@ -35,4 +37,17 @@ public class PostgresConnectionConfigHelperTest {
         List<Map<String, ?>> servers = (List<Map<String, ?>>) conf.get(SERVERS);
         PostgresConnectionConfigHelper.getConnectionConfig("database", "server", "password", servers.get(0));
     }
+
+    @Test
+    public void statementTimeoutIsKeptForTheSessions() {
+        Map<String, ?> conf = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config.yml"));
+        Map<String, ?> server = ((List<Map<String, ?>>) conf.get(SERVERS)).get(0);
+        PostgresConnectionConfig config = PostgresConnectionConfigHelper.getConnectionConfig("test", "server", "",
+                server, 30000);
+        assertThat(config.getStatementTimeoutMillis(), is(30000L));
+        // not a connection property, the driver does not support options
+        assertThat(config.getProps().getProperty("options"), is(nullValue()));
+        config = PostgresConnectionConfigHelper.getConnectionConfig("test", "server", "", server);
+        assertThat(config.getStatementTimeoutMillis(), is(0L));
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.discovery;
+
+import com.appdynamics.extensions.postgres.connection.ConnectionPool;
+import com.appdynamics.extensions.postgres.connection.PooledConnection;
+import com.appdynamics.extensions.postgres.plan.CollectionPlanCompiler;
+import com.appdynamics.extensions.postgres.plan.DatabasePlan;
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import com.appdynamics.extensions.postgres.plan.QueryPlanIndex;
+import com.appdynamics.extensions.postgres.plan.ServerPlan;
+import com.appdynamics.extensions.yml.YmlReader;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class DatabaseDiscoveryTest {
+    private ConnectionPool pool;
+    private ResultSet rs;
+    private DatabaseDiscovery discovery;
+
+    @Before
+    public void setup() throws Exception {
+        Map<String, ?> conf = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config_discovery.yml"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(conf).getServers().get(0);
+        discovery = new DatabaseDiscovery(serverPlan.getServerName(), serverPlan.getDiscovery(),
+                serverPlan.getDatabases());
+        pool = mock(ConnectionPool.class);
+        PooledConnection pooled = mock(PooledConnection.class);
+        Connection conn = mock(Connection.class);
+        Statement stmt = mock(Statement.class);
+        rs = mock(ResultSet.class);
+        when(pool.acquire()).thenReturn(pooled);
+        when(pooled.getConnection()).thenReturn(conn);
+        when(conn.createStatement()).thenReturn(stmt);
+        when(stmt.executeQuery(DatabaseDiscovery.LIST_DATABASES)).thenReturn(rs);
+    }
+
+    private void listing(String... names) throws SQLException {
+        Boolean[] more = new Boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            more[i] = i < names.length - 1;
+        }
+        when(rs.next()).thenReturn(names.length > 0, more);
+        when(rs.getString(1)).thenReturn(names[0], Arrays.copyOfRange(names, 1, names.length));
+    }
+
+    @Test
+    public void matchingDatabasesAreDiscovered() throws Exception {
+        listing("postgres", "test", "tenant_1", "tenant_1_archive", "tenant_2");
+        assertThat(discovery.refreshIfDue(pool, 0L).isEmpty(), is(true));
+        List<DatabasePlan> databases = discovery.getDatabases();
+        assertThat(databases.size(), is(2));
+        assertThat(databases.get(0).getDbName(), equalTo("tenant_1"));
+        assertThat(databases.get(1).getDbName(), equalTo("tenant_2"));
+    }
+
+    @Test
+    public void databasesAreListedOncePerRefreshInterval() throws Exception {
+        listing("tenant_1", "tenant_2");
+        discovery.refreshIfDue(pool, 0L);
+        DatabasePlan tenant1 = discovery.getDatabases().get(0);
+        listing("tenant_1", "tenant_3");
+        discovery.refreshIfDue(pool, 1000L);
+        verify(pool, times(1)).acquire();
+        List<DatabasePlan> dropped = discovery.refreshIfDue(pool, 300000L);
+        assertThat(dropped.size(), is(1));
+        assertThat(dropped.get(0).getDbName(), equalTo("tenant_2"));
+        assertThat(discovery.getDatabases().size(), is(2));
+        // the plan of a database still found is kept
+        assertThat(discovery.getDatabases().get(0), is(sameInstance(tenant1)));
+        assertThat(discovery.getDatabases().get(1).getDbName(), equalTo("tenant_3"));
+    }
+
+    @Test
+    public void databasesFoundLastAreKeptWhenListingFails() throws Exception {
+        listing("tenant_1");
+        discovery.refreshIfDue(pool, 0L);
+        when(pool.acquire()).thenThrow(new SQLException("connection refused", "08001"));
+        assertThat(discovery.refreshIfDue(pool, 300000L).isEmpty(), is(true));
+        assertThat(discovery.getDatabases().size(), is(1));
+        // retried on the next run instead of after the refresh interval
+        discovery.refreshIfDue(pool, 300001L);
+        verify(pool, times(3)).acquire();
+    }
+
+    @Test
+    public void reloadedDiscoveryTakesOverTheDatabasesFound() throws Exception {
+        listing("tenant_1", "tenant_2");
+        discovery.refreshIfDue(pool, 0L);
+        Map<String, ?> conf = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config_discovery.yml"));
+        List<QueryPlan> running = new ArrayList<>();
+        for (DatabasePlan database : discovery.getDatabases()) {
+            running.addAll(database.getQueries());
+        }
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(conf, new QueryPlanIndex(running)).getServers()
+                .get(0);
+        DatabaseDiscovery reloaded = new DatabaseDiscovery(serverPlan.getServerName(), serverPlan.getDiscovery(),
+                serverPlan.getDatabases(), discovery);
+        assertThat(reloaded.getDatabases().size(), is(2));
+        assertThat(reloaded.getDatabases().get(1).getDbName(), equalTo("tenant_2"));
+        // the databases are compiled with the new plan, reusing the unchanged queries
+        assertThat(reloaded.getDatabases().get(1).getQueries().get(0), is(sameInstance(running.get(1))));
+        // and are not listed again before the refresh interval
+        assertThat(reloaded.refreshIfDue(pool, 1000L).isEmpty(), is(true));
+        verify(pool, times(1)).acquire();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.expression;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ExpressionTest {
+    private static final double[] NO_DELTAS = {Double.NaN, Double.NaN, Double.NaN};
+
+    private static Map<String, Integer> columns() {
+        Map<String, Integer> columns = new HashMap<>();
+        columns.put("blks_hit", 0);
+        columns.put("blks_read", 1);
+        columns.put("n_dead_tup", 2);
+        return columns;
+    }
+
+    @Test
+    public void operatorsFollowTheUsualPrecedence() {
+        Expression expression = Expression.compile("blks_hit / (blks_hit + BLKS_READ) * 100", columns());
+        assertThat(expression.evaluate(new double[]{90, 10, 0}, NO_DELTAS), is(90.0));
+        assertThat(Expression.compile("1 + 2 * 3 - -4 / 2", columns()).evaluate(null, null), is(9.0));
+        assertThat(Expression.compile("(1 + 2) * n_dead_tup", columns())
+                .evaluate(new double[]{0, 0, 5}, NO_DELTAS), is(15.0));
+    }
+
+    @Test
+    public void deltasAreReadFromTheChangesOfTheRow() {
+        Expression expression = Expression.compile("delta(blks_hit) / (delta(blks_hit) + delta(blks_read))",
+                columns());
+        assertThat(expression.getDeltaColumns(), is(new int[]{0, 1}));
+        assertThat(expression.evaluate(new double[]{900, 100, 0}, new double[]{30, 10, 0}), is(0.75));
+        // unknown on the first run
+        assertThat(Double.isNaN(expression.evaluate(new double[]{900, 100, 0}, NO_DELTAS)), is(true));
+    }
+
+    @Test
+    public void divisionByZeroHasNoValue() {
+        Expression expression = Expression.compile("blks_hit / blks_read", columns());
+        assertThat(Double.isNaN(expression.evaluate(new double[]{1, 0, 0}, NO_DELTAS)), is(true));
+        assertThat(Double.isNaN(expression.evaluate(new double[]{0, 0, 0}, NO_DELTAS)), is(true));
+        assertThat(Double.isNaN(Expression.compile("1 / (2 - 2)", columns()).evaluate(null, null)), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownColumnIsRejected() {
+        Expression.compile("blks_hit / blks_written", columns());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void incompleteExpressionIsRejected() {
+        Expression.compile("blks_hit * (blks_read + 1", columns());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void trailingTokensAreRejected() {
+        Expression.compile("blks_hit blks_read", columns());
+    }
+}
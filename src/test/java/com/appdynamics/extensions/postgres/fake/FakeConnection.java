@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.fake;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection and statements of a {@link FakePostgresDriver}, implemented as dynamic proxies that support the methods
+ * the extension calls and throw {@link SQLFeatureNotSupportedException} for the others.
+ */
+final class FakeConnection implements InvocationHandler {
+    private final FakePostgresDriver driver;
+    private final FleetProfile profile;
+    private volatile boolean closed;
+
+    private FakeConnection(FakePostgresDriver driver, FleetProfile profile) {
+        this.driver = driver;
+        this.profile = profile;
+    }
+
+    static Connection create(FakePostgresDriver driver, FleetProfile profile) {
+        return (Connection) Proxy.newProxyInstance(FakeConnection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new FakeConnection(driver, profile));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+        switch (method.getName()) {
+            case "createStatement":
+                return FakeStatement.create(this, null);
+            case "prepareStatement":
+                return FakeStatement.create(this, (String) args[0]);
+            case "isValid":
+                return !closed;
+            case "isClosed":
+                return closed;
+            case "close":
+                if (!closed) {
+                    closed = true;
+                    driver.closed();
+                }
+                return null;
+            case "setAutoCommit":
+            case "setReadOnly":
+            case "commit":
+            case "rollback":
+                return null;
+            case "getAutoCommit":
+                return true;
+            case "isWrapperFor":
+                return false;
+            default:
+                return invokeObjectMethod(proxy, method, args);
+        }
+    }
+
+    // equals, hashCode and toString of the proxy, the fakes throw for any other method they do not support
+    static Object invokeObjectMethod(Object proxy, Method method, Object[] args) throws SQLException {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return proxy.getClass().getInterfaces()[0].getSimpleName() + "@" +
+                        Integer.toHexString(System.identityHashCode(proxy));
+            default:
+                throw new SQLFeatureNotSupportedException(method.getName() + " is not supported by this fake");
+        }
+    }
+
+    /**
+     * A statement, prepared or not. Pipelined statements separated by semicolons are executed one after the other
+     * and their results are read with getResultSet and getMoreResults.
+     */
+    private static final class FakeStatement implements InvocationHandler {
+        private final FakeConnection connection;
+        private final String sql;
+        private volatile CountDownLatch cancel = new CountDownLatch(1);
+        private int queryTimeoutSeconds;
+        private List<ResultSet> results = new ArrayList<>();
+        private boolean closed;
+
+        private FakeStatement(FakeConnection connection, String sql) {
+            this.connection = connection;
+            this.sql = sql;
+        }
+
+        static PreparedStatement create(FakeConnection connection, String sql) {
+            return (PreparedStatement) Proxy.newProxyInstance(FakeConnection.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, new FakeStatement(connection, sql));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+            switch (method.getName()) {
+                case "executeQuery":
+                    return execute(args == null ? sql : (String) args[0]);
+                case "execute":
+                    results = new ArrayList<>();
+                    // settings of the session, such as the statement_timeout of a new connection
+                    if (((String) args[0]).startsWith("SET ")) {
+                        return false;
+                    }
+                    for (String stmt : ((String) args[0]).split(";")) {
+                        if (!stmt.trim().isEmpty()) {
+                            results.add(execute(stmt));
+                        }
+                    }
+                    return !results.isEmpty();
+                case "getResultSet":
+                    return results.isEmpty() ? null : results.get(0);
+                case "getMoreResults":
+                    if (!results.isEmpty()) {
+                        results.remove(0).close();
+                    }
+                    return !results.isEmpty();
+                case "setQueryTimeout":
+                    queryTimeoutSeconds = (Integer) args[0];
+                    return null;
+                case "setFetchSize":
+                    return null;
+                case "cancel":
+                    cancel.countDown();
+                    return null;
+                case "close":
+                    closed = true;
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "isWrapperFor":
+                    return false;
+                default:
+                    return invokeObjectMethod(proxy, method, args);
+            }
+        }
+
+        private ResultSet execute(String query) throws SQLException {
+            if (connection.closed) {
+                throw new SQLException("This connection has been closed.", "08003");
+            }
+            connection.driver.executed();
+            FleetProfile profile = connection.profile;
+            CountDownLatch cancelled = new CountDownLatch(1);
+            cancel = cancelled;
+            long timeoutMillis = queryTimeoutSeconds > 0 ? TimeUnit.SECONDS.toMillis(queryTimeoutSeconds)
+                    : Long.MAX_VALUE;
+            long latencyMillis = profile.queryHangs() ? Long.MAX_VALUE : profile.queryLatency();
+            if (latencyMillis > 0) {
+                try {
+                    if (cancelled.await(Math.min(latencyMillis, timeoutMillis), TimeUnit.MILLISECONDS)) {
+                        throw new SQLException("ERROR: canceling statement due to user request",
+                                FakePostgresDriver.QUERY_CANCELED);
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted", FakePostgresDriver.QUERY_CANCELED, ie);
+                }
+                if (latencyMillis >= timeoutMillis) {
+                    throw new SQLException("ERROR: canceling statement due to statement timeout",
+                            FakePostgresDriver.QUERY_CANCELED);
+                }
+            }
+            if (profile.queryFails()) {
+                throw new SQLException("ERROR: simulated failure", FakePostgresDriver.INTERNAL_ERROR);
+            }
+            if (query.contains("pg_database")) {
+                return SyntheticResultSet.create(profile.getDatabases(), 1, "db_");
+            }
+            return SyntheticResultSet.create(profile.getRows(), profile.getColumns());
+        }
+    }
+}
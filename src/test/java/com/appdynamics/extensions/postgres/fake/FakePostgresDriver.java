@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.fake;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static com.appdynamics.extensions.postgres.util.Constants.PROTOCOL;
+
+/**
+ * JDBC driver for {@code jdbc:postgresql:} URLs that simulates PostgreSQL servers in memory, so that the extension can
+ * be run end to end against fleets far larger than any test environment. Every server answers the listing of
+ * pg_database with db_1 to db_n and every other query with a {@link SyntheticResultSet}, after the latencies and
+ * with the failures of the {@link FleetProfile} of its host.
+ * <p>
+ * {@link #install} takes the place of the PostgreSQL driver in the {@link DriverManager} until {@link #uninstall}.
+ */
+public class FakePostgresDriver implements Driver {
+    // SQLSTATE sqlclient_unable_to_establish_sqlconnection
+    static final String UNABLE_TO_CONNECT = "08001";
+    // SQLSTATE query_canceled
+    static final String QUERY_CANCELED = "57014";
+    // SQLSTATE internal_error
+    static final String INTERNAL_ERROR = "XX000";
+
+    private static volatile FakePostgresDriver installed;
+
+    private final FleetProfile defaultProfile;
+    private final Map<String, FleetProfile> hostProfiles = new ConcurrentHashMap<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong executions = new AtomicLong();
+
+    private FakePostgresDriver(FleetProfile defaultProfile) {
+        this.defaultProfile = defaultProfile;
+    }
+
+    /**
+     * Registers a fake driver with the profile for every host, and deregisters the drivers that also accept
+     * {@code jdbc:postgresql:} URLs.
+     */
+    public static synchronized FakePostgresDriver install(FleetProfile defaultProfile) throws SQLException {
+        uninstall();
+        try {
+            // the extension loads the PostgreSQL driver before every connect, it must not register itself after this
+            Class.forName("org.postgresql.Driver");
+        } catch (ClassNotFoundException e) {
+            // not on the classpath, nothing to take the place of
+        }
+        Enumeration<Driver> drivers = DriverManager.getDrivers();
+        while (drivers.hasMoreElements()) {
+            Driver driver = drivers.nextElement();
+            if (driver.acceptsURL(PROTOCOL + "//localhost:5432/postgres")) {
+                DriverManager.deregisterDriver(driver);
+            }
+        }
+        installed = new FakePostgresDriver(defaultProfile);
+        DriverManager.registerDriver(installed);
+        return installed;
+    }
+
+    /**
+     * Deregisters the fake driver and registers the PostgreSQL driver again.
+     */
+    public static synchronized void uninstall() throws SQLException {
+        if (installed == null) {
+            return;
+        }
+        DriverManager.deregisterDriver(installed);
+        installed = null;
+        DriverManager.registerDriver(new org.postgresql.Driver());
+    }
+
+    /**
+     * Makes the servers on the host behave differently from the rest of the fleet.
+     */
+    public FakePostgresDriver withHost(String host, FleetProfile profile) {
+        hostProfiles.put(host, profile);
+        return this;
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public long getConnects() {
+        return connects.get();
+    }
+
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    void executed() {
+        executions.incrementAndGet();
+    }
+
+    void closed() {
+        openConnections.decrementAndGet();
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        // jdbc:postgresql://host:port/database
+        String hostPort = url.substring(PROTOCOL.length() + 2, url.indexOf('/', PROTOCOL.length() + 2));
+        String host = hostPort.substring(0, hostPort.lastIndexOf(':'));
+        FleetProfile profile = hostProfiles.getOrDefault(host, defaultProfile);
+        connects.incrementAndGet();
+        sleep(profile.connectLatency());
+        if (profile.connectFails()) {
+            throw new SQLException("Connection to " + hostPort + " refused", UNABLE_TO_CONNECT);
+        }
+        openConnections.incrementAndGet();
+        return FakeConnection.create(this, profile);
+    }
+
+    static void sleep(long millis) throws SQLException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted", UNABLE_TO_CONNECT, ie);
+        }
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(PROTOCOL);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("getParentLogger is not supported by this fake");
+    }
+}
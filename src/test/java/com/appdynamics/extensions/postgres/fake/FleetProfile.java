@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.fake;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How the simulated PostgreSQL servers of a {@link FakePostgresDriver} behave: how many databases and rows they
+ * return, how long connecting and querying take, and how often queries fail or hang. Rates are between 0 and 1 and
+ * are drawn for every connection or execution.
+ */
+public class FleetProfile {
+    private final int databases;
+    private final int rows;
+    private final int columns;
+    private final long connectLatencyMillis;
+    private final long queryLatencyMillis;
+    private final double connectFailureRate;
+    private final double failureRate;
+    private final double hangRate;
+
+    private FleetProfile(Builder builder) {
+        this.databases = builder.databases;
+        this.rows = builder.rows;
+        this.columns = builder.columns;
+        this.connectLatencyMillis = builder.connectLatencyMillis;
+        this.queryLatencyMillis = builder.queryLatencyMillis;
+        this.connectFailureRate = builder.connectFailureRate;
+        this.failureRate = builder.failureRate;
+        this.hangRate = builder.hangRate;
+    }
+
+    /**
+     * @return number of databases listed from pg_database, named db_1 to db_n
+     */
+    public int getDatabases() {
+        return databases;
+    }
+
+    /**
+     * @return number of rows returned by every query other than the listing of the databases
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return number of columns of every result, {@code relname} followed by {@code col_2} to {@code col_n}
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    long connectLatency() {
+        return jitter(connectLatencyMillis);
+    }
+
+    long queryLatency() {
+        return jitter(queryLatencyMillis);
+    }
+
+    boolean connectFails() {
+        return draw(connectFailureRate);
+    }
+
+    boolean queryFails() {
+        return draw(failureRate);
+    }
+
+    boolean queryHangs() {
+        return draw(hangRate);
+    }
+
+    // between half and one and a half times the mean
+    private static long jitter(long meanMillis) {
+        return meanMillis <= 0 ? 0 : meanMillis / 2 + ThreadLocalRandom.current().nextLong(meanMillis + 1);
+    }
+
+    private static boolean draw(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    public static class Builder {
+        private int databases = 10;
+        private int rows = 100;
+        private int columns = 10;
+        private long connectLatencyMillis;
+        private long queryLatencyMillis;
+        private double connectFailureRate;
+        private double failureRate;
+        private double hangRate;
+
+        public Builder databases(int databases) {
+            this.databases = databases;
+            return this;
+        }
+
+        public Builder rows(int rows) {
+            this.rows = rows;
+            return this;
+        }
+
+        public Builder columns(int columns) {
+            this.columns = columns;
+            return this;
+        }
+
+        public Builder connectLatencyMillis(long connectLatencyMillis) {
+            this.connectLatencyMillis = connectLatencyMillis;
+            return this;
+        }
+
+        public Builder queryLatencyMillis(long queryLatencyMillis) {
+            this.queryLatencyMillis = queryLatencyMillis;
+            return this;
+        }
+
+        public Builder connectFailureRate(double connectFailureRate) {
+            this.connectFailureRate = connectFailureRate;
+            return this;
+        }
+
+        public Builder failureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        /**
+         * @param hangRate how often a query blocks until it is cancelled or its query timeout expires
+         */
+        public Builder hangRate(double hangRate) {
+            this.hangRate = hangRate;
+            return this;
+        }
+
+        public FleetProfile build() {
+            return new FleetProfile(this);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.fake;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+
+/**
+ * In-memory result set shaped like a stat view: column 1 is a text column named {@code relname} and columns 2..n are
+ * bigint columns named {@code col_2}..{@code col_n}. Values are generated from the row number so that very large
+ * result sets take no memory. Like the PostgreSQL driver in text mode, {@code getString} creates a new String for
+ * every call. The result set is a dynamic proxy, like the connections of {@link FakeConnection}, that supports the
+ * methods the extension calls and throws {@link SQLFeatureNotSupportedException} for the others. The proxy boxes the
+ * values of {@code getLong}/{@code getDouble}, the benchmarks read the same rows from a {@code BenchmarkResultSet}.
+ */
+public final class SyntheticResultSet implements InvocationHandler {
+    public static final String PATH_COLUMN = "relname";
+
+    private final int rows;
+    private final int columns;
+    private final String[] labels;
+    private final String pathPrefix;
+    private int row;
+    private boolean closed;
+
+    private SyntheticResultSet(int rows, int columns, String pathPrefix) {
+        this.rows = rows;
+        this.pathPrefix = pathPrefix;
+        this.columns = columns;
+        this.labels = new String[columns + 1];
+        labels[1] = PATH_COLUMN;
+        for (int i = 2; i <= columns; i++) {
+            labels[i] = valueColumnName(i);
+        }
+    }
+
+    /**
+     * @param rows    number of rows
+     * @param columns total number of columns, including the {@code relname} column
+     */
+    public static ResultSet create(int rows, int columns) {
+        return create(rows, columns, "table_");
+    }
+
+    /**
+     * @param pathPrefix the {@code relname} of row n is the prefix followed by n
+     */
+    public static ResultSet create(int rows, int columns, String pathPrefix) {
+        return (ResultSet) Proxy.newProxyInstance(SyntheticResultSet.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, new SyntheticResultSet(rows, columns, pathPrefix));
+    }
+
+    public static String valueColumnName(int index) {
+        return "col_" + index;
+    }
+
+    public static long valueAt(int row, int column) {
+        return row * 31L + column;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+        switch (method.getName()) {
+            case "next":
+                return ++row <= rows;
+            case "beforeFirst":
+                row = 0;
+                return null;
+            case "findColumn":
+                return findColumn((String) args[0]);
+            case "getString":
+                int column = column(args[0]);
+                return column == 1 ? pathPrefix + row : Long.toString(valueAt(row, column));
+            case "getLong":
+                return valueAt(row, column(args[0]));
+            case "getInt":
+                return (int) valueAt(row, column(args[0]));
+            case "getDouble":
+                return (double) valueAt(row, column(args[0]));
+            case "getBigDecimal":
+                return BigDecimal.valueOf(valueAt(row, column(args[0])));
+            case "wasNull":
+                return false;
+            case "close":
+                closed = true;
+                return null;
+            case "isClosed":
+                return closed;
+            case "getMetaData":
+                return metaData();
+            default:
+                return FakeConnection.invokeObjectMethod(proxy, method, args);
+        }
+    }
+
+    // the index of a column given by index or by label
+    private int column(Object indexOrLabel) throws SQLException {
+        return indexOrLabel instanceof Integer ? (Integer) indexOrLabel : findColumn((String) indexOrLabel);
+    }
+
+    private int findColumn(String label) throws SQLException {
+        for (int i = 1; i <= columns; i++) {
+            if (labels[i].equalsIgnoreCase(label)) {
+                return i;
+            }
+        }
+        throw new SQLException("The column name " + label + " was not found in this ResultSet.");
+    }
+
+    private ResultSetMetaData metaData() {
+        return (ResultSetMetaData) Proxy.newProxyInstance(SyntheticResultSet.class.getClassLoader(),
+                new Class<?>[]{ResultSetMetaData.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getColumnCount":
+                            return columns;
+                        case "getColumnLabel":
+                        case "getColumnName":
+                            return labels[(Integer) args[0]];
+                        case "getColumnType":
+                            return (Integer) args[0] == 1 ? Types.VARCHAR : Types.BIGINT;
+                        default:
+                            return FakeConnection.invokeObjectMethod(proxy, method, args);
+                    }
+                });
+    }
+}
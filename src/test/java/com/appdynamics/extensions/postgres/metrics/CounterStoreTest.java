@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CounterStoreTest {
+
+    @Test
+    public void swapReturnsThePreviousSample() {
+        CounterStore store = new CounterStore();
+        CounterStore.Sample previous = new CounterStore.Sample();
+        assertThat(store.swap(42L, 100L, 0, 1000L, previous), is(false));
+        assertThat(store.swap(42L, 150L, 0, 61000L, previous), is(true));
+        assertThat(previous.getValue(), is(100L));
+        assertThat(previous.getTimeMillis(), is(1000L));
+        assertThat(store.size(), is(1));
+    }
+
+    @Test
+    public void statsResetStartsTheSeriesAgain() {
+        CounterStore store = new CounterStore();
+        CounterStore.Sample previous = new CounterStore.Sample();
+        store.swap(42L, 100L, 1, 1000L, previous);
+        assertThat(store.swap(42L, 5L, 2, 61000L, previous), is(false));
+        assertThat(store.swap(42L, 15L, 2, 121000L, previous), is(true));
+        assertThat(previous.getValue(), is(5L));
+    }
+
+    @Test
+    public void seriesSurviveGrowth() {
+        CounterStore store = new CounterStore();
+        CounterStore.Sample previous = new CounterStore.Sample();
+        for (long id = 0; id < 10000; id++) {
+            store.swap(id * 7919L, id, 0, 1000L, previous);
+        }
+        assertThat(store.size(), is(10000));
+        for (long id = 0; id < 10000; id++) {
+            assertThat(store.swap(id * 7919L, id + 1, 0, 2000L, previous), is(true));
+            assertThat(previous.getValue(), is(id));
+        }
+    }
+
+    @Test
+    public void seriesNotSampledRecentlyAreForgotten() {
+        CounterStore store = new CounterStore();
+        CounterStore.Sample previous = new CounterStore.Sample();
+        for (long id = 1; id <= 100; id++) {
+            store.swap(id, id, 0, id <= 60 ? 1000L : 5000L, previous);
+        }
+        assertThat(store.expire(2000L), is(60));
+        assertThat(store.size(), is(40));
+        assertThat(store.swap(1L, 1L, 0, 6000L, previous), is(false));
+        assertThat(store.swap(100L, 101L, 0, 6000L, previous), is(true));
+        assertThat(previous.getValue(), is(100L));
+    }
+}
@@ -21,8 +21,17 @@ import com.appdynamics.extensions.conf.MonitorContext;
 import com.appdynamics.extensions.conf.MonitorContextConfiguration;
 import com.appdynamics.extensions.metrics.Metric;
 import com.appdynamics.extensions.metrics.MetricCharSequenceReplacer;
+import com.appdynamics.extensions.postgres.ServerContext;
 import com.appdynamics.extensions.postgres.connection.ConnectionUtils;
-import com.appdynamics.extensions.postgres.connection.PostgresConnectionConfig;
+import com.appdynamics.extensions.postgres.connection.Route;
+import com.appdynamics.extensions.postgres.fake.SyntheticResultSet;
+import com.appdynamics.extensions.postgres.plan.CollectionPlanCompiler;
+import com.appdynamics.extensions.postgres.plan.DatabasePlan;
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import com.appdynamics.extensions.postgres.plan.QueryPlanIndex;
+import com.appdynamics.extensions.postgres.plan.ServerPlan;
+import com.appdynamics.extensions.postgres.schedule.CircuitBreaker;
+import com.appdynamics.extensions.postgres.schedule.QueryScheduler;
 import com.appdynamics.extensions.util.MetricPathUtils;
 import com.appdynamics.extensions.yml.YmlReader;
 import com.singularity.ee.agent.systemagent.api.MetricWriter;
@@ -37,27 +46,35 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import java.io.File;
 import java.math.BigDecimal;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Phaser;
+import java.util.Properties;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import static com.appdynamics.extensions.postgres.util.Constants.DATABASES;
-import static com.appdynamics.extensions.postgres.util.Constants.SERVERS;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyList;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 
 /**
  * @author pradeep.nair
@@ -66,12 +83,15 @@ import static org.powermock.api.mockito.PowerMockito.mockStatic;
 @RunWith(PowerMockRunner.class)
 @PrepareForTest(ConnectionUtils.class)
 public class DatabaseTaskTest {
-    private PostgresConnectionConfig connectionConfig;
+    private ServerContext serverContext;
+    private Connection conn;
+    private PreparedStatement stmt;
+    private Statement sessionStmt;
+    private ResultSet rs;
     private MetricWriteHelper metricWriteHelper;
     private String metricPrefix;
     private ArgumentCaptor<List> pathCaptor;
     private Map<String, ?> conf;
-    private final Phaser phaser = new Phaser();
 
     @Before()
     public void setup() throws SQLException, ClassNotFoundException {
@@ -89,48 +109,440 @@ public class DatabaseTaskTest {
         pathCaptor = ArgumentCaptor.forClass(List.class);
         metricPrefix = "Custom Metrics|Postgres|";
         metricWriteHelper = mock(MetricWriteHelper.class);
-        connectionConfig = mock(PostgresConnectionConfig.class);
-        when(connectionConfig.getUrl()).thenReturn("");
-        when(connectionConfig.getProps()).thenReturn(null);
         mockStatic(ConnectionUtils.class);
-        Connection conn = mock(Connection.class);
+        conn = mock(Connection.class);
         when(ConnectionUtils.getConnection(anyString(), anyString(), any())).thenReturn(conn);
         when(conn.isValid(anyInt())).thenReturn(true);
-        Statement stmt = mock(Statement.class);
-        when(conn.createStatement()).thenReturn(stmt);
-        ResultSet rs = mock(ResultSet.class);
+        stmt = mock(PreparedStatement.class);
+        // the first statement sets the statement_timeout of the new connection
+        sessionStmt = mock(Statement.class);
+        when(conn.createStatement()).thenReturn(sessionStmt, stmt);
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+        rs = mock(ResultSet.class);
         when(stmt.executeQuery(anyString())).thenReturn(rs);
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(stmt.getResultSet()).thenReturn(rs);
+        ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        when(rs.getMetaData()).thenReturn(metaData);
+        when(metaData.getColumnCount()).thenReturn(3);
+        when(metaData.getColumnLabel(1)).thenReturn("datname");
+        when(metaData.getColumnType(1)).thenReturn(Types.VARCHAR);
+        when(metaData.getColumnLabel(2)).thenReturn("numbackends");
+        when(metaData.getColumnType(2)).thenReturn(Types.INTEGER);
+        when(metaData.getColumnLabel(3)).thenReturn("dbsize");
+        when(metaData.getColumnType(3)).thenReturn(Types.BIGINT);
         when(rs.next()).thenReturn(Boolean.TRUE, Boolean.FALSE);
-        when(rs.getString("datname")).thenReturn("Test DB");
-        when(rs.getString("numbackends")).thenReturn("20");
-        when(rs.getString("dbSize")).thenReturn("2048");
-        phaser.register();
+        when(rs.getString(1)).thenReturn("Test DB");
+        when(rs.getLong(2)).thenReturn(20L);
+        when(rs.getLong(3)).thenReturn(2048L);
     }
 
     @Test
     public void databaseTaskShouldExtractMetricsWhenConfigIsValid() {
-        Map<String, ?> dbtask =
-                ((List<Map<String, ?>>) ((List<Map<String, ?>>) conf.get(SERVERS)).get(0).get(DATABASES)).get(0);
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(conf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
         AtomicBoolean heartBeat = new AtomicBoolean();
-        DatabaseTask task = new DatabaseTask("Local", "Test DB", dbtask, phaser, connectionConfig, metricPrefix,
-                metricWriteHelper, heartBeat);
+        DatabaseTask task = new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                metricPrefix, metricWriteHelper, heartBeat);
         task.run();
         verify(metricWriteHelper).transformAndPrintMetrics(pathCaptor.capture());
         List<Metric> metrics = (List<Metric>) pathCaptor.getValue();
         metrics.sort(Comparator.comparing(Metric::getMetricName));
         assertThat(heartBeat.get(), is(true));
         assertThat(metrics.size(), is(2));
-        assertThat(metrics.get(0).getMetricPath(), equalTo("Custom Metrics|Postgres|Local|Test DB|dbSize"));
+        assertThat(metrics.get(0).getMetricPath(), equalTo("Custom Metrics|Postgres|Local cluster|Test DB|dbSize"));
         assertThat(metrics.get(0).getMetricValue(), is("2048"));
         assertThat(metrics.get(0).getMetricProperties().getAlias(), equalTo("Database Size (KB)"));
         assertThat(metrics.get(0).getMetricProperties().getMultiplier(), is(new BigDecimal(0.0009765625f)));
-        assertThat(metrics.get(1).getMetricPath(), equalTo("Custom Metrics|Postgres|Local|Test DB|numbackends"));
+        assertThat(metrics.get(1).getMetricPath(), equalTo("Custom Metrics|Postgres|Local cluster|Test DB|numbackends"));
         assertThat(metrics.get(1).getMetricValue(), is("20"));
         assertThat(metrics.get(1).getMetricProperties().getAlias(), equalTo("Number of connections"));
     }
 
+    @Test
+    public void queryIsPreparedOncePerConnection() throws SQLException {
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(conf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        for (int run = 0; run < 2; run++) {
+            when(rs.next()).thenReturn(Boolean.TRUE, Boolean.FALSE);
+            new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                    metricPrefix, metricWriteHelper, new AtomicBoolean()).run();
+        }
+        verify(conn, times(1)).prepareStatement(anyString());
+        verify(stmt, times(2)).executeQuery();
+        verify(stmt, never()).close();
+        serverContext.close();
+        verify(stmt).close();
+    }
+
+    @Test
+    public void failedPreparedQueryIsPreparedAgain() throws SQLException {
+        when(stmt.executeQuery()).thenThrow(new SQLException("cached plan must not change result type", "0A000"))
+                .thenReturn(rs);
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(conf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        for (int run = 0; run < 2; run++) {
+            new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                    metricPrefix, metricWriteHelper, new AtomicBoolean()).run();
+        }
+        verify(conn, times(2)).prepareStatement(anyString());
+        verify(conn, never()).close();
+        verify(metricWriteHelper, times(2)).transformAndPrintMetrics(pathCaptor.capture());
+        // the failure is below the threshold, the breaker stays closed
+        List<Metric> firstRun = (List<Metric>) pathCaptor.getAllValues().get(0);
+        assertThat(firstRun.size(), is(1));
+        assertThat(firstRun.get(0).getMetricPath(),
+                equalTo("Custom Metrics|Postgres|Local cluster|test|Database Stats|CIRCUIT_BREAKER"));
+        assertThat(firstRun.get(0).getMetricValue(), is("0"));
+        assertThat(withoutBreakerStates((List) pathCaptor.getAllValues()).size(), is(2));
+    }
+
+    private static List<Metric> withoutBreakerStates(List<List<Metric>> published) {
+        List<Metric> metrics = new ArrayList<>();
+        for (List<Metric> chunk : published) {
+            for (Metric metric : chunk) {
+                if (!metric.getMetricName().equals("CIRCUIT_BREAKER")) {
+                    metrics.add(metric);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    @Test
+    public void failingQueryIsBackedOffByItsCircuitBreaker() throws SQLException {
+        when(stmt.executeQuery()).thenThrow(new SQLException("canceling statement due to statement timeout",
+                "57014"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(conf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        for (int run = 0; run < 5; run++) {
+            new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                    metricPrefix, metricWriteHelper, new AtomicBoolean()).run();
+        }
+        verify(stmt, times(3)).setQueryTimeout(30);
+        verify(stmt, times(3)).executeQuery();
+        verify(metricWriteHelper, times(5)).transformAndPrintMetrics(pathCaptor.capture());
+        List<Metric> lastRun = (List<Metric>) pathCaptor.getValue();
+        assertThat(lastRun.get(0).getMetricValue(), is(String.valueOf(CircuitBreaker.State.OPEN.getValue())));
+        List<Metric> selfMetrics = new ArrayList<>();
+        serverContext.getStats().publishAndReset(metricPrefix, "Local cluster", 0, selfMetrics);
+        for (Metric metric : selfMetrics) {
+            if (metric.getMetricName().equals("Query Timeouts")) {
+                assertThat(metric.getMetricValue(), is("3"));
+            }
+        }
+    }
+
+    @Test
+    public void countersAreReportedAsDeltasAndRates() throws SQLException, InterruptedException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        when(metaData.getColumnCount()).thenReturn(4);
+        when(metaData.getColumnLabel(4)).thenReturn("stats_reset");
+        when(metaData.getColumnType(4)).thenReturn(Types.TIMESTAMP);
+        when(rs.getString(4)).thenReturn("2019-01-01 00:00:00", "2019-01-01 00:00:00", "2019-02-01 00:00:00");
+        when(rs.getLong(2)).thenReturn(20L, 25L, 1L);
+        when(rs.getLong(3)).thenReturn(2048L, 4096L, 10L);
+        Map<String, ?> countersConf = YmlReader.readFromFileAsMap(
+                new File("src/test/resources/conf/config_counters.yml"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(countersConf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        for (int run = 0; run < 3; run++) {
+            when(rs.next()).thenReturn(Boolean.TRUE, Boolean.FALSE);
+            new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                    metricPrefix, metricWriteHelper, new AtomicBoolean()).run();
+            Thread.sleep(20);
+        }
+        // the first run sets the baseline and the third run follows a stats reset
+        verify(metricWriteHelper, times(1)).transformAndPrintMetrics(pathCaptor.capture());
+        List<Metric> metrics = (List<Metric>) pathCaptor.getValue();
+        metrics.sort(Comparator.comparing(Metric::getMetricName));
+        assertThat(metrics.size(), is(2));
+        assertThat(metrics.get(0).getMetricPath(), equalTo("Custom Metrics|Postgres|Local cluster|Test DB|dbSize"));
+        assertThat(Double.parseDouble(metrics.get(0).getMetricValue()) > 0, is(true));
+        assertThat(metrics.get(1).getMetricValue(), is("5"));
+        assertThat(metrics.get(1).getMetricProperties().getAlias(), equalTo("Number of connections"));
+        assertThat(metrics.get(1).getMetricProperties().getDelta(), is(false));
+    }
+
+    @Test
+    public void derivedColumnsAreComputedFromTheRow() throws SQLException {
+        when(rs.getLong(2)).thenReturn(20L, 25L);
+        when(rs.getLong(3)).thenReturn(2048L, 4096L);
+        Map<String, ?> derivedConf = YmlReader.readFromFileAsMap(
+                new File("src/test/resources/conf/config_derived.yml"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(derivedConf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        for (int run = 0; run < 2; run++) {
+            when(rs.next()).thenReturn(Boolean.TRUE, Boolean.FALSE);
+            new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                    metricPrefix, metricWriteHelper, new AtomicBoolean()).run();
+        }
+        verify(metricWriteHelper, times(2)).transformAndPrintMetrics(pathCaptor.capture());
+        // the change of dbSize is not known on the first run
+        assertThat(pathCaptor.getAllValues().get(0).size(), is(3));
+        List<Metric> metrics = (List<Metric>) pathCaptor.getValue();
+        metrics.sort(Comparator.comparing(Metric::getMetricName));
+        assertThat(metrics.size(), is(4));
+        assertThat(metrics.get(0).getMetricPath(),
+                equalTo("Custom Metrics|Postgres|Local cluster|Test DB|Backend Share"));
+        assertThat(metrics.get(0).getMetricValue(), is(Double.toString(25.0 / (25 + 4096) * 100)));
+        assertThat(metrics.get(1).getMetricName(), equalTo("Size Growth"));
+        assertThat(metrics.get(1).getMetricValue(), is("4096.0"));
+        assertThat(metrics.get(2).getMetricValue(), is("4096"));
+        assertThat(metrics.get(3).getMetricValue(), is("25"));
+    }
+
+    @Test
+    public void queryWithIntervalIsRepublishedUntilDue() throws SQLException {
+        Map<String, ?> intervalsConf = YmlReader.readFromFileAsMap(
+                new File("src/test/resources/conf/config_intervals.yml"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(intervalsConf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        long start = System.currentTimeMillis();
+        int[] expectedExecutions = {2, 3, 5};
+        long[] runTimes = {start, start + 60000, start + 300000};
+        for (int run = 0; run < runTimes.length; run++) {
+            when(rs.next()).thenReturn(Boolean.TRUE, Boolean.FALSE, Boolean.TRUE, Boolean.FALSE);
+            new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(),
+                    serverContext.getScheduler().next(runTimes[run]), metricPrefix, metricWriteHelper,
+                    new AtomicBoolean()).run();
+            verify(stmt, times(expectedExecutions[run])).executeQuery();
+        }
+        verify(metricWriteHelper, times(3)).transformAndPrintMetrics(pathCaptor.capture());
+        assertThat(pathCaptor.getAllValues().get(0).size(), is(4));
+        // published again with the age of the results
+        List<Metric> republished = (List<Metric>) pathCaptor.getAllValues().get(1);
+        assertThat(republished.size(), is(5));
+        assertThat(republished.get(4).getMetricPath(),
+                equalTo("Custom Metrics|Postgres|Local cluster|test|Database Stats Again|RESULT_AGE"));
+        assertThat(pathCaptor.getAllValues().get(2).size(), is(4));
+    }
+
+    @Test
+    public void staleResultsArePublishedWhileTheQueryIsRefreshedInTheBackground() throws SQLException,
+            InterruptedException {
+        Map<String, ?> staleConf = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config_stale.yml"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(staleConf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        long start = System.currentTimeMillis();
+        QueryPlan stale = serverPlan.getServerLevelDatabase().getQueries().get(1);
+        long[] runTimes = {start, start + 300000, start + 360000};
+        int[] expectedExecutions = {2, 4, 5};
+        for (int run = 0; run < runTimes.length; run++) {
+            when(rs.next()).thenReturn(Boolean.TRUE, Boolean.FALSE, Boolean.TRUE, Boolean.FALSE);
+            new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(),
+                    serverContext.getScheduler().next(runTimes[run]), metricPrefix, metricWriteHelper,
+                    new AtomicBoolean()).run();
+            if (run == 1) {
+                // the refresh started by the second run completes before the third run
+                long deadline = System.currentTimeMillis() + 5000;
+                while (serverContext.isRefreshing(stale) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+            verify(stmt, times(expectedExecutions[run])).executeQuery();
+        }
+        verify(metricWriteHelper, times(3)).transformAndPrintMetrics(pathCaptor.capture());
+        // the due query is not waited for, its last results are published with their age
+        assertThat(pathCaptor.getAllValues().get(1).size(), is(5));
+        assertThat(pathCaptor.getAllValues().get(2).size(), is(5));
+        assertThat(serverContext.getResultCache().size(), is(1L));
+    }
+
+    @Test
+    public void shardedQueryReadsOneShardPerRunAndPublishesTheOthersAgain() throws SQLException {
+        when(rs.getString(1)).thenReturn("DB 1", "DB 2", "DB 3");
+        Map<String, ?> shardedConf = YmlReader.readFromFileAsMap(
+                new File("src/test/resources/conf/config_sharded.yml"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(shardedConf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        for (int run = 0; run < 3; run++) {
+            when(rs.next()).thenReturn(Boolean.TRUE, Boolean.FALSE);
+            new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                    metricPrefix, metricWriteHelper, new AtomicBoolean()).run();
+        }
+        verify(conn).prepareStatement("SELECT * FROM (SELECT datname, numbackends, " +
+                "pg_catalog.pg_database_size(datname) AS dbSize FROM pg_stat_database) AS sharded " +
+                "WHERE (hashtext((datname)::text) & 2147483647) % 2 = ?");
+        verify(stmt, times(2)).setInt(1, 0);
+        verify(stmt, times(1)).setInt(1, 1);
+        verify(metricWriteHelper, times(3)).transformAndPrintMetrics(pathCaptor.capture());
+        assertThat(pathCaptor.getAllValues().get(0).size(), is(2));
+        // the first shard is read again, the row of the second shard is published from the second run
+        List<Metric> metrics = (List<Metric>) pathCaptor.getValue();
+        assertThat(metrics.size(), is(4));
+        assertThat(metrics.get(0).getMetricPath(), equalTo("Custom Metrics|Postgres|Local cluster|DB 3|numbackends"));
+        assertThat(metrics.get(2).getMetricPath(), equalTo("Custom Metrics|Postgres|Local cluster|DB 2|numbackends"));
+    }
+
+    @Test
+    public void failedQueryWithIntervalIsNotRepublished() throws SQLException {
+        Map<String, ?> intervalsConf = YmlReader.readFromFileAsMap(
+                new File("src/test/resources/conf/config_intervals.yml"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(intervalsConf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        when(stmt.executeQuery()).thenReturn(rs).thenThrow(new SQLException("canceling statement", "57014"));
+        long start = System.currentTimeMillis();
+        new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(),
+                serverContext.getScheduler().next(start), metricPrefix, metricWriteHelper,
+                new AtomicBoolean()).run();
+        new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(),
+                serverContext.getScheduler().next(start + 60000), metricPrefix, metricWriteHelper,
+                new AtomicBoolean()).run();
+        // only the first run of the query without interval produced metrics
+        verify(metricWriteHelper, times(2)).transformAndPrintMetrics(pathCaptor.capture());
+        assertThat(withoutBreakerStates((List) pathCaptor.getAllValues()).size(), is(2));
+    }
+
+    @Test
+    public void onlyTopRowsAreReportedIndividually() throws SQLException {
+        when(stmt.executeQuery()).thenReturn(SyntheticResultSet.create(10, 3));
+        Map<String, ?> topNConf = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config_topn.yml"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(topNConf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        new DatabaseTask(serverContext, serverPlan.getDatabases().get(0), nextSchedule(), metricPrefix,
+                metricWriteHelper, new AtomicBoolean()).run();
+        verify(metricWriteHelper).transformAndPrintMetrics(pathCaptor.capture());
+        List<Metric> metrics = (List<Metric>) pathCaptor.getValue();
+        assertThat(metrics.size(), is(8));
+        String tablePath = "Custom Metrics|Postgres|Local cluster|test|Table Stats|";
+        assertThat(metrics.get(0).getMetricPath(), equalTo(tablePath + "table_10|col_2"));
+        assertThat(metrics.get(2).getMetricPath(), equalTo(tablePath + "table_9|col_2"));
+        assertThat(metrics.get(4).getMetricPath(), equalTo(tablePath + "table_8|col_2"));
+        // rows 1 to 7 are folded into one row
+        assertThat(metrics.get(6).getMetricPath(), equalTo(tablePath + "Other|col_2"));
+        assertThat(metrics.get(6).getMetricValue(), is(String.valueOf(31 * 28 + 7 * 2)));
+        assertThat(metrics.get(7).getMetricValue(), is(String.valueOf(31 * 28 + 7 * 3)));
+    }
+
+    @Test
+    public void cancelledTaskStopsTheRunningQueryAndSkipsTheRest() throws SQLException {
+        Map<String, ?> intervalsConf = YmlReader.readFromFileAsMap(
+                new File("src/test/resources/conf/config_intervals.yml"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(intervalsConf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        DatabaseTask task = new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                metricPrefix, metricWriteHelper, new AtomicBoolean());
+        when(stmt.executeQuery()).thenAnswer(invocation -> {
+            task.cancel();
+            throw new SQLException("canceling statement due to user request", "57014");
+        });
+        task.run();
+        verify(stmt).cancel();
+        verify(stmt, times(1)).executeQuery();
+        verify(metricWriteHelper, never()).transformAndPrintMetrics(anyList());
+        assertThat(task.isCancelled(), is(true));
+    }
+
+    @Test
+    public void streamingQueryUsesCursorAndEmitsMetricsInChunks() throws SQLException {
+        Map<String, ?> streamingConf = YmlReader.readFromFileAsMap(
+                new File("src/test/resources/conf/config_streaming.yml"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(streamingConf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        DatabaseTask task = new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                metricPrefix, metricWriteHelper, new AtomicBoolean());
+        task.run();
+        verify(conn).setAutoCommit(false);
+        verify(stmt).setFetchSize(500);
+        verify(conn).rollback();
+        verify(conn).setAutoCommit(true);
+        // metricChunkSize is 1 so each metric is written as soon as it is created
+        verify(metricWriteHelper, times(2)).transformAndPrintMetrics(pathCaptor.capture());
+        for (List metrics : pathCaptor.getAllValues()) {
+            assertThat(metrics.size(), is(1));
+        }
+    }
+
+    @Test
+    public void reloadClosesTheStatementsOfChangedQueries() throws SQLException {
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(conf).getServers().get(0);
+        serverContext = new ServerContext(serverPlan);
+        when(rs.next()).thenReturn(Boolean.TRUE, Boolean.FALSE);
+        new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                metricPrefix, metricWriteHelper, new AtomicBoolean()).run();
+        verify(conn, times(1)).prepareStatement(anyString());
+
+        Map<String, ?> reloaded = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config.yml"));
+        Map<String, Object> query = ((List<Map<String, List<Map<String, List<Map<String, Object>>>>>>)
+                reloaded.get("servers")).get(0).get("databases").get(0).get("queries").get(0);
+        query.put("queryStmt", "SELECT datname, numbackends FROM pg_stat_database");
+        ServerPlan newPlan = CollectionPlanCompiler.compile(reloaded,
+                new QueryPlanIndex(serverContext.getAllQueries())).getServers().get(0);
+        assertThat(serverContext.canUpdateTo(newPlan), is(true));
+        serverContext.update(newPlan, serverContext.getResultCache());
+        // the pool is kept, only the statement of the old query is closed
+        assertThat(serverContext.getPool(newPlan.getServerLevelDatabase()).getIdleCount(), is(1));
+        verify(stmt).close();
+        verify(conn, never()).close();
+        serverContext.close();
+    }
+
+    @Test
+    public void pipelinedQueriesAreSentInOneRoundTrip() throws SQLException {
+        ServerPlan serverPlan = pipelinePlan();
+        assertThat(serverPlan.getServerLevelDatabase().getPipelineStmt(),
+                equalTo("SELECT datname, numbackends, pg_catalog.pg_database_size(datname) AS dbSize FROM " +
+                        "pg_stat_database;\nSELECT datname, numbackends, pg_catalog.pg_database_size(datname) AS " +
+                        "dbSize FROM pg_catalog.pg_stat_database"));
+        serverContext = new ServerContext(serverPlan);
+        DatabaseTask task = new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                metricPrefix, metricWriteHelper, new AtomicBoolean());
+        task.run();
+        verify(conn, times(2)).createStatement();
+        verify(sessionStmt).execute(startsWith("SET statement_timeout = "));
+        verify(stmt, times(1)).execute(anyString());
+        verify(stmt, times(2)).getMoreResults();
+        verify(stmt, never()).executeQuery();
+        verify(metricWriteHelper).transformAndPrintMetrics(pathCaptor.capture());
+        assertThat(pathCaptor.getValue().size(), is(4));
+    }
+
+    @Test
+    public void queryRoutedToTheStandbysUsesItsOwnConnections() throws Exception {
+        Map<String, ?> multiHost = YmlReader.readFromFileAsMap(new File(
+                "src/test/resources/conf/config_multihost.yml"));
+        ServerPlan serverPlan = CollectionPlanCompiler.compile(multiHost).getServers().get(0);
+        DatabasePlan database = serverPlan.getDatabases().get(0);
+        serverContext = new ServerContext(serverPlan);
+        new DatabaseTask(serverContext, database, nextSchedule(), metricPrefix, metricWriteHelper,
+                new AtomicBoolean()).run();
+        ArgumentCaptor<Properties> props = ArgumentCaptor.forClass(Properties.class);
+        verifyStatic(times(2));
+        ConnectionUtils.getConnection(anyString(), anyString(), props.capture());
+        assertThat(props.getAllValues().get(0).getProperty("targetServerType"), equalTo("master"));
+        assertThat(props.getAllValues().get(1).getProperty("targetServerType"), equalTo("preferSecondary"));
+        assertThat(serverContext.getPool(database, Route.PREFER_STANDBY).getIdleCount(), is(1));
+        assertThat(serverContext.getPool(database).getIdleCount(), is(1));
+    }
+
+    @Test
+    public void rejectedPipelineFallsBackToOneQueryAtATime() throws SQLException {
+        doThrow(new SQLException("syntax error", "42601")).when(stmt).execute(anyString());
+        ServerPlan serverPlan = pipelinePlan();
+        serverContext = new ServerContext(serverPlan);
+        DatabaseTask task = new DatabaseTask(serverContext, serverPlan.getServerLevelDatabase(), nextSchedule(),
+                metricPrefix, metricWriteHelper, new AtomicBoolean());
+        task.run();
+        verify(stmt, times(2)).executeQuery();
+        verify(metricWriteHelper).transformAndPrintMetrics(pathCaptor.capture());
+        assertThat(pathCaptor.getValue().size(), is(4));
+    }
+
+    private QueryScheduler.Schedule nextSchedule() {
+        return serverContext.getScheduler().next(System.currentTimeMillis());
+    }
+
+    private ServerPlan pipelinePlan() throws SQLException {
+        // both queries read the same mocked result set, one row each
+        when(rs.next()).thenReturn(Boolean.TRUE, Boolean.FALSE, Boolean.TRUE, Boolean.FALSE);
+        Map<String, ?> pipelineConf = YmlReader.readFromFileAsMap(
+                new File("src/test/resources/conf/config_pipeline.yml"));
+        return CollectionPlanCompiler.compile(pipelineConf).getServers().get(0);
+    }
+
     @After
     public void tearDown() {
-        phaser.arriveAndAwaitAdvance();
+        serverContext.close();
     }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.postgres.column.Column;
+import com.appdynamics.extensions.postgres.column.ColumnType;
+import com.appdynamics.extensions.postgres.fake.SyntheticResultSet;
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MetricPathCacheTest {
+
+    private static final List<Column> COLUMNS = Arrays.asList(
+            new Column(SyntheticResultSet.PATH_COLUMN, ColumnType.METRIC_PATH, null),
+            new Column(SyntheticResultSet.valueColumnName(2), ColumnType.METRIC_VALUE, null),
+            new Column(SyntheticResultSet.valueColumnName(3), ColumnType.METRIC_VALUE, null));
+
+    private QueryPlan mockQuery(String name, boolean serverLvlQuery) {
+        QueryPlan query = mock(QueryPlan.class);
+        when(query.getName()).thenReturn(name);
+        when(query.isServerLvlQuery()).thenReturn(serverLvlQuery);
+        when(query.getColumns()).thenReturn(COLUMNS);
+        return query;
+    }
+
+    private List<RowPaths> readAll(MetricPathCache cache, QueryPlan query, ResultSet rs) throws SQLException {
+        RowDecoder decoder = RowDecoder.forResultSet(rs, COLUMNS);
+        MetricPathCache.Lookup lookup = cache.lookup("server", "db", query, decoder);
+        List<RowPaths> rows = new ArrayList<>();
+        while (rs.next()) {
+            decoder.decode(rs);
+            rows.add(lookup.paths());
+        }
+        return rows;
+    }
+
+    @Test
+    public void tokensAreBuiltOncePerRowAndReusedAcrossRuns() throws SQLException {
+        MetricPathCache cache = new MetricPathCache(100);
+        QueryPlan query = mockQuery("Table Stats", false);
+        List<RowPaths> first = readAll(cache, query, SyntheticResultSet.create(3, 3));
+        List<RowPaths> second = readAll(cache, query, SyntheticResultSet.create(3, 3));
+        assertThat(first.get(1).getTokens(0), equalTo(new String[]{"server", "db", "Table Stats", "table_2", "col_2"}));
+        assertThat(first.get(1).getTokens(1), equalTo(new String[]{"server", "db", "Table Stats", "table_2", "col_3"}));
+        for (int row = 0; row < 3; row++) {
+            assertThat(second.get(row), is(sameInstance(first.get(row))));
+        }
+        assertThat(cache.getMissCount(), is(3L));
+        assertThat(cache.getHitCount(), is(3L));
+        assertThat(cache.size(), is(3L));
+    }
+
+    @Test
+    public void queriesDoNotShareEntries() throws SQLException {
+        MetricPathCache cache = new MetricPathCache(100);
+        List<RowPaths> tableStats = readAll(cache, mockQuery("Table Stats", false), SyntheticResultSet.create(1, 3));
+        List<RowPaths> serverStats = readAll(cache, mockQuery("", true), SyntheticResultSet.create(1, 3));
+        assertThat(serverStats.get(0).getTokens(0), equalTo(new String[]{"server", "table_1", "col_2"}));
+        assertThat(serverStats.get(0), is(not(sameInstance(tableStats.get(0)))));
+        assertThat(cache.getMissCount(), is(2L));
+    }
+
+    @Test
+    public void cacheIsBounded() throws SQLException {
+        MetricPathCache cache = new MetricPathCache(10);
+        readAll(cache, mockQuery("Table Stats", false), SyntheticResultSet.create(50, 3));
+        assertThat(cache.size() <= 10, is(true));
+        assertThat(cache.getEvictionCount() >= 40, is(true));
+    }
+}
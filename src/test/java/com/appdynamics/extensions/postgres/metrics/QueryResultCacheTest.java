@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class QueryResultCacheTest {
+
+    private static List<CachedMetric> metrics(int count) {
+        List<CachedMetric> metrics = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            metrics.add(new CachedMetric("m" + i, String.valueOf(i), null, new String[]{"server", "m" + i}));
+        }
+        return metrics;
+    }
+
+    @Test
+    public void leastRecentlyUsedResultsAreEvictedOnceTheMetricsDoNotFit() {
+        QueryResultCache cache = new QueryResultCache(10);
+        QueryPlan first = mock(QueryPlan.class);
+        QueryPlan second = mock(QueryPlan.class);
+        QueryPlan third = mock(QueryPlan.class);
+        cache.put(first, metrics(4), 0);
+        cache.put(second, metrics(4), 0);
+        assertThat(cache.get(first), is(notNullValue()));
+        cache.put(third, metrics(4), 0);
+        assertThat(cache.get(second), is(nullValue()));
+        assertThat(cache.get(first).getMetrics().size(), is(4));
+        assertThat(cache.getEvictionCount(), is(1L));
+    }
+
+    @Test
+    public void staleResultIsOnlyInvalidatedIfNotReplaced() {
+        QueryResultCache cache = new QueryResultCache(10);
+        QueryPlan query = mock(QueryPlan.class);
+        cache.put(query, metrics(1), 1000);
+        QueryResultCache.Entry stale = cache.get(query);
+        assertThat(stale.getAgeMillis(61000), is(60000L));
+        cache.put(query, metrics(2), 61000);
+        cache.invalidate(query, stale);
+        assertThat(cache.get(query).getMetrics().size(), is(2));
+        cache.invalidate(query, cache.get(query));
+        assertThat(cache.get(query), is(nullValue()));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import com.appdynamics.extensions.postgres.column.Column;
+import com.appdynamics.extensions.postgres.column.ColumnType;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class RowDecoderTest {
+
+    private static final List<Column> COLUMNS = Arrays.asList(
+            new Column("relname", ColumnType.METRIC_PATH, null),
+            new Column("seq_scan", ColumnType.METRIC_VALUE, null),
+            new Column("ratio", ColumnType.METRIC_VALUE, null),
+            new Column("total", ColumnType.METRIC_VALUE, null));
+
+    private ResultSet mockResultSet() throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        when(rs.getMetaData()).thenReturn(metaData);
+        when(metaData.getColumnCount()).thenReturn(4);
+        when(metaData.getColumnLabel(1)).thenReturn("total");
+        when(metaData.getColumnType(1)).thenReturn(Types.NUMERIC);
+        when(metaData.getColumnLabel(2)).thenReturn("RelName");
+        when(metaData.getColumnType(2)).thenReturn(Types.VARCHAR);
+        when(metaData.getColumnLabel(3)).thenReturn("seq_scan");
+        when(metaData.getColumnType(3)).thenReturn(Types.BIGINT);
+        when(metaData.getColumnLabel(4)).thenReturn("ratio");
+        when(metaData.getColumnType(4)).thenReturn(Types.DOUBLE);
+        return rs;
+    }
+
+    @Test
+    public void valuesAreReadByIndexWithTypedAccessors() throws SQLException {
+        ResultSet rs = mockResultSet();
+        when(rs.getString(2)).thenReturn("orders");
+        when(rs.getLong(3)).thenReturn(42L);
+        when(rs.getDouble(4)).thenReturn(0.5d);
+        when(rs.getBigDecimal(1)).thenReturn(new BigDecimal("12345678901234567890"));
+        RowDecoder decoder = RowDecoder.forResultSet(rs, COLUMNS);
+        decoder.decode(rs);
+        assertThat(decoder.getPathCount(), is(1));
+        assertThat(decoder.getPathValue(0), equalTo("orders"));
+        assertThat(decoder.getValueCount(), is(3));
+        assertThat(decoder.getKind(0), is(RowDecoder.Kind.LONG));
+        assertThat(decoder.formatValue(0), equalTo("42"));
+        assertThat(decoder.getDoubleValue(0), is(42d));
+        assertThat(decoder.getKind(1), is(RowDecoder.Kind.DOUBLE));
+        assertThat(decoder.formatValue(1), equalTo("0.5"));
+        assertThat(decoder.getKind(2), is(RowDecoder.Kind.DECIMAL));
+        assertThat(decoder.formatValue(2), equalTo("12345678901234567890"));
+        verify(rs, never()).getString("relname");
+        verify(rs, never()).getString(3);
+    }
+
+    @Test
+    public void nullValuesAreNotReported() throws SQLException {
+        ResultSet rs = mockResultSet();
+        when(rs.getLong(3)).thenReturn(0L);
+        when(rs.wasNull()).thenReturn(true);
+        RowDecoder decoder = RowDecoder.forResultSet(rs, COLUMNS);
+        decoder.decode(rs);
+        assertThat(decoder.getPathValue(0), is(nullValue()));
+        assertThat(decoder.hasValue(0), is(false));
+        assertThat(decoder.hasValue(1), is(false));
+        assertThat(decoder.hasValue(2), is(false));
+    }
+
+    @Test(expected = SQLException.class)
+    public void missingColumnFailsTheQuery() throws SQLException {
+        ResultSet rs = mockResultSet();
+        RowDecoder.forResultSet(rs, Arrays.asList(new Column("n_dead_tup", ColumnType.METRIC_VALUE, null)));
+    }
+}
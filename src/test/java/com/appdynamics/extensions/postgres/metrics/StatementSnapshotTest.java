@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class StatementSnapshotTest {
+
+    @Test
+    public void topStatementsAreRankedByExecutionTimeSinceThePreviousRead() {
+        StatementSnapshot snapshot = new StatementSnapshot();
+        snapshot.begin(2);
+        assertThat(snapshot.add(10, 1, 100, 5, 50.0, 5, 10, 1), is(nullValue()));
+        snapshot.add(10, 1, 200, 1000, 9000.0, 1000, 0, 0);
+        snapshot.add(10, 2, 100, 1, 1.0, 1, 0, 0);
+        snapshot.add(11, 1, 300, 10, 10.0, 10, 0, 0);
+        snapshot.finish();
+        assertThat(snapshot.hasDeltas(), is(false));
+        assertThat(snapshot.getStatementCount(), is(4));
+
+        snapshot.begin(2);
+        // 450 ms since the previous read
+        StatementSnapshot.Delta first = snapshot.add(10, 1, 100, 15, 500.0, 25, 30, 4);
+        first.dbName = "app";
+        first.userName = "web";
+        // not executed since
+        assertThat(snapshot.add(10, 1, 200, 1000, 9000.0, 1000, 0, 0), is(nullValue()));
+        // same query id in another database, 99 ms
+        assertThat(snapshot.add(10, 2, 100, 2, 100.0, 2, 0, 0), is(notNullValue()));
+        // pushes the statement of the other database out, 200 ms
+        assertThat(snapshot.add(12, 1, 400, 4, 200.0, 4, 0, 0), is(notNullValue()));
+        // 10 ms, less than the two top statements
+        assertThat(snapshot.add(11, 1, 300, 11, 20.0, 11, 0, 0), is(nullValue()));
+        snapshot.finish();
+
+        assertThat(snapshot.hasDeltas(), is(true));
+        List<StatementSnapshot.Delta> top = snapshot.getTop();
+        assertThat(top.size(), is(2));
+        assertThat(top.get(0).queryId, is(100L));
+        assertThat(top.get(0).dbId, is(1L));
+        assertThat(top.get(0).calls, is(10L));
+        assertThat(top.get(0).execTime, is(450.0));
+        assertThat(top.get(0).rows, is(20L));
+        assertThat(top.get(0).blocksHit, is(20L));
+        assertThat(top.get(0).blocksRead, is(3L));
+        assertThat(top.get(0).dbName, equalTo("app"));
+        assertThat(top.get(1).queryId, is(400L));
+        StatementSnapshot.Delta total = snapshot.getTotal();
+        assertThat(total.calls, is(16L));
+        assertThat(total.execTime, is(759.0));
+        assertThat(snapshot.getAddedCount(), is(1));
+        assertThat(snapshot.getResetCount(), is(0));
+        assertThat(snapshot.getDeallocatedCount(), is(0));
+    }
+
+    @Test
+    public void resetsAndDeallocationsAreDetected() {
+        StatementSnapshot snapshot = new StatementSnapshot();
+        snapshot.begin(10);
+        snapshot.add(10, 1, 100, 50, 500.0, 50, 0, 0);
+        snapshot.add(10, 1, 200, 50, 500.0, 50, 0, 0);
+        snapshot.add(10, 1, 300, 50, 500.0, 50, 0, 0);
+        snapshot.finish();
+
+        snapshot.begin(10);
+        // reset and executed 3 times since, the counters are the work done since the previous read
+        snapshot.add(10, 1, 100, 3, 30.0, 3, 0, 0);
+        snapshot.add(10, 1, 200, 60, 600.0, 60, 0, 0);
+        // statement 300 was deallocated to make room for 400
+        snapshot.add(10, 1, 400, 7, 70.0, 7, 0, 0);
+        snapshot.finish();
+
+        assertThat(snapshot.getResetCount(), is(1));
+        assertThat(snapshot.getAddedCount(), is(1));
+        assertThat(snapshot.getDeallocatedCount(), is(1));
+        assertThat(snapshot.getTotal().calls, is(20L));
+        assertThat(snapshot.getTop().get(0).queryId, is(200L));
+        assertThat(snapshot.getTop().get(1).queryId, is(400L));
+        assertThat(snapshot.getTop().get(2).calls, is(3L));
+    }
+
+    @Test
+    public void failedReadKeepsThePreviousSnapshot() {
+        StatementSnapshot snapshot = new StatementSnapshot();
+        snapshot.begin(10);
+        for (long queryId = 1; queryId <= 10000; queryId++) {
+            snapshot.add(10, 1, queryId, queryId, queryId, 1, 0, 0);
+        }
+        snapshot.finish();
+        // the read fails half way through and is not finished
+        snapshot.begin(10);
+        for (long queryId = 1; queryId <= 5000; queryId++) {
+            snapshot.add(10, 1, queryId, queryId + 1, queryId + 1, 1, 0, 0);
+        }
+        snapshot.begin(10);
+        for (long queryId = 1; queryId <= 9999; queryId++) {
+            snapshot.add(10, 1, queryId, queryId + 2, queryId + 2, 1, 0, 0);
+        }
+        snapshot.finish();
+        assertThat(snapshot.getStatementCount(), is(9999));
+        assertThat(snapshot.getTotal().calls, is(19998L));
+        assertThat(snapshot.getAddedCount(), is(0));
+        assertThat(snapshot.getDeallocatedCount(), is(1));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.metrics;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TopNSelectorTest {
+
+    private static long[] select(TopNSelector selector, double[] ranks) {
+        for (int row = 0; row < ranks.length; row++) {
+            double[] values = {ranks[row]};
+            TopNSelector.Entry entry = selector.offer(row, ranks[row]);
+            if (entry == null) {
+                selector.fold(values);
+            } else {
+                entry.values[0] = values[0];
+            }
+        }
+        return selector.getTopRowIds();
+    }
+
+    @Test
+    public void keepsTheRowsWithTheHighestRankAndFoldsTheRest() {
+        TopNSelector selector = new TopNSelector(2, 0, null, 1);
+        long[] top = select(selector, new double[]{5, 1, 9, Double.NaN, 7, 3});
+        assertThat(top, is(new long[]{2, 4}));
+        List<TopNSelector.Entry> rows = selector.getTopRows();
+        assertThat(rows.get(0).values[0], is(9.0));
+        assertThat(rows.get(1).values[0], is(7.0));
+        // rows pushed out of the heap are folded too, the NULL rank has no value to fold
+        assertThat(selector.getOtherRowCount(), is(4));
+        assertThat(selector.getOtherValue(0), is(9.0));
+    }
+
+    @Test
+    public void hysteresisKeepsIncumbentsWithCloseRanks() {
+        double[] firstRun = {100, 90, 80};
+        double[] secondRun = {100, 90, 95};
+        long[] incumbents = select(new TopNSelector(2, 0.1, null, 1), firstRun);
+        assertThat(incumbents, is(new long[]{0, 1}));
+        assertThat(select(new TopNSelector(2, 0.1, incumbents, 1), secondRun), is(new long[]{0, 1}));
+        // without hysteresis the rows swap places
+        assertThat(select(new TopNSelector(2, 0, incumbents, 1), secondRun), is(new long[]{0, 2}));
+        // a clear winner still gets in
+        assertThat(select(new TopNSelector(2, 0.1, incumbents, 1), new double[]{100, 90, 120}),
+                is(new long[]{0, 2}));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.plan;
+
+import com.appdynamics.extensions.postgres.column.ColumnType;
+import com.appdynamics.extensions.postgres.connection.PostgresConnectionConfig;
+import com.appdynamics.extensions.postgres.connection.Route;
+import com.appdynamics.extensions.yml.YmlReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class CollectionPlanCompilerTest {
+
+    @Test
+    public void configIsCompiledIntoTypedPlan() {
+        Map<String, ?> conf = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config.yml"));
+        CollectionPlan plan = CollectionPlanCompiler.compile(conf);
+        assertThat(plan.getServers().size(), is(1));
+        ServerPlan server = plan.getServers().get(0);
+        assertThat(server.getServerName(), equalTo("Local cluster"));
+        assertThat(server.getMaxPoolSize(), is(2));
+        assertThat(server.getBulkheadMaxConnections(), is(0));
+        assertThat(server.getDatabases().size(), is(1));
+        DatabasePlan database = server.getDatabases().get(0);
+        assertThat(database.getDbName(), equalTo("test"));
+        assertThat(database.getConnConfig().getUrl(), equalTo("jdbc:postgresql://127.0.0.1:5432/test"));
+        assertThat(database.getConnConfig().isMultiHost(), is(false));
+        assertThat(database.getConnConfig().getProps().getProperty("targetServerType"), is(nullValue()));
+        // server level queries are pulled up to the server
+        assertThat(database.getQueries().isEmpty(), is(true));
+        assertThat(server.getServerLevelDatabase().getDbName(), equalTo("test"));
+        assertThat(server.getServerLevelDatabase().getQueries().size(), is(1));
+        QueryPlan query = server.getServerLevelDatabase().getQueries().get(0);
+        assertThat(query.getName(), equalTo("Database Stats"));
+        assertThat(query.isServerLvlQuery(), is(true));
+        assertThat(query.getColumns().size(), is(3));
+        assertThat(query.getColumns().get(0).getType(), is(ColumnType.METRIC_PATH));
+        assertThat(query.getColumns().get(1).getType(), is(ColumnType.METRIC_VALUE));
+    }
+
+    @Test
+    public void derivedColumnsWithInvalidExpressionsAreDropped() {
+        Map<String, ?> conf = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config_derived.yml"));
+        QueryPlan query = CollectionPlanCompiler.compile(conf).getServers().get(0).getServerLevelDatabase()
+                .getQueries().get(0);
+        assertThat(query.getColumns().size(), is(5));
+        assertThat(query.getExpressions().size(), is(2));
+        assertThat(query.getExpressions().get(0).getDeltaColumns().length, is(0));
+        // dbSize is the second metricValue column
+        assertThat(query.getExpressions().get(1).getDeltaColumns()[0], is(1));
+    }
+
+    @Test
+    public void queriesOfAMultiHostServerAreRoutedToTheirHosts() {
+        Map<String, ?> conf = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config_multihost.yml"));
+        DatabasePlan database = CollectionPlanCompiler.compile(conf).getServers().get(0).getDatabases().get(0);
+        PostgresConnectionConfig primary = database.getConnConfig();
+        assertThat(primary.getUrl(), equalTo("jdbc:postgresql://pg-1:5432,pg-2:5433,[::1]:5432/test"));
+        assertThat(primary.isMultiHost(), is(true));
+        assertThat(primary.getProps().getProperty("targetServerType"), equalTo("master"));
+        assertThat(primary.getProps().getProperty("hostRecheckSeconds"), equalTo("30"));
+        assertThat(primary.routedTo(Route.PRIMARY), is(sameInstance(primary)));
+        PostgresConnectionConfig standby = primary.routedTo(Route.PREFER_STANDBY);
+        assertThat(standby.getProps().getProperty("targetServerType"), equalTo("preferSecondary"));
+        assertThat(standby.getProps().getProperty("hostRecheckSeconds"), equalTo("30"));
+        assertThat(primary.getProps().getProperty("targetServerType"), equalTo("master"));
+        // an unknown route falls back to the primary, queries routed elsewhere are left out of the pipeline
+        assertThat(database.getQueries().get(1).getRoute(), is(Route.PRIMARY));
+        assertThat(database.getQueries().get(2).getRoute(), is(Route.PREFER_STANDBY));
+        assertThat(database.getPipelinedQueries().size(), is(2));
+        assertThat(database.getStandaloneQueries().get(0).getName(), equalTo("Database Size"));
+    }
+
+    @Test
+    public void serverWithoutDatabasesCompilesToEmptyPlan() {
+        Map<String, ?> conf = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config_no_db.yml"));
+        CollectionPlan plan = CollectionPlanCompiler.compile(conf);
+        assertThat(plan.getServers().get(0).getDatabases().isEmpty(), is(true));
+    }
+
+    @Test
+    public void discoveryTemplateIsCompiledPerDatabase() {
+        Map<String, ?> conf = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config_discovery.yml"));
+        ServerPlan server = CollectionPlanCompiler.compile(conf).getServers().get(0);
+        assertThat(server.getMaxConcurrentDatabases(), is(2));
+        assertThat(server.getBulkheadMaxConnections(), is(6));
+        assertThat(server.getBulkheadMaxInFlight(), is(6));
+        StatementsPlan statements = server.getStatements();
+        assertThat(statements.getDatabase().getConnConfig().getUrl(),
+                equalTo("jdbc:postgresql://127.0.0.1:5432/postgres"));
+        assertThat(statements.getDatabase().getQueries().isEmpty(), is(true));
+        assertThat(statements.getTopK(), is(5));
+        assertThat(statements.getFetchSize(), is(1000));
+        WaitEventsPlan waitEvents = server.getWaitEvents();
+        assertThat(waitEvents.getDatabase().getConnConfig().getUrl(),
+                equalTo("jdbc:postgresql://127.0.0.1:5432/postgres"));
+        assertThat(waitEvents.getSampleIntervalMillis(), is(100L));
+        assertThat(waitEvents.getWindowMillis(), is(30000L));
+        assertThat(waitEvents.getMaxWaitEvents(), is(64));
+        DiscoveryPlan discovery = server.getDiscovery();
+        assertThat(discovery.getDatabase().getConnConfig().getUrl(),
+                equalTo("jdbc:postgresql://127.0.0.1:5432/postgres"));
+        assertThat(discovery.getRefreshIntervalMillis(), is(300000L));
+        assertThat(discovery.matches("tenant_1"), is(true));
+        assertThat(discovery.matches("tenant_1_archive"), is(false));
+        assertThat(discovery.matches("postgres"), is(false));
+        DatabasePlan first = discovery.compileDatabase("tenant_1");
+        assertThat(first.getConnConfig().getUrl(), equalTo("jdbc:postgresql://127.0.0.1:5432/tenant_1"));
+        assertThat(first.getQueries().get(0).getName(), equalTo("Table Stats"));
+        // each database gets its own query plans, the caches are keyed by them
+        assertThat(discovery.compileDatabase("tenant_2").getQueries().get(0),
+                is(not(sameInstance(first.getQueries().get(0)))));
+    }
+
+    @Test
+    public void serverWithoutDiscoveryHasNoDiscoveryPlan() {
+        Map<String, ?> conf = YmlReader.readFromFileAsMap(new File("src/test/resources/conf/config.yml"));
+        ServerPlan server = CollectionPlanCompiler.compile(conf).getServers().get(0);
+        assertThat(server.getDiscovery(), is(nullValue()));
+        assertThat(server.getStatements(), is(nullValue()));
+        assertThat(server.getWaitEvents(), is(nullValue()));
+        assertThat(server.getMaxConcurrentDatabases(), is(4));
+    }
+
+    @Test
+    public void serverLevelQueriesOfAllDatabasesAreMerged() {
+        Map<String, ?> conf = YmlReader.readFromFileAsMap(
+                new File("src/test/resources/conf/config_server_queries.yml"));
+        ServerPlan server = CollectionPlanCompiler.compile(conf).getServers().get(0);
+        DatabasePlan serverLevel = server.getServerLevelDatabase();
+        // run on the first database that has server level queries, the copy under the second database is merged
+        assertThat(serverLevel.getDbName(), equalTo("first"));
+        assertThat(serverLevel.getQueries().size(), is(2));
+        assertThat(serverLevel.getQueries().get(0).getName(), equalTo("Database Stats"));
+        assertThat(serverLevel.getQueries().get(1).getName(), equalTo("Replication"));
+        assertThat(server.getDatabases().size(), is(2));
+        assertThat(server.getDatabases().get(0).getQueries().isEmpty(), is(true));
+        assertThat(server.getDatabases().get(1).getQueries().size(), is(1));
+        assertThat(server.getDatabases().get(1).getQueries().get(0).getName(), equalTo("Table Stats"));
+    }
+
+    @Test
+    public void reloadedConfigKeepsThePlansOfUnchangedQueries() {
+        File file = new File("src/test/resources/conf/config_discovery.yml");
+        ServerPlan running = CollectionPlanCompiler.compile(YmlReader.readFromFileAsMap(file)).getServers().get(0);
+        QueryPlan databaseStats = running.getServerLevelDatabase().getQueries().get(0);
+        QueryPlan tableStats = running.getDiscovery().compileDatabase("tenant_1").getQueries().get(0);
+        QueryPlanIndex index = new QueryPlanIndex(Arrays.asList(databaseStats, tableStats));
+        Map<String, ?> conf = YmlReader.readFromFileAsMap(file);
+        Map<String, Object> discovery = (Map<String, Object>) ((List<Map<String, ?>>) conf.get("servers")).get(0)
+                .get("discovery");
+        ((List<Map<String, Object>>) discovery.get("queries")).get(0).put("queryStmt",
+                "SELECT relname, n_dead_tup FROM pg_stat_user_tables");
+        ServerPlan reloaded = CollectionPlanCompiler.compile(conf, index).getServers().get(0);
+        assertThat(reloaded.getServerLevelDatabase().getQueries().get(0), is(sameInstance(databaseStats)));
+        QueryPlan changed = reloaded.getDiscovery().compileDatabase("tenant_1").getQueries().get(0);
+        assertThat(changed, is(not(sameInstance(tableStats))));
+        assertThat(changed.getQueryStmt(), containsString("n_dead_tup"));
+        assertThat(index.getReusedCount(), is(1));
+    }
+}
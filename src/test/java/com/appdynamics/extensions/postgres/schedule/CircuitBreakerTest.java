@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.schedule;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailuresAndBacksOffExponentially() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60000, 150000);
+        breaker.onFailure(0);
+        breaker.onSuccess();
+        breaker.onFailure(0);
+        breaker.onFailure(0);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+        breaker.onFailure(0);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat(breaker.allowRequest(59999), is(false));
+        // one trial after the backoff, failing doubles the backoff
+        assertThat(breaker.allowRequest(60000), is(true));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        breaker.onFailure(60000);
+        assertThat(breaker.allowRequest(179999), is(false));
+        assertThat(breaker.allowRequest(180000), is(true));
+        // capped at the max backoff
+        breaker.onFailure(180000);
+        assertThat(breaker.getOpenUntil(), is(330000L));
+        assertThat(breaker.allowRequest(330000), is(true));
+        breaker.onSuccess();
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(breaker.hasFailed(), is(true));
+    }
+
+    @Test
+    public void neverOpensWithoutThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker(0, 60000, 3600000);
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure(0);
+        }
+        assertThat(breaker.allowRequest(0), is(true));
+    }
+}
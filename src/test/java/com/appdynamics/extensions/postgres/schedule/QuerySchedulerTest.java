@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.schedule;
+
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class QuerySchedulerTest {
+    private static final long MINUTE = 60000;
+
+    private QueryPlan query(long intervalMillis) {
+        QueryPlan query = mock(QueryPlan.class);
+        when(query.getIntervalMillis()).thenReturn(intervalMillis);
+        return query;
+    }
+
+    @Test
+    public void queriesWithoutIntervalAreAlwaysDue() {
+        QueryScheduler scheduler = new QueryScheduler();
+        QueryPlan everyRun = query(0);
+        for (int run = 0; run < 3; run++) {
+            assertThat(scheduler.next(run * MINUTE).isDue(everyRun), is(true));
+        }
+    }
+
+    @Test
+    public void tierIsDueOncePerInterval() {
+        QueryScheduler scheduler = new QueryScheduler();
+        QueryPlan tableStats = query(5 * MINUTE);
+        QueryPlan moreTableStats = query(5 * MINUTE);
+        StringBuilder due = new StringBuilder();
+        for (int run = 0; run <= 10; run++) {
+            // the machine agent starts runs a little early or late
+            long now = run * MINUTE + (run % 2 == 0 ? 1500 : -1500);
+            QueryScheduler.Schedule schedule = scheduler.next(now);
+            boolean first = schedule.isDue(tableStats);
+            assertThat(schedule.isDue(moreTableStats), is(first));
+            due.append(first ? 'x' : '.');
+        }
+        assertThat(due.toString(), is("x....x....x"));
+    }
+
+    @Test
+    public void newTierIsDueOnItsFirstRunForEveryDatabase() {
+        QueryScheduler scheduler = new QueryScheduler();
+        QueryScheduler.Schedule first = scheduler.next(0);
+        QueryPlan sizes = query(30 * MINUTE);
+        // the same query compiled for two databases
+        assertThat(first.isDue(sizes), is(true));
+        assertThat(first.isDue(query(30 * MINUTE)), is(true));
+        assertThat(scheduler.next(MINUTE).isDue(sizes), is(false));
+        assertThat(scheduler.next(30 * MINUTE).isDue(sizes), is(true));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.stats;
+
+import com.appdynamics.extensions.metrics.Metric;
+import com.appdynamics.extensions.postgres.plan.QueryPlan;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CollectionStatsTest {
+    private static final String PREFIX = "Custom Metrics|Postgres|Local cluster|Self Monitoring|";
+
+    @Test
+    public void statsArePublishedPerServerAndPerQuery() {
+        QueryPlan query = mock(QueryPlan.class);
+        when(query.getName()).thenReturn("Table Stats");
+        CollectionStats stats = new CollectionStats(true);
+        long start = System.nanoTime();
+        stats.recordAcquire(start, false);
+        stats.recordExecution("test", query, start);
+        stats.recordResult("test", query, start, 42, 84);
+        stats.recordError("test", query, true);
+        stats.recordMetrics(84);
+
+        Map<String, String> published = publish(stats);
+        assertThat(published.get(PREFIX + "Collection Time (ms)"), equalTo("1500"));
+        assertThat(published.get(PREFIX + "Connection Acquire Time|Count"), equalTo("1"));
+        assertThat(published.get(PREFIX + "Connect Time|Count"), equalTo("0"));
+        assertThat(published.get(PREFIX + "Bulkhead Wait Time|Count"), equalTo("0"));
+        assertThat(published.get(PREFIX + "Rows Fetched"), equalTo("42"));
+        assertThat(published.get(PREFIX + "Metrics Emitted"), equalTo("84"));
+        assertThat(published.get(PREFIX + "Query Timeouts"), equalTo("1"));
+        assertThat(published.get(PREFIX + "Query Errors"), equalTo("0"));
+        assertThat(published.get(PREFIX + "test|Table Stats|Rows Fetched"), equalTo("42"));
+        assertThat(published.get(PREFIX + "test|Table Stats|Timeouts"), equalTo("1"));
+        assertTrue(published.containsKey(PREFIX + "test|Table Stats|Execution Time (us)"));
+
+        // everything is reset, and queries that did not run are not published
+        published = publish(stats);
+        assertThat(published.get(PREFIX + "Rows Fetched"), equalTo("0"));
+        assertThat(published.get(PREFIX + "Connection Acquire Time|Count"), equalTo("0"));
+        assertThat(published.containsKey(PREFIX + "test|Table Stats|Rows Fetched"), is(false));
+    }
+
+    @Test
+    public void queriesAreOnlyPublishedWhenAskedFor() {
+        QueryPlan query = mock(QueryPlan.class);
+        when(query.getName()).thenReturn("Table Stats");
+        CollectionStats stats = new CollectionStats(false);
+        stats.recordResult("test", query, System.nanoTime(), 42, 84);
+        Map<String, String> published = publish(stats);
+        assertThat(published.get(PREFIX + "Rows Fetched"), equalTo("42"));
+        assertThat(published.containsKey(PREFIX + "test|Table Stats|Rows Fetched"), is(false));
+    }
+
+    private static Map<String, String> publish(CollectionStats stats) {
+        List<Metric> metrics = new ArrayList<>();
+        stats.publishAndReset("Custom Metrics|Postgres", "Local cluster", 1500, metrics);
+        Map<String, String> published = new HashMap<>();
+        for (Metric metric : metrics) {
+            published.put(metric.getMetricPath(), metric.getMetricValue());
+        }
+        return published;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2019 AppDynamics,Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.appdynamics.extensions.postgres.stats;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void everyValueFallsInABucketThatCoversIt() {
+        for (long value = 0; value < 1L << 40; value = value * 3 / 2 + 1) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(value + " above its bucket", value <= LatencyHistogram.highestValueOf(index));
+            assertTrue(value + " below its bucket", index == 0 || value > LatencyHistogram.highestValueOf(index - 1));
+            // buckets are at most about 3% wide
+            assertTrue(value + " in a wide bucket", LatencyHistogram.highestValueOf(index) - value <= value / 32);
+        }
+    }
+
+    @Test
+    public void percentilesAreReportedForTheIntervalOnly() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        assertThat(snapshot.getCount(), is(1000L));
+        assertThat(snapshot.getMax(), is(1000000L));
+        assertWithin(snapshot.getValueAtPercentile(50), 500000);
+        assertWithin(snapshot.getValueAtPercentile(99), 990000);
+        assertThat(snapshot.getValueAtPercentile(100), is(1000000L));
+
+        histogram.record(-5);
+        snapshot = histogram.snapshotAndReset();
+        assertThat(snapshot.getCount(), is(1L));
+        assertThat(snapshot.getValueAtPercentile(95), is(0L));
+        assertThat(histogram.snapshotAndReset().getCount(), is(0L));
+    }
+
+    @Test
+    public void concurrentRecordsAreNotLost() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        assertThat(snapshot.getCount(), is(40000L));
+        assertThat(snapshot.getMax(), is(9999L));
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertTrue(actual + " is not close to " + expected, Math.abs(actual - expected) <= expected / 32);
+    }
+}